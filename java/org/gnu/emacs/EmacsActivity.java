@@ -488,6 +488,11 @@ public class EmacsActivity extends Activity
 		   between selecting the file and this callback being
 		   invoked.  Don't crash in such cases.  */
 	      }
+
+	    /* Make the new tree visible within /content/storage.  */
+
+	    if (EmacsService.SERVICE != null)
+	      EmacsService.SERVICE.invalidateDocumentTrees ();
 	  }
 
 	break;
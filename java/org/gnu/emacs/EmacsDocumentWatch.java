@@ -0,0 +1,92 @@
+/* Communication module for Android terminals.  -*- c-file-style: "GNU" -*-
+
+Copyright (C) 2024 Free Software Foundation, Inc.
+
+This file is part of GNU Emacs.
+
+GNU Emacs is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or (at
+your option) any later version.
+
+GNU Emacs is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with GNU Emacs.  If not, see <https://www.gnu.org/licenses/>.  */
+
+package org.gnu.emacs;
+
+import android.content.ContentResolver;
+
+import android.database.ContentObserver;
+
+import android.net.Uri;
+
+import android.os.Handler;
+
+import android.provider.DocumentsContract;
+
+
+
+/* Watch for changes to a document and to the directory holding it,
+   reported by the document provider through content observers, and
+   send an ANDROID_DOCUMENT_CHANGED event to Emacs whenever one
+   arrives.
+
+   Providers report changes through document and child document URIs
+   outside any tree, so both are monitored: the document URI with its
+   descendants, which include its own child document URI if it is a
+   directory, and the child document URI of its parent, so that the
+   document's deletion or renaming is also reported.  */
+
+public final class EmacsDocumentWatch extends ContentObserver
+{
+  /* The descriptor of this watch.  */
+  public final int descriptor;
+
+  public
+  EmacsDocumentWatch (Handler handler, int descriptor)
+  {
+    super (handler);
+    this.descriptor = descriptor;
+  }
+
+  /* Begin watching the document DOCUMENTID within the tree URI
+     through RESOLVER.  PARENTID is the ID of the directory holding
+     it, or NULL if it is the root of the tree.  */
+
+  public void
+  register (ContentResolver resolver, Uri uri, String documentId,
+	    String parentId)
+  {
+    String authority;
+
+    authority = uri.getAuthority ();
+    resolver.registerContentObserver (DocumentsContract.buildDocumentUri
+				      (authority, documentId),
+				      true, this);
+
+    if (parentId != null)
+      resolver.registerContentObserver ((DocumentsContract
+					 .buildChildDocumentsUri
+					 (authority, parentId)),
+					false, this);
+  }
+
+  @Override
+  public void
+  onChange (boolean selfChange)
+  {
+    EmacsNative.sendDocumentChanged (descriptor);
+  }
+
+  @Override
+  public void
+  onChange (boolean selfChange, Uri uri)
+  {
+    onChange (selfChange);
+  }
+};
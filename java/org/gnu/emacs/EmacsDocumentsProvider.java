@@ -21,6 +21,7 @@
 
 import android.content.Context;
 
+import android.database.AbstractCursor;
 import android.database.Cursor;
 import android.database.MatrixCursor;
 
@@ -33,6 +34,11 @@
 import static android.provider.DocumentsContract.buildChildDocumentsUri;
 import android.provider.DocumentsProvider;
 
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.system.StructStat;
+
 import android.webkit.MimeTypeMap;
 
 import android.net.Uri;
@@ -176,15 +182,23 @@ public final class EmacsDocumentsProvider extends DocumentsProvider
   private String
   getMimeType (File file)
   {
-    String name, extension, mime;
+    return getMimeType (file.getName (), file.isDirectory ());
+  }
+
+  /* Return the MIME type of a file named NAME, which is a directory
+     if DIRECTORY.  */
+
+  private static String
+  getMimeType (String name, boolean directory)
+  {
+    String extension, mime;
     int extensionSeparator;
     MimeTypeMap singleton;
 
-    if (file.isDirectory ())
+    if (directory)
       return Document.MIME_TYPE_DIR;
 
     /* Abuse WebView stuff to get the file's MIME type.  */
-    name = file.getName ();
     extensionSeparator = name.lastIndexOf ('.');
 
     if (extensionSeparator > 0)
@@ -200,28 +214,21 @@ public final class EmacsDocumentsProvider extends DocumentsProvider
     return "application/octet-stream";
   }
 
-  /* Append the specified FILE to the query result RESULT.
-     Handle both directories and ordinary files.  */
+  /* Return the document flags of a file, which is a directory if
+     DIRECTORY and can be written to if WRITABLE.  */
 
-  private void
-  queryDocument1 (MatrixCursor result, File file)
+  private static int
+  getFlags (boolean directory, boolean writable)
   {
-    MatrixCursor.RowBuilder row;
-    String fileName, displayName, mimeType;
     int flags;
 
-    row = result.newRow ();
     flags = 0;
 
-    /* fileName is a string that the system will ask for some time in
-       the future.  Here, it is just the absolute name of the file.  */
-    fileName = file.getAbsolutePath ();
-
     /* If file is a directory, add the right flags for that.  */
 
-    if (file.isDirectory ())
+    if (directory)
       {
-	if (file.canWrite ())
+	if (writable)
 	  {
 	    flags |= Document.FLAG_DIR_SUPPORTS_CREATE;
 	    flags |= Document.FLAG_SUPPORTS_DELETE;
@@ -233,7 +240,7 @@ public final class EmacsDocumentsProvider extends DocumentsProvider
 	      flags |= Document.FLAG_SUPPORTS_MOVE;
 	  }
       }
-    else if (file.canWrite ())
+    else if (writable)
       {
 	/* Apply the correct flags for a writable file.  */
 	flags |= Document.FLAG_SUPPORTS_WRITE;
@@ -249,6 +256,26 @@ else if (file.canWrite ())
 	  }
       }
 
+    return flags;
+  }
+
+  /* Append the specified FILE to the query result RESULT.
+     Handle both directories and ordinary files.  */
+
+  private void
+  queryDocument1 (MatrixCursor result, File file)
+  {
+    MatrixCursor.RowBuilder row;
+    String fileName, displayName, mimeType;
+    int flags;
+
+    row = result.newRow ();
+
+    /* fileName is a string that the system will ask for some time in
+       the future.  Here, it is just the absolute name of the file.  */
+    fileName = file.getAbsolutePath ();
+    flags = getFlags (file.isDirectory (), file.canWrite ());
+
     displayName = file.getName ();
     mimeType = getMimeType (file);
 
@@ -260,6 +287,221 @@ else if (file.canWrite ())
     row.add (Document.COLUMN_FLAGS, flags);
   }
 
+  /* Cursor listing the contents of a directory.  The names of the
+     directory's children are read when the cursor is created, but
+     each row is only computed once the cursor is moved to it, with a
+     single call to `stat', so that the first rows can be returned to
+     the client without waiting for the status of every child to be
+     read.  This is only available on Android 5.0 and later.  */
+
+  private static final class DirectoryCursor extends AbstractCursor
+  {
+    /* The projection of this cursor.  */
+    private final String[] projection;
+
+    /* The name of the directory being listed, followed by a
+       directory separator.  */
+    private final String directory;
+
+    /* The names of its children.  */
+    private final String[] names;
+
+    /* The contents of the current row.  */
+    private String rowId, rowType;
+    private long rowSize, rowModified;
+    private int rowFlags;
+
+    public
+    DirectoryCursor (String[] projection, File directory,
+		     String[] names)
+    {
+      String name;
+
+      name = directory.getAbsolutePath ();
+      this.projection = projection;
+      this.directory = name.endsWith ("/") ? name : name + "/";
+      this.names = names;
+    }
+
+    /* Return whether the file NAME is writable.  */
+
+    private static boolean
+    isWritable (String name)
+    {
+      try
+	{
+	  return Os.access (name, OsConstants.W_OK);
+	}
+      catch (ErrnoException exception)
+	{
+	  return false;
+	}
+    }
+
+    @Override
+    public boolean
+    onMove (int oldPosition, int newPosition)
+    {
+      StructStat stat;
+      String name;
+      File file;
+      boolean isDirectory, writable;
+
+      name = names[newPosition];
+      rowId = directory + name;
+
+      try
+	{
+	  stat = Os.stat (rowId);
+	  isDirectory = OsConstants.S_ISDIR (stat.st_mode);
+	  writable = isWritable (rowId);
+	  rowSize = stat.st_size;
+
+	  if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O_MR1)
+	    rowModified = (stat.st_mtim.tv_sec * 1000
+			   + stat.st_mtim.tv_nsec / 1000000);
+	  else
+	    rowModified = stat.st_mtime * 1000;
+	}
+      catch (ErrnoException exception)
+	{
+	  /* The file might have been removed since the directory was
+	     read.  Report whatever can be learned of it.  */
+	  file = new File (rowId);
+	  isDirectory = file.isDirectory ();
+	  writable = file.canWrite ();
+	  rowSize = file.length ();
+	  rowModified = file.lastModified ();
+	}
+
+      rowType = getMimeType (name, isDirectory);
+      rowFlags = getFlags (isDirectory, writable);
+      return true;
+    }
+
+    @Override
+    public int
+    getCount ()
+    {
+      return names.length;
+    }
+
+    @Override
+    public String[]
+    getColumnNames ()
+    {
+      return projection;
+    }
+
+    /* Return the value of the column COLUMN in the current row,
+       or NULL if it is not a column of documents.  */
+
+    private Object
+    getValue (int column)
+    {
+      String name;
+
+      if (column < 0 || column >= projection.length)
+	throw new IndexOutOfBoundsException ();
+
+      name = projection[column];
+
+      if (name.equals (Document.COLUMN_DOCUMENT_ID))
+	return rowId;
+      else if (name.equals (Document.COLUMN_DISPLAY_NAME))
+	return names[getPosition ()];
+      else if (name.equals (Document.COLUMN_MIME_TYPE))
+	return rowType;
+      else if (name.equals (Document.COLUMN_SIZE))
+	return rowSize;
+      else if (name.equals (Document.COLUMN_LAST_MODIFIED))
+	return rowModified;
+      else if (name.equals (Document.COLUMN_FLAGS))
+	return rowFlags;
+
+      return null;
+    }
+
+    /* Return the value of COLUMN as a number, or 0 if it is not a
+       number.  */
+
+    private long
+    getNumber (int column)
+    {
+      Object value;
+
+      value = getValue (column);
+      return value instanceof Number ? ((Number) value).longValue () : 0;
+    }
+
+    @Override
+    public int
+    getType (int column)
+    {
+      Object value;
+
+      value = getValue (column);
+
+      if (value == null)
+	return FIELD_TYPE_NULL;
+
+      return (value instanceof Number
+	      ? FIELD_TYPE_INTEGER : FIELD_TYPE_STRING);
+    }
+
+    @Override
+    public String
+    getString (int column)
+    {
+      Object value;
+
+      value = getValue (column);
+      return value != null ? value.toString () : null;
+    }
+
+    @Override
+    public short
+    getShort (int column)
+    {
+      return (short) getNumber (column);
+    }
+
+    @Override
+    public int
+    getInt (int column)
+    {
+      return (int) getNumber (column);
+    }
+
+    @Override
+    public long
+    getLong (int column)
+    {
+      return getNumber (column);
+    }
+
+    @Override
+    public float
+    getFloat (int column)
+    {
+      return getNumber (column);
+    }
+
+    @Override
+    public double
+    getDouble (int column)
+    {
+      return getNumber (column);
+    }
+
+    @Override
+    public boolean
+    isNull (int column)
+    {
+      return getValue (column) == null;
+    }
+  };
+
   @Override
   public Cursor
   queryDocument (String documentId, String[] projection)
@@ -291,18 +533,39 @@ else if (file.canWrite ())
 		       String sortOrder) throws FileNotFoundException
   {
     MatrixCursor result;
+    DirectoryCursor cursor;
     File directory;
     File[] files;
+    String[] names;
     Context context;
 
     if (projection == null)
       projection = DEFAULT_DOCUMENT_PROJECTION;
 
-    result = new MatrixCursor (projection);
-
     /* Try to open the file corresponding to the location being
        requested.  */
     directory = new File (parentDocumentId);
+    context = getContext ();
+
+    /* Read only the names of each child, and compute the rows of the
+       cursor as they are requested.  Directories with tens of
+       thousands of files would otherwise delay the client until each
+       had been examined.  */
+
+    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP)
+      {
+	names = directory.list ();
+	cursor = new DirectoryCursor (projection, directory,
+				      (names != null
+				       ? names : new String[0]));
+
+	/* Now allow interested applications to detect changes.  */
+	cursor.setNotificationUri (context.getContentResolver (),
+				   getNotificationUri (directory));
+	return cursor;
+      }
+
+    result = new MatrixCursor (projection);
 
     /* Look up each child.  */
     files = directory.listFiles ();
@@ -314,8 +577,6 @@ else if (file.canWrite ())
 	  queryDocument1 (result, child);
       }
 
-    context = getContext ();
-
     /* Now allow interested applications to detect changes.  */
     result.setNotificationUri (context.getContentResolver (),
 			       getNotificationUri (directory));
@@ -0,0 +1,450 @@
+/* Communication module for Android terminals.  -*- c-file-style: "GNU" -*-
+
+Copyright (C) 2024 Free Software Foundation, Inc.
+
+This file is part of GNU Emacs.
+
+GNU Emacs is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or (at
+your option) any later version.
+
+GNU Emacs is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with GNU Emacs.  If not, see <https://www.gnu.org/licenses/>.  */
+
+package org.gnu.emacs;
+
+import java.util.AbstractMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+
+/* Map between keys and values that discards its least recently used
+   entries once either a limit on the number of entries or a limit on
+   the estimated memory consumed by its contents is exceeded.
+
+   The memory limit is expressed by a `Budget', which may be shared
+   between several caches, and which designates one cache from which
+   entries are removed when the others cannot free enough memory by
+   themselves.  A cache without a budget is limited only by the
+   number of its entries, but still records the memory consumed by
+   its contents, so that it can be charged to an entry of another
+   cache.
+
+   Unlike android.util.LruCache, entries can be removed while
+   iterating over the cache's contents, and no synchronization is
+   performed.  */
+
+public class EmacsLruCache<K, V> implements Iterable<V>
+{
+  /* Estimated number of bytes consumed by each entry, independent of
+     its contents.  */
+  public static final int ENTRY_OVERHEAD = 64;
+
+  /* Memory limit shared between caches.  */
+
+  public static final class Budget
+  {
+    /* The number of bytes that may be consumed.  */
+    public final long maxBytes;
+
+    /* The number of bytes presently consumed.  */
+    private long bytes;
+
+    /* The cache from which entries are removed when another cache
+       cannot free enough memory itself, or NULL.  */
+    private EmacsLruCache<?, ?> primary;
+
+    public
+    Budget (long maxBytes)
+    {
+      this.maxBytes = maxBytes;
+    }
+
+    /* Make CACHE the cache from which to remove entries when the
+       budget is exceeded.  */
+
+    public void
+    setPrimary (EmacsLruCache<?, ?> cache)
+    {
+      primary = cache;
+    }
+
+    /* Return the number of bytes presently consumed.  */
+
+    public long
+    getBytes ()
+    {
+      return bytes;
+    }
+  };
+
+  /* Structure recording a value and its estimated size.  */
+
+  private static final class Node<V>
+  {
+    /* The value.  */
+    V value;
+
+    /* Its estimated size in bytes.  */
+    int size;
+  };
+
+  /* The entries in this cache, ordered by access.  */
+  private final LinkedHashMap<K, Node<V>> map;
+
+  /* The maximum number of entries.  */
+  private final int maxEntries;
+
+  /* The memory limit applying to this cache, or NULL.  */
+  private final Budget budget;
+
+  /* The number of bytes consumed by the entries in this cache.  */
+  private long bytes;
+
+  /* Number of lookups that have succeeded and failed, and number of
+     entries removed to make room for others.  */
+  private long hits, misses, evictions;
+
+  public
+  EmacsLruCache (int maxEntries, Budget budget)
+  {
+    this.map = new LinkedHashMap<K, Node<V>> (16, 0.75f, true);
+    this.maxEntries = maxEntries;
+    this.budget = budget;
+  }
+
+  /* Return the estimated size of VALUE and KEY in bytes, excluding
+     ENTRY_OVERHEAD.  */
+
+  protected int
+  sizeOf (K key, V value)
+  {
+    return 0;
+  }
+
+  /* Function called after VALUE is removed from the cache, either
+     because it was replaced or removed by the caller, or (if EVICTED)
+     to make room for other entries.  */
+
+  protected void
+  entryRemoved (K key, V value, boolean evicted)
+  {
+
+  }
+
+  /* Return the estimated size of STRING in bytes.  */
+
+  public static int
+  stringSize (String string)
+  {
+    return (string != null ? 40 + string.length () * 2 : 0);
+  }
+
+  /* Remove NODE, which has been removed from the map under KEY, from
+     the accounting of this cache.  */
+
+  private void
+  release (K key, Node<V> node, boolean evicted)
+  {
+    charge (-node.size);
+
+    if (evicted)
+      evictions++;
+
+    entryRemoved (key, node.value, evicted);
+  }
+
+  /* Add DELTA to the number of bytes consumed by this cache and its
+     budget.  */
+
+  private void
+  charge (long delta)
+  {
+    bytes += delta;
+
+    if (budget != null)
+      budget.bytes += delta;
+  }
+
+  /* Remove the least recently used entry.  Value is false if the
+     cache is empty.  */
+
+  private boolean
+  evictEldest ()
+  {
+    Iterator<Map.Entry<K, Node<V>>> iter;
+    Map.Entry<K, Node<V>> eldest;
+
+    iter = map.entrySet ().iterator ();
+
+    if (!iter.hasNext ())
+      return false;
+
+    eldest = iter.next ();
+    iter.remove ();
+    release (eldest.getKey (), eldest.getValue (), true);
+    return true;
+  }
+
+  /* Remove least recently used entries until this cache and its
+     budget are within their limits.  */
+
+  private void
+  trim ()
+  {
+    while (map.size () > maxEntries)
+      evictEldest ();
+
+    if (budget == null)
+      return;
+
+    /* Remove entries from this cache first, but never the entry just
+       inserted.  */
+
+    while (budget.bytes > budget.maxBytes && map.size () > 1)
+      evictEldest ();
+
+    if (budget.primary != null && budget.primary != this)
+      {
+	while (budget.bytes > budget.maxBytes
+	       && budget.primary.evictEldest ())
+	  ;
+      }
+  }
+
+  /* Return the value associated with KEY, or NULL if there is
+     none.  */
+
+  public V
+  get (K key)
+  {
+    Node<V> node;
+
+    node = map.get (key);
+
+    if (node == null)
+      {
+	misses++;
+	return null;
+      }
+
+    hits++;
+    return node.value;
+  }
+
+  /* Like `get', but don't count the lookup in the cache's
+     statistics.  */
+
+  public V
+  peek (K key)
+  {
+    Node<V> node;
+
+    node = map.get (key);
+    return node != null ? node.value : null;
+  }
+
+  /* Associate VALUE with KEY, and remove entries as necessary to make
+     room for it.  */
+
+  public void
+  put (K key, V value)
+  {
+    Node<V> node, old;
+
+    node = new Node<V> ();
+    node.value = value;
+    node.size = ENTRY_OVERHEAD + sizeOf (key, value);
+    old = map.put (key, node);
+    charge (node.size);
+
+    if (old != null)
+      release (key, old, false);
+
+    trim ();
+  }
+
+  /* Estimate the size of VALUE anew after its contents have changed,
+     if it remains associated with KEY, and remove other entries as
+     necessary to make room for it.  */
+
+  public void
+  resize (K key, V value)
+  {
+    Node<V> node;
+    int size;
+
+    node = map.get (key);
+
+    if (node == null || node.value != value)
+      return;
+
+    size = ENTRY_OVERHEAD + sizeOf (key, value);
+    charge (size - node.size);
+    node.size = size;
+    trim ();
+  }
+
+  /* Remove the value associated with KEY, and return it, or NULL if
+     there is none.  */
+
+  public V
+  remove (K key)
+  {
+    Node<V> node;
+
+    node = map.remove (key);
+
+    if (node == null)
+      return null;
+
+    release (key, node, false);
+    return node.value;
+  }
+
+  /* Remove every entry from this cache.  */
+
+  public void
+  clear ()
+  {
+    Iterator<V> iter;
+
+    iter = iterator ();
+
+    while (iter.hasNext ())
+      {
+	iter.next ();
+	iter.remove ();
+      }
+  }
+
+  /* Return the number of bytes consumed by the entries in this
+     cache.  */
+
+  public long
+  getBytes ()
+  {
+    return bytes;
+  }
+
+  /* Return the number of entries in this cache.  */
+
+  public int
+  size ()
+  {
+    return map.size ();
+  }
+
+  /* Return an iterator over the values within this cache, in order of
+     access.  Calling its `remove' function removes the value from
+     this cache.  The order of the cache is not altered by
+     iteration.  */
+
+  @Override
+  public Iterator<V>
+  iterator ()
+  {
+    final Iterator<Map.Entry<K, Node<V>>> iter;
+
+    iter = map.entrySet ().iterator ();
+
+    return new Iterator<V> () {
+      private Map.Entry<K, Node<V>> current;
+
+      @Override
+      public boolean
+      hasNext ()
+      {
+	return iter.hasNext ();
+      }
+
+      @Override
+      public V
+      next ()
+      {
+	current = iter.next ();
+	return current.getValue ().value;
+      }
+
+      @Override
+      public void
+      remove ()
+      {
+	iter.remove ();
+	release (current.getKey (), current.getValue (), false);
+      }
+    };
+  }
+
+  /* Return an iterator over the keys and values within this cache,
+     which otherwise behaves like that returned by `iterator'.  */
+
+  public Iterator<Map.Entry<K, V>>
+  entryIterator ()
+  {
+    final Iterator<Map.Entry<K, Node<V>>> iter;
+
+    iter = map.entrySet ().iterator ();
+
+    return new Iterator<Map.Entry<K, V>> () {
+      private Map.Entry<K, Node<V>> current;
+
+      @Override
+      public boolean
+      hasNext ()
+      {
+	return iter.hasNext ();
+      }
+
+      @Override
+      public Map.Entry<K, V>
+      next ()
+      {
+	current = iter.next ();
+	return new AbstractMap.SimpleImmutableEntry<K, V>
+	  (current.getKey (), current.getValue ().value);
+      }
+
+      @Override
+      public void
+      remove ()
+      {
+	iter.remove ();
+	release (current.getKey (), current.getValue (), false);
+      }
+    };
+  }
+
+  /* Return the number of successful lookups.  */
+
+  public long
+  getHitCount ()
+  {
+    return hits;
+  }
+
+  /* Return the number of unsuccessful lookups.  */
+
+  public long
+  getMissCount ()
+  {
+    return misses;
+  }
+
+  /* Return the number of entries removed to make room for
+     others.  */
+
+  public long
+  getEvictionCount ()
+  {
+    return evictions;
+  }
+};
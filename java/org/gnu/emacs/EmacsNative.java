@@ -196,6 +196,13 @@ public static native long sendDndUri (short window, int x, int y,
   public static native long sendDndText (short window, int x, int y,
 					 String text);
 
+  /* Send an ANDROID_DOCUMENT_CHANGED event.  */
+  public static native long sendDocumentChanged (int descriptor);
+
+  /* Send an ANDROID_DOCUMENT_SAVED event.  */
+  public static native long sendDocumentSaved (String name,
+					       String error);
+
   /* Return the file name associated with the specified file
      descriptor, or NULL if there is none.  */
   public static native byte[] getProcName (int fd);
@@ -0,0 +1,398 @@
+/* Communication module for Android terminals.  -*- c-file-style: "GNU" -*-
+
+Copyright (C) 2024 Free Software Foundation, Inc.
+
+This file is part of GNU Emacs.
+
+GNU Emacs is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or (at
+your option) any later version.
+
+GNU Emacs is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with GNU Emacs.  If not, see <https://www.gnu.org/licenses/>.  */
+
+package org.gnu.emacs;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+
+import android.net.Uri;
+
+import android.os.Build;
+import android.os.Environment;
+import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
+
+import android.provider.DocumentsContract;
+
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.system.StructStat;
+
+
+
+/* Access to documents provided by the external storage provider
+   through the file system, bypassing the document provider.
+
+   The document IDs of the external storage provider name a storage
+   volume and a file relative to its root, such as
+   `primary:Documents/foo', which can be translated into the file
+   name of the document, such as
+   `/storage/emulated/0/Documents/foo'.  When Emacs has been granted
+   access to external storage, files so named can be accessed far
+   more quickly with system calls than through IPC with the
+   provider.
+
+   Each function returns a value indicating that the request could
+   not be answered directly if the tree is not provided by the
+   external storage provider, external storage is inaccessible, or
+   an unexpected error occurs, in which case the caller should
+   consult the document provider instead.  */
+
+public final class EmacsSafDirect
+{
+  /* The authority of the external storage provider.  */
+  public static final String AUTHORITY
+    = "com.android.externalstorage.documents";
+
+  /* Prefix of the URIs of trees provided by the external storage
+     provider.  */
+  private static final String TREE_PREFIX
+    = "content://" + AUTHORITY + "/tree/";
+
+  /* Value returned by functions returning integers if the request
+     could not be answered directly.  */
+  public static final int UNAVAILABLE = Integer.MIN_VALUE;
+
+  /* Interval in milliseconds between checks for access to external
+     storage after it is found to be unavailable.  */
+  private static final long RECHECK_INTERVAL = 10000;
+
+  /* Whether external storage is known to be accessible.  */
+  private static volatile boolean storageAvailable;
+
+  /* Time at which the accessibility of external storage was last
+     checked.  */
+  private static volatile long lastCheck;
+
+  /* Return whether external storage is accessible through the file
+     system.  Storage permissions are revoked by terminating the
+     process, so only the absence of access must be checked
+     again.  */
+
+  private static boolean
+  isEnabled ()
+  {
+    EmacsService service;
+    long now;
+
+    if (storageAvailable)
+      return true;
+
+    now = SystemClock.uptimeMillis ();
+
+    if (lastCheck != 0 && now - lastCheck < RECHECK_INTERVAL)
+      return false;
+
+    lastCheck = now;
+    service = EmacsService.SERVICE;
+
+    if (service == null)
+      return false;
+
+    storageAvailable = service.externalStorageAvailable ();
+    return storageAvailable;
+  }
+
+  /* Return whether documents within the tree URI might be accessible
+     through the file system.  URI is the string form of a tree
+     URI.  */
+
+  public static boolean
+  mayAccess (String uri)
+  {
+    return uri.startsWith (TREE_PREFIX) && isEnabled ();
+  }
+
+  /* Return the name of the file holding the document DOCUMENTID
+     within TREE, or NULL if it cannot be accessed directly.  If
+     DOCUMENTID is NULL, return that of the root of TREE.  */
+
+  public static String
+  getPath (Uri tree, String documentId)
+  {
+    int index;
+    String volume, base, path;
+
+    if (!AUTHORITY.equals (tree.getAuthority ()) || !isEnabled ())
+      return null;
+
+    if (documentId == null)
+      documentId = DocumentsContract.getTreeDocumentId (tree);
+
+    index = documentId.indexOf (':');
+
+    if (index < 0)
+      return null;
+
+    volume = documentId.substring (0, index);
+    path = documentId.substring (index + 1);
+
+    if (volume.equals ("primary"))
+      base = Environment.getExternalStorageDirectory ().getPath ();
+    else if (volume.equals ("home"))
+      base = (Environment.getExternalStorageDirectory ().getPath ()
+	      + "/Documents");
+    else if (volume.isEmpty () || volume.indexOf ('/') >= 0
+	     || volume.equals ("..") || volume.equals ("."))
+      return null;
+    else
+      /* Other volumes are identified by their UUIDs, and mounted
+	 under /storage.  */
+      base = "/storage/" + volume;
+
+    /* Refuse to translate names that might lie outside the
+       volume.  */
+
+    for (String component : path.split ("/"))
+      {
+	if (component.equals ("..") || component.equals ("."))
+	  return null;
+      }
+
+    return path.isEmpty () ? base : base + "/" + path;
+  }
+
+  /* Return the ID of the document named NAME within the directory
+     PARENT.  */
+
+  private static String
+  getChildId (String parent, String name)
+  {
+    if (parent.endsWith (":") || parent.endsWith ("/"))
+      return parent + name;
+
+    return parent + "/" + name;
+  }
+
+  /* Return whether ERRNO indicates that a file does not exist.  */
+
+  private static boolean
+  isNonexistent (int errno)
+  {
+    return errno == OsConstants.ENOENT || errno == OsConstants.ENOTDIR;
+  }
+
+  /* Find the document ID of the file within TREE designated by NAME,
+     as with `EmacsSafThread.documentIdFromName'.  Value is
+     UNAVAILABLE if the file cannot be accessed directly.  */
+
+  public static int
+  documentIdFromName (Uri tree, String name, String[] id_return)
+  {
+    String root, id, parentId, path;
+    StructStat stat;
+
+    root = DocumentsContract.getTreeDocumentId (tree);
+    id = parentId = root;
+
+    for (String component : name.split ("/"))
+      {
+	if (component.isEmpty ())
+	  continue;
+
+	if (component.equals (".") || component.equals (".."))
+	  return UNAVAILABLE;
+
+	parentId = id;
+	id = getChildId (id, component);
+      }
+
+    path = getPath (tree, id);
+
+    if (path == null)
+      return UNAVAILABLE;
+
+    try
+      {
+	stat = Os.stat (path);
+	id_return[0] = id;
+	return OsConstants.S_ISDIR (stat.st_mode) ? 1 : 0;
+      }
+    catch (ErrnoException exception)
+      {
+	if (!isNonexistent (exception.errno) || id == root)
+	  return UNAVAILABLE;
+      }
+
+    /* The file doesn't exist.  Return -2 if its parent is a
+       directory, and -1 otherwise.  */
+
+    try
+      {
+	stat = Os.stat (getPath (tree, parentId));
+
+	if (!OsConstants.S_ISDIR (stat.st_mode))
+	  return -1;
+
+	id_return[0] = parentId;
+	return -2;
+      }
+    catch (ErrnoException exception)
+      {
+	if (isNonexistent (exception.errno))
+	  return -1;
+
+	return UNAVAILABLE;
+      }
+  }
+
+  /* Return the status of the document DOCUMENTID within TREE, in the
+     format returned by `EmacsSafThread.statDocument', or NULL if it
+     cannot be accessed directly.  Signal FileNotFoundException if it
+     does not exist.  */
+
+  public static long[]
+  statDocument (Uri tree, String documentId)
+    throws FileNotFoundException
+  {
+    String path;
+    StructStat stat;
+    long[] value;
+
+    path = getPath (tree, documentId);
+
+    if (path == null)
+      return null;
+
+    try
+      {
+	stat = Os.stat (path);
+      }
+    catch (ErrnoException exception)
+      {
+	if (isNonexistent (exception.errno))
+	  throw new FileNotFoundException (path);
+
+	return null;
+      }
+
+    value = new long[3];
+    value[0] = EmacsSafThread.S_IRUSR;
+
+    if (OsConstants.S_ISDIR (stat.st_mode))
+      value[0] |= EmacsSafThread.S_IFDIR | EmacsSafThread.S_IXUSR;
+    else
+      value[0] |= EmacsSafThread.S_IFREG;
+
+    try
+      {
+	if (Os.access (path, OsConstants.W_OK))
+	  value[0] |= EmacsSafThread.S_IWUSR;
+      }
+    catch (ErrnoException exception)
+      {
+	/* The file is not writable.  */
+      }
+
+    value[1] = stat.st_size;
+
+    /* Provide the modification time with the same precision as the
+       document provider.  */
+
+    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O_MR1)
+      value[2] = (stat.st_mtim.tv_sec * 1000
+		  + stat.st_mtim.tv_nsec / 1000000);
+    else
+      value[2] = stat.st_mtime * 1000;
+
+    return value;
+  }
+
+  /* Return whether the document DOCUMENTID within TREE is
+     accessible, as with `EmacsSafThread.accessDocument'.  Value is
+     UNAVAILABLE if it cannot be accessed directly.  */
+
+  public static int
+  accessDocument (Uri tree, String documentId, boolean writable)
+  {
+    String path;
+
+    path = getPath (tree, documentId);
+
+    if (path == null)
+      return UNAVAILABLE;
+
+    try
+      {
+	Os.access (path, OsConstants.F_OK);
+      }
+    catch (ErrnoException exception)
+      {
+	if (isNonexistent (exception.errno))
+	  return -1;
+
+	return UNAVAILABLE;
+      }
+
+    if (!writable)
+      return 0;
+
+    try
+      {
+	Os.access (path, OsConstants.W_OK);
+	return 0;
+      }
+    catch (ErrnoException exception)
+      {
+	if (exception.errno == OsConstants.EACCES
+	    || exception.errno == OsConstants.EROFS)
+	  return -2;
+
+	return UNAVAILABLE;
+      }
+  }
+
+  /* Open a file descriptor for the document DOCUMENTID within TREE,
+     as with `EmacsSafThread.openDocument'.  Value is NULL if it
+     cannot be opened directly.  */
+
+  public static ParcelFileDescriptor
+  openDocument (Uri tree, String documentId, boolean read,
+		boolean write, boolean truncate)
+  {
+    String path;
+    int mode;
+
+    path = getPath (tree, documentId);
+
+    if (path == null)
+      return null;
+
+    if (write)
+      mode = (read ? ParcelFileDescriptor.MODE_READ_WRITE
+	      : ParcelFileDescriptor.MODE_WRITE_ONLY);
+    else
+      mode = ParcelFileDescriptor.MODE_READ_ONLY;
+
+    if (write && truncate)
+      mode |= ParcelFileDescriptor.MODE_TRUNCATE;
+
+    try
+      {
+	return ParcelFileDescriptor.open (new File (path), mode);
+      }
+    catch (FileNotFoundException exception)
+      {
+	/* Let the document provider report the error.  */
+	return null;
+      }
+  }
+};
@@ -0,0 +1,575 @@
+/* Communication module for Android terminals.  -*- c-file-style: "GNU" -*-
+
+Copyright (C) 2024 Free Software Foundation, Inc.
+
+This file is part of GNU Emacs.
+
+GNU Emacs is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or (at
+your option) any later version.
+
+GNU Emacs is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with GNU Emacs.  If not, see <https://www.gnu.org/licenses/>.  */
+
+package org.gnu.emacs;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.util.Log;
+
+
+
+/* Persistent index of the display name paths within a document tree,
+   and the document IDs, types and modification times of the files
+   they designate, which survives the termination of the Emacs
+   process.
+
+   The index is saved in a file holding a header, a table of offsets
+   to each record sorted by path, and the records themselves.  It is
+   mapped into memory upon first use, and searched in place.
+   Modifications are recorded in memory until the next call to
+   `save', which writes a new file.
+
+   The contents of the index are not validated here; its user must
+   confirm that each directory is unchanged before trusting the
+   records beneath it.  */
+
+public final class EmacsSafIndex
+{
+  private static final String TAG = "EmacsSafIndex";
+
+  /* Magic number and version identifying index files.  */
+  private static final int MAGIC = 0x45534958;
+  private static final int VERSION = 1;
+
+  /* Maximum number of records saved within an index.  */
+  public static final int MAX_ENTRIES = 65536;
+
+  /* Character set used to encode strings within an index.  */
+  private static final Charset UTF_8 = Charset.forName ("UTF-8");
+
+  /* Record within the index.  */
+
+  public static final class Entry
+  {
+    /* The document ID.  */
+    public final String documentId;
+
+    /* The MIME type of the document.  */
+    public final String type;
+
+    /* Its modification time in milliseconds since the epoch, or -1
+       if unknown.  */
+    public final long mtime;
+
+    public
+    Entry (String documentId, String type, long mtime)
+    {
+      this.documentId = documentId;
+      this.type = type;
+      this.mtime = mtime;
+    }
+  };
+
+  /* The file holding this index.  */
+  private final File file;
+
+  /* The tree URI this index describes.  */
+  private final String tree;
+
+  /* Contents of the index file, or NULL if not yet loaded or
+     empty.  */
+  private ByteBuffer buffer;
+
+  /* Whether an attempt has been made to load the index file.  */
+  private boolean loaded;
+
+  /* Number of records within BUFFER, and the position of the table
+     of offsets to them.  */
+  private int count, table;
+
+  /* Records added since the index was loaded, or null values for
+     records removed.  */
+  private final HashMap<String, Entry> updates;
+
+  /* Paths of directories whose children within BUFFER have been
+     removed.  */
+  private final List<String> removedDirectories;
+
+  /* Whether this index has been modified since it was last saved.  */
+  private boolean dirty;
+
+  /* Create an index for the tree URI, to be saved within
+     DIRECTORY.  */
+
+  public
+  EmacsSafIndex (File directory, String tree)
+  {
+    this.file = new File (directory, getFileName (tree));
+    this.tree = tree;
+    this.updates = new HashMap<String, Entry> ();
+    this.removedDirectories = new ArrayList<String> ();
+  }
+
+  /* Return the name of the file holding the index for TREE.  */
+
+  private static String
+  getFileName (String tree)
+  {
+    MessageDigest digest;
+    StringBuilder builder;
+    byte[] hash;
+
+    try
+      {
+	digest = MessageDigest.getInstance ("SHA-1");
+	hash = digest.digest (tree.getBytes (UTF_8));
+      }
+    catch (NoSuchAlgorithmException e)
+      {
+	return Integer.toHexString (tree.hashCode ());
+      }
+
+    builder = new StringBuilder ();
+
+    for (byte b : hash)
+      builder.append (String.format ("%02x", b & 0xff));
+
+    return builder.toString ();
+  }
+
+  /* Read a string from BUFFER at the position OFFSET.  */
+
+  private static String
+  readString (ByteBuffer buffer, int offset)
+  {
+    int length, i;
+    byte[] bytes;
+
+    length = buffer.getShort (offset) & 0xffff;
+    bytes = new byte[length];
+
+    /* Absolute bulk reads aren't available before Java 13.  */
+    for (i = 0; i < length; ++i)
+      bytes[i] = buffer.get (offset + 2 + i);
+
+    return new String (bytes, UTF_8);
+  }
+
+  /* Compare KEY with the string at OFFSET within BUFFER, as unsigned
+     bytes.  */
+
+  private static int
+  compareString (byte[] key, ByteBuffer buffer, int offset)
+  {
+    int length, i, a, b;
+
+    length = buffer.getShort (offset) & 0xffff;
+
+    for (i = 0; i < key.length && i < length; ++i)
+      {
+	a = key[i] & 0xff;
+	b = buffer.get (offset + 2 + i) & 0xff;
+
+	if (a != b)
+	  return a - b;
+      }
+
+    return key.length - length;
+  }
+
+  /* Map the index file into memory if this has not yet been
+     attempted.  */
+
+  private void
+  load ()
+  {
+    RandomAccessFile stream;
+    FileChannel channel;
+    ByteBuffer map;
+
+    if (loaded)
+      return;
+
+    loaded = true;
+
+    if (!file.exists ())
+      return;
+
+    stream = null;
+
+    try
+      {
+	stream = new RandomAccessFile (file, "r");
+	channel = stream.getChannel ();
+	map = channel.map (FileChannel.MapMode.READ_ONLY, 0,
+			   channel.size ());
+
+	/* Verify the header.  */
+
+	if (map.getInt (0) != MAGIC || map.getInt (4) != VERSION
+	    || !readString (map, 8).equals (tree))
+	  throw new IOException ("Invalid index header");
+
+	count = map.getInt (8 + 2 + (map.getShort (8) & 0xffff));
+	table = 8 + 2 + (map.getShort (8) & 0xffff) + 4;
+	buffer = map;
+      }
+    catch (Exception e)
+      {
+	/* The index is corrupt or belongs to some other tree.
+	   Discard it.  */
+	Log.w (TAG, "Discarding index " + file + ": " + e);
+	buffer = null;
+	count = 0;
+	file.delete ();
+      }
+    finally
+      {
+	try
+	  {
+	    if (stream != null)
+	      stream.close ();
+	  }
+	catch (IOException e)
+	  {
+	    /* The mapping remains valid regardless.  */
+	  }
+      }
+  }
+
+  /* Return the offset of the record for PATH within the index file,
+     or -1 if there is none.  */
+
+  private int
+  search (String path)
+  {
+    int low, high, middle, offset, rc;
+    byte[] key;
+
+    if (buffer == null)
+      return -1;
+
+    key = path.getBytes (UTF_8);
+    low = 0;
+    high = count - 1;
+
+    while (low <= high)
+      {
+	middle = (low + high) >>> 1;
+	offset = buffer.getInt (table + middle * 4);
+	rc = compareString (key, buffer, offset);
+
+	if (rc == 0)
+	  return offset;
+	else if (rc < 0)
+	  high = middle - 1;
+	else
+	  low = middle + 1;
+      }
+
+    return -1;
+  }
+
+  /* Read the record at OFFSET within the index file.  */
+
+  private Entry
+  readEntry (int offset)
+  {
+    String id, type;
+    long mtime;
+
+    /* Skip past the path.  */
+    offset += 2 + (buffer.getShort (offset) & 0xffff);
+    id = readString (buffer, offset);
+    offset += 2 + (buffer.getShort (offset) & 0xffff);
+    type = readString (buffer, offset);
+    offset += 2 + (buffer.getShort (offset) & 0xffff);
+    mtime = buffer.getLong (offset);
+    return new Entry (id, type, mtime);
+  }
+
+  /* Return the path of the directory containing PATH.  */
+
+  private static String
+  getParent (String path)
+  {
+    int index;
+
+    index = path.lastIndexOf ('/');
+    return index < 0 ? "" : path.substring (0, index);
+  }
+
+  /* Return whether PATH lies within a directory whose children have
+     been removed.  */
+
+  private boolean
+  isRemoved (String path)
+  {
+    if (removedDirectories.isEmpty () || path.isEmpty ())
+      return false;
+
+    return removedDirectories.contains (getParent (path));
+  }
+
+  /* Return the record for PATH, a file name relative to the root of
+     the tree whose root is itself the empty string, or NULL if there
+     is none.  */
+
+  public Entry
+  get (String path)
+  {
+    int offset;
+
+    if (updates.containsKey (path))
+      return updates.get (path);
+
+    load ();
+
+    if (isRemoved (path))
+      return null;
+
+    offset = search (path);
+    return offset >= 0 ? readEntry (offset) : null;
+  }
+
+  /* Record that PATH designates the document DOCUMENTID of the given
+     TYPE, last modified at MTIME.  */
+
+  public void
+  put (String path, String documentId, String type, long mtime)
+  {
+    Entry entry;
+
+    entry = updates.get (path);
+
+    if (entry != null && entry.documentId.equals (documentId)
+	&& entry.type.equals (type) && entry.mtime == mtime)
+      return;
+
+    updates.put (path, new Entry (documentId, type, mtime));
+    dirty = true;
+  }
+
+  /* Remove the record for PATH.  */
+
+  public void
+  remove (String path)
+  {
+    updates.put (path, null);
+    dirty = true;
+  }
+
+  /* Remove the records for each child of the directory PATH.  Records
+     for files further beneath PATH are retained, but the records of
+     the subdirectories holding them are not.  */
+
+  public void
+  removeChildren (String path)
+  {
+    List<String> keys;
+
+    keys = new ArrayList<String> ();
+
+    for (String key : updates.keySet ())
+      {
+	if (!key.isEmpty () && getParent (key).equals (path))
+	  keys.add (key);
+      }
+
+    for (String key : keys)
+      updates.remove (key);
+
+    /* Shadow the records for the children of PATH within the index
+       file.  */
+    removedDirectories.add (path);
+    dirty = true;
+  }
+
+  /* Return whether this index has been modified since it was last
+     saved.  */
+
+  public boolean
+  isDirty ()
+  {
+    return dirty;
+  }
+
+  /* Write the contents of this index to its file.  */
+
+  public void
+  save ()
+    throws IOException
+  {
+    final HashMap<String, Entry> entries;
+    List<String> paths;
+    final HashMap<String, byte[]> keys;
+    File temp;
+    DataOutputStream stream;
+    byte[] treeBytes, id, type;
+    int i, offset, offsets[];
+    Entry entry;
+    String path;
+
+    load ();
+    entries = new HashMap<String, Entry> ();
+
+    /* Merge the records within the index file with those
+       modified.  */
+
+    for (i = 0; buffer != null && i < count; ++i)
+      {
+	offset = buffer.getInt (table + i * 4);
+	path = readString (buffer, offset);
+
+	if (!isRemoved (path) && !updates.containsKey (path))
+	  entries.put (path, readEntry (offset));
+      }
+
+    for (Map.Entry<String, Entry> update : updates.entrySet ())
+      {
+	if (update.getValue () != null)
+	  entries.put (update.getKey (), update.getValue ());
+      }
+
+    /* Sort the paths in the order in which they are searched.  */
+
+    paths = new ArrayList<String> (entries.keySet ());
+    keys = new HashMap<String, byte[]> ();
+
+    for (String name : paths)
+      keys.put (name, name.getBytes (UTF_8));
+
+    Collections.sort (paths, new Comparator<String> () {
+	@Override
+	public int
+	compare (String a, String b)
+	{
+	  byte[] x, y;
+	  int i, c;
+
+	  x = keys.get (a);
+	  y = keys.get (b);
+
+	  for (i = 0; i < x.length && i < y.length; ++i)
+	    {
+	      c = (x[i] & 0xff) - (y[i] & 0xff);
+
+	      if (c != 0)
+		return c;
+	    }
+
+	  return x.length - y.length;
+	}
+      });
+
+    /* Discard records that cannot be represented, and truncate the
+       index to MAX_ENTRIES.  */
+
+    for (i = paths.size () - 1; i >= 0; --i)
+      {
+	entry = entries.get (paths.get (i));
+
+	if (keys.get (paths.get (i)).length > 0xffff
+	    || entry.documentId.getBytes (UTF_8).length > 0xffff
+	    || entry.type.getBytes (UTF_8).length > 0xffff)
+	  paths.remove (i);
+      }
+
+    if (paths.size () > MAX_ENTRIES)
+      paths = paths.subList (0, MAX_ENTRIES);
+
+    /* Compute the offset of each record.  */
+
+    treeBytes = tree.getBytes (UTF_8);
+    offsets = new int[paths.size ()];
+    offset = 8 + 2 + treeBytes.length + 4 + paths.size () * 4;
+
+    for (i = 0; i < paths.size (); ++i)
+      {
+	entry = entries.get (paths.get (i));
+	offsets[i] = offset;
+	offset += (2 + keys.get (paths.get (i)).length
+		   + 2 + entry.documentId.getBytes (UTF_8).length
+		   + 2 + entry.type.getBytes (UTF_8).length + 8);
+      }
+
+    /* Write the index to a temporary file, and move it over the
+       index file once complete.  */
+
+    file.getParentFile ().mkdirs ();
+    temp = new File (file.getPath () + ".tmp");
+    stream = new DataOutputStream (new BufferedOutputStream
+				   (new FileOutputStream (temp)));
+
+    try
+      {
+	stream.writeInt (MAGIC);
+	stream.writeInt (VERSION);
+	stream.writeShort (treeBytes.length);
+	stream.write (treeBytes);
+	stream.writeInt (paths.size ());
+
+	for (i = 0; i < offsets.length; ++i)
+	  stream.writeInt (offsets[i]);
+
+	for (String name : paths)
+	  {
+	    entry = entries.get (name);
+	    id = entry.documentId.getBytes (UTF_8);
+	    type = entry.type.getBytes (UTF_8);
+
+	    stream.writeShort (keys.get (name).length);
+	    stream.write (keys.get (name));
+	    stream.writeShort (id.length);
+	    stream.write (id);
+	    stream.writeShort (type.length);
+	    stream.write (type);
+	    stream.writeLong (entry.mtime);
+	  }
+      }
+    finally
+      {
+	stream.close ();
+      }
+
+    if (!temp.renameTo (file))
+      {
+	temp.delete ();
+	throw new IOException ("Failed to replace " + file);
+      }
+
+    /* Map the new file upon the next lookup.  */
+    updates.clear ();
+    removedDirectories.clear ();
+    buffer = null;
+    count = 0;
+    loaded = false;
+    dirty = false;
+  }
+};
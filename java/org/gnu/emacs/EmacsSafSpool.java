@@ -0,0 +1,394 @@
+/* Communication module for Android terminals.  -*- c-file-style: "GNU" -*-
+
+Copyright (C) 2024 Free Software Foundation, Inc.
+
+This file is part of GNU Emacs.
+
+GNU Emacs is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or (at
+your option) any later version.
+
+GNU Emacs is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with GNU Emacs.  If not, see <https://www.gnu.org/licenses/>.  */
+
+package org.gnu.emacs;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import java.util.Iterator;
+import java.util.Map;
+
+import android.os.CancellationSignal;
+import android.os.ParcelFileDescriptor;
+
+import android.util.Log;
+
+
+
+/* Local copies of documents whose providers return pipes or sockets
+   when they are opened for reading, so that reading them again, or
+   seeking within them, needs no further requests of the provider.
+
+   Each copy is keyed by the tree holding the document, its ID and
+   its modification time, so a copy is never returned after the
+   document is modified.  Copies are deleted in order of last use
+   once their total size exceeds a limit.  */
+
+public final class EmacsSafSpool
+{
+  private static final String TAG = "EmacsSafSpool";
+
+  /* Maximum number of documents copied.  */
+  private static final int MAX_ENTRIES = 256;
+
+  /* Size of the buffer used to copy documents.  */
+  private static final int BUFFER_SIZE = 65536;
+
+  /* Cache of copies whose files are deleted as they are
+     evicted.  */
+
+  private static final class SpoolCache
+    extends EmacsLruCache<String, File>
+  {
+    public
+    SpoolCache (long maxBytes)
+    {
+      super (MAX_ENTRIES, new EmacsLruCache.Budget (maxBytes));
+    }
+
+    @Override
+    protected int
+    sizeOf (String key, File value)
+    {
+      return (int) Math.min (value.length (), Integer.MAX_VALUE);
+    }
+
+    @Override
+    protected void
+    entryRemoved (String key, File value, boolean evicted)
+    {
+      value.delete ();
+    }
+  };
+
+  /* The directory holding copies.  */
+  private final File directory;
+
+  /* Copies of documents, or NULL if none have been made.  */
+  private SpoolCache cache;
+
+  /* The limit on the total size of copies applying to CACHE.  */
+  private long limit;
+
+  /* Number used to name the next copy.  */
+  private long serial;
+
+  /* Whether copies left behind by a previous Emacs session have been
+     deleted.  */
+  private boolean initialized;
+
+  public
+  EmacsSafSpool (File directory)
+  {
+    this.directory = directory;
+  }
+
+  /* Return the key identifying the copy of DOCUMENTID within TREE
+     last modified at MTIME.  */
+
+  private static String
+  getKey (String tree, String documentId, long mtime)
+  {
+    return tree + "\0" + documentId + "\0" + mtime;
+  }
+
+  /* Create the directory holding copies, and delete any copies left
+     behind by a previous session, whose contents are unknown.  Value
+     is whether the directory exists.  */
+
+  private boolean
+  initialize ()
+  {
+    File[] files;
+
+    if (!initialized)
+      {
+	initialized = true;
+	files = directory.listFiles ();
+
+	if (files != null)
+	  {
+	    for (File file : files)
+	      file.delete ();
+	  }
+      }
+
+    return directory.isDirectory () || directory.mkdirs ();
+  }
+
+  /* Make LIMIT the limit on the total size of copies, discarding all
+     copies if it has changed.  */
+
+  private void
+  setLimit (long limit)
+  {
+    if (cache != null && this.limit == limit)
+      return;
+
+    if (cache != null)
+      cache.clear ();
+
+    this.limit = limit;
+    cache = new SpoolCache (limit);
+  }
+
+  /* Return a file descriptor open for reading the copy of DOCUMENTID
+     within TREE last modified at MTIME, or NULL if there is none.
+     LIMIT is the limit on the total size of copies.  */
+
+  public synchronized ParcelFileDescriptor
+  open (String tree, String documentId, long mtime, long limit)
+  {
+    File file;
+
+    setLimit (limit);
+    file = cache.get (getKey (tree, documentId, mtime));
+
+    if (file == null)
+      return null;
+
+    try
+      {
+	return ParcelFileDescriptor.open (file,
+					  ParcelFileDescriptor.MODE_READ_ONLY);
+      }
+    catch (IOException exception)
+      {
+	cache.remove (getKey (tree, documentId, mtime));
+	return null;
+      }
+  }
+
+  /* Return a file descriptor from which the contents of FILE can be
+     read, followed by the remainder of INPUT, and delete FILE.  The
+     data is transferred by a new thread, which closes INPUT once it
+     is exhausted.  */
+
+  private static ParcelFileDescriptor
+  relay (File file, final InputStream input)
+    throws IOException
+  {
+    final InputStream prefix;
+    final OutputStream sink;
+    ParcelFileDescriptor[] pipe;
+    Thread thread;
+
+    prefix = new FileInputStream (file);
+    file.delete ();
+
+    try
+      {
+	pipe = ParcelFileDescriptor.createPipe ();
+      }
+    catch (IOException exception)
+      {
+	prefix.close ();
+	throw exception;
+      }
+
+    sink = new ParcelFileDescriptor.AutoCloseOutputStream (pipe[1]);
+    thread = new Thread () {
+	@Override
+	public void
+	run ()
+	{
+	  byte[] buffer;
+	  int nread;
+
+	  buffer = new byte[BUFFER_SIZE];
+
+	  try
+	    {
+	      while ((nread = prefix.read (buffer)) > 0)
+		sink.write (buffer, 0, nread);
+
+	      while ((nread = input.read (buffer)) > 0)
+		sink.write (buffer, 0, nread);
+	    }
+	  catch (IOException exception)
+	    {
+	      /* Either Emacs has closed the pipe, or the document
+		 could not be read.  Both end the transfer.  */
+	    }
+	  finally
+	    {
+	      try
+		{
+		  prefix.close ();
+		  input.close ();
+		  sink.close ();
+		}
+	      catch (IOException exception)
+		{
+		  /* Nothing can be done about errors closing these
+		     streams.  */
+		}
+	    }
+	}
+      };
+
+    thread.start ();
+    return pipe[0];
+  }
+
+  /* Copy the contents of SOURCE, a file descriptor open for reading
+     DOCUMENTID within TREE last modified at MTIME, into a local file,
+     close SOURCE, and return a file descriptor open for reading the
+     copy.  Retain the copy for subsequent calls to `open' if it fits
+     within LIMIT.
+
+     Should SOURCE prove to hold more than LIMIT bytes, stop copying
+     it, and return a pipe from which the bytes copied and then the
+     remainder of SOURCE are read instead, so that no more than LIMIT
+     bytes are ever written to local storage.
+
+     If SIGNAL is canceled while the copy is under way, close SOURCE
+     and signal OperationCanceledException.  Signal IOException if
+     SOURCE cannot be read.  Value is NULL if the copy cannot be
+     created, in which case SOURCE is left open, and must be read by
+     the caller itself.  */
+
+  public ParcelFileDescriptor
+  spool (String tree, String documentId, long mtime, long limit,
+	 ParcelFileDescriptor source, CancellationSignal signal)
+    throws IOException
+  {
+    File file;
+    FileInputStream input;
+    FileOutputStream output;
+    ParcelFileDescriptor copy;
+    byte[] buffer;
+    int nread;
+    long total;
+
+    synchronized (this)
+      {
+	if (!initialize ())
+	  return null;
+
+	file = new File (directory, Long.toString (serial++));
+      }
+
+    try
+      {
+	output = new FileOutputStream (file);
+      }
+    catch (IOException exception)
+      {
+	Log.w (TAG, "Unable to create " + file + ": " + exception);
+	return null;
+      }
+
+    /* SOURCE is consumed from this point onwards.  */
+
+    input = new ParcelFileDescriptor.AutoCloseInputStream (source);
+    buffer = new byte[BUFFER_SIZE];
+    copy = null;
+    total = 0;
+
+    try
+      {
+	while ((nread = input.read (buffer)) > 0)
+	  {
+	    signal.throwIfCanceled ();
+	    output.write (buffer, 0, nread);
+	    total += nread;
+
+	    if (total > limit)
+	      {
+		/* SOURCE is too large to retain.  Return what has been
+		   copied and the rest of SOURCE through a pipe, which
+		   assumes responsibility for both FILE and INPUT.  */
+
+		output.close ();
+		output = null;
+		copy = relay (file, input);
+		input = null;
+		return copy;
+	      }
+	  }
+
+	output.close ();
+	output = null;
+	copy = ParcelFileDescriptor.open (file,
+					  ParcelFileDescriptor.MODE_READ_ONLY);
+      }
+    finally
+      {
+	try
+	  {
+	    if (input != null)
+	      input.close ();
+
+	    if (output != null)
+	      output.close ();
+	  }
+	catch (IOException exception)
+	  {
+	    /* Nothing can be done about errors closing either
+	       stream.  */
+	  }
+
+	if (copy == null)
+	  file.delete ();
+      }
+
+    synchronized (this)
+      {
+	setLimit (limit);
+
+	/* A file that is unlinked remains readable through COPY, so
+	   delete copies too large to retain at once.  */
+
+	if (file.length () > limit)
+	  file.delete ();
+	else
+	  cache.put (getKey (tree, documentId, mtime), file);
+      }
+
+    return copy;
+  }
+
+  /* Discard each copy of DOCUMENTID within TREE, for it is about to
+     be modified.  */
+
+  public synchronized void
+  remove (String tree, String documentId)
+  {
+    Iterator<Map.Entry<String, File>> iter;
+    String prefix;
+
+    if (cache == null)
+      return;
+
+    prefix = tree + "\0" + documentId + "\0";
+    iter = cache.entryIterator ();
+
+    while (iter.hasNext ())
+      {
+	if (iter.next ().getKey ().startsWith (prefix))
+	  iter.remove ();
+      }
+  }
+};
@@ -0,0 +1,495 @@
+/* Communication module for Android terminals.  -*- c-file-style: "GNU" -*-
+
+Copyright (C) 2024 Free Software Foundation, Inc.
+
+This file is part of GNU Emacs.
+
+GNU Emacs is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or (at
+your option) any later version.
+
+GNU Emacs is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with GNU Emacs.  If not, see <https://www.gnu.org/licenses/>.  */
+
+package org.gnu.emacs;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import java.util.HashMap;
+import java.util.HashSet;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import android.content.ContentResolver;
+
+import android.net.Uri;
+
+import android.os.CancellationSignal;
+import android.os.Handler;
+import android.os.OperationCanceledException;
+import android.os.ParcelFileDescriptor;
+
+import android.provider.DocumentsContract;
+
+import android.util.Log;
+
+
+
+/* Write-behind saves of documents to slow document providers.
+
+   A document opened for writing through this class is written to a
+   local staging file instead, and the contents of that file are
+   copied into the document by a background thread once it is closed,
+   retrying several times upon failure.  Emacs is notified of each
+   save's completion or failure with a call to
+   `EmacsNative.sendDocumentSaved'.
+
+   Until a save completes, requests to read the document are answered
+   from the staging file.  If a save fails, its staging file is
+   retained, so that its contents are not lost.  */
+
+public final class EmacsSafStaging
+{
+  private static final String TAG = "EmacsSafStaging";
+
+  /* Number of attempts made to save a document.  */
+  private static final int UPLOAD_ATTEMPTS = 3;
+
+  /* Number of milliseconds to wait before retrying a save, which is
+     multiplied by the number of attempts already made.  */
+  private static final long RETRY_DELAY = 2000;
+
+  /* Size of the buffer used to copy staging files.  */
+  private static final int BUFFER_SIZE = 65536;
+
+  /* Save of a document awaiting completion.  */
+
+  private static final class Upload
+  {
+    /* The tree URI and document ID of the document.  */
+    final String uri, documentId;
+
+    /* The name by which Emacs knows the document.  */
+    final String name;
+
+    /* The staging file.  */
+    final File file;
+
+    /* Whether this save has been replaced by a later save of the
+       same document before it started.  */
+    boolean superseded;
+
+    public
+    Upload (String uri, String documentId, String name, File file)
+    {
+      this.uri = uri;
+      this.documentId = documentId;
+      this.name = name;
+      this.file = file;
+    }
+  };
+
+  /* The content resolver used to save documents.  */
+  private final ContentResolver resolver;
+
+  /* The SAF thread whose caches are invalidated after a save.  */
+  private final EmacsSafThread thread;
+
+  /* The directory holding staging files.  */
+  private final File directory;
+
+  /* Map between the keys produced by `getKey' and the latest save of
+     each document that has yet to complete.  */
+  private final HashMap<String, Upload> pending;
+
+  /* Saves whose staging files are still open.  They are not entered
+     into `pending' until they are closed, so that a save still being
+     written neither supersedes an earlier save nor answers requests
+     to read its document, but they must be waited for all the
+     same.  */
+  private final HashSet<Upload> writing;
+
+  /* Map between names of documents and the errors with which their
+     last saves failed.  */
+  private final HashMap<String, String> failures;
+
+  /* Thread running saves, or NULL if none has yet been made.  */
+  private ExecutorService executor;
+
+  /* Number used to name the next staging file.  */
+  private long serial;
+
+  public
+  EmacsSafStaging (ContentResolver resolver, EmacsSafThread thread,
+		   File directory)
+  {
+    this.resolver = resolver;
+    this.thread = thread;
+    this.directory = directory;
+    this.pending = new HashMap<String, Upload> ();
+    this.writing = new HashSet<Upload> ();
+    this.failures = new HashMap<String, String> ();
+  }
+
+  /* Return the key identifying DOCUMENTID within the tree URI.  */
+
+  private static String
+  getKey (String uri, String documentId)
+  {
+    return uri + "\0" + documentId;
+  }
+
+  /* Return a file descriptor open for writing to a new staging file
+     for DOCUMENTID within the tree URI, which Emacs knows as NAME.
+     Once it is closed, copy its contents into the document in the
+     background, notifying HANDLER's thread of its closure.  Value is
+     NULL if no staging file can be created.  */
+
+  public ParcelFileDescriptor
+  open (String uri, String documentId, String name, Handler handler)
+  {
+    final Upload upload;
+    File file;
+    int mode;
+    ParcelFileDescriptor.OnCloseListener listener;
+
+    synchronized (this)
+      {
+	if (!directory.isDirectory () && !directory.mkdirs ())
+	  return null;
+
+	file = new File (directory, Long.toString (serial++));
+      }
+
+    upload = new Upload (uri, documentId, name, file);
+    mode = (ParcelFileDescriptor.MODE_WRITE_ONLY
+	    | ParcelFileDescriptor.MODE_CREATE
+	    | ParcelFileDescriptor.MODE_TRUNCATE);
+    listener = new ParcelFileDescriptor.OnCloseListener () {
+	@Override
+	public void
+	onClose (IOException exception)
+	{
+	  schedule (upload);
+	}
+      };
+
+    /* The listener is run by HANDLER's thread some time after the
+       file descriptor is closed, so record the save at once, lest
+       Emacs wait for saves to complete before it is scheduled.  */
+
+    synchronized (this)
+      {
+	writing.add (upload);
+      }
+
+    try
+      {
+	return ParcelFileDescriptor.open (file, mode, handler, listener);
+      }
+    catch (IOException exception)
+      {
+	Log.w (TAG, "Unable to create " + file + ": " + exception);
+	file.delete ();
+
+	synchronized (this)
+	  {
+	    writing.remove (upload);
+	    notifyAll ();
+	  }
+
+	return null;
+      }
+  }
+
+  /* Return a file descriptor open for reading the staging file of the
+     latest save of DOCUMENTID within the tree URI, or NULL if none
+     is pending.  */
+
+  public synchronized ParcelFileDescriptor
+  openPending (String uri, String documentId)
+  {
+    Upload upload;
+
+    upload = pending.get (getKey (uri, documentId));
+
+    if (upload == null)
+      return null;
+
+    try
+      {
+	return ParcelFileDescriptor.open (upload.file,
+					  ParcelFileDescriptor.MODE_READ_ONLY);
+      }
+    catch (IOException exception)
+      {
+	return null;
+      }
+  }
+
+  /* Arrange to save UPLOAD in the background, replacing any earlier
+     save of the same document that has yet to start.  */
+
+  private synchronized void
+  schedule (final Upload upload)
+  {
+    Upload old;
+
+    writing.remove (upload);
+    old = pending.put (getKey (upload.uri, upload.documentId), upload);
+
+    if (old != null)
+      old.superseded = true;
+
+    if (executor == null)
+      executor = Executors.newSingleThreadExecutor ();
+
+    executor.execute (new Runnable () {
+	@Override
+	public void
+	run ()
+	{
+	  runUpload (upload);
+	}
+      });
+  }
+
+  /* Copy the contents of UPLOAD's staging file into its document.
+     Signal an exception upon failure.  */
+
+  private void
+  copy (Upload upload)
+    throws IOException
+  {
+    Uri documentUri;
+    ParcelFileDescriptor descriptor;
+    FileInputStream input;
+    FileOutputStream output;
+    byte[] buffer;
+    int nread;
+
+    documentUri
+      = DocumentsContract.buildDocumentUriUsingTree (Uri.parse (upload.uri),
+						     upload.documentId);
+    descriptor = resolver.openFileDescriptor (documentUri, "w");
+
+    if (descriptor == null)
+      throw new IOException ("Document provider refused to open "
+			     + upload.name);
+
+    /* As in `EmacsSafThread.openDocument1', some providers neglect
+       to truncate seekable files opened under the mode w.  */
+    EmacsNative.ftruncate (descriptor.getFd ());
+
+    input = new FileInputStream (upload.file);
+    output = new ParcelFileDescriptor.AutoCloseOutputStream (descriptor);
+    buffer = new byte[BUFFER_SIZE];
+
+    try
+      {
+	while ((nread = input.read (buffer)) > 0)
+	  output.write (buffer, 0, nread);
+      }
+    finally
+      {
+	input.close ();
+
+	/* Closing OUTPUT is what commits the document with many
+	   providers, so errors it reports must not be ignored.  */
+	output.close ();
+      }
+  }
+
+  /* Save UPLOAD, retrying upon failure, and notify Emacs of the
+     outcome.  */
+
+  private void
+  runUpload (Upload upload)
+  {
+    String error;
+    int attempt;
+
+    synchronized (this)
+      {
+	if (upload.superseded)
+	  {
+	    upload.file.delete ();
+	    return;
+	  }
+      }
+
+    error = null;
+    EmacsSafThread.recordChange (Uri.parse (upload.uri));
+
+    for (attempt = 0; attempt < UPLOAD_ATTEMPTS; ++attempt)
+      {
+	if (attempt > 0)
+	  {
+	    try
+	      {
+		Thread.sleep (RETRY_DELAY * attempt);
+	      }
+	    catch (InterruptedException exception)
+	      {
+		break;
+	      }
+	  }
+
+	try
+	  {
+	    copy (upload);
+	    error = null;
+	    break;
+	  }
+	catch (Exception exception)
+	  {
+	    Log.w (TAG, "Saving " + upload.name + ": " + exception);
+	    error = exception.toString ();
+	  }
+      }
+
+    /* The file status of the document has changed.  */
+    EmacsSafThread.recordChange (Uri.parse (upload.uri));
+    thread.postInvalidateStat (Uri.parse (upload.uri),
+			       upload.documentId);
+
+    synchronized (this)
+      {
+	if (pending.get (getKey (upload.uri, upload.documentId))
+	    == upload)
+	  pending.remove (getKey (upload.uri, upload.documentId));
+
+	if (error == null)
+	  {
+	    failures.remove (upload.name);
+	    upload.file.delete ();
+	  }
+	else
+	  {
+	    error += ("; the contents of " + upload.name
+		      + " remain in " + upload.file);
+	    failures.put (upload.name, error);
+	  }
+
+	notifyAll ();
+      }
+
+    EmacsNative.sendDocumentSaved (upload.name, error);
+  }
+
+  /* Wait for every save of the document Emacs knows as NAME to
+     complete, or for all saves if NAME is NULL, including saves whose
+     staging files are still open.  Signal OperationCanceledException
+     if SIGNAL is canceled first.
+
+     Value is the error with which the last of those saves failed, or
+     NULL if all of them succeeded.  */
+
+  public synchronized String
+  flush (String name, CancellationSignal signal)
+  {
+    String error;
+    boolean waiting;
+
+    while (true)
+      {
+	waiting = false;
+
+	for (Upload upload : pending.values ())
+	  {
+	    if (name == null || upload.name.equals (name))
+	      waiting = true;
+	  }
+
+	for (Upload upload : writing)
+	  {
+	    if (name == null || upload.name.equals (name))
+	      waiting = true;
+	  }
+
+	if (!waiting)
+	  break;
+
+	signal.throwIfCanceled ();
+
+	try
+	  {
+	    /* Wake periodically to check for cancellation.  */
+	    wait (100);
+	  }
+	catch (InterruptedException exception)
+	  {
+	    throw new OperationCanceledException ();
+	  }
+      }
+
+    if (name != null)
+      return failures.remove (name);
+
+    error = null;
+
+    for (String value : failures.values ())
+      error = value;
+
+    failures.clear ();
+    return error;
+  }
+
+  /* Wait for the save of DOCUMENTID within the tree URI to complete,
+     if one is pending, so that it does not overwrite changes made
+     after the document is next opened.  Signal
+     OperationCanceledException if SIGNAL is canceled first.  */
+
+  public synchronized void
+  flushDocument (String uri, String documentId,
+		 CancellationSignal signal)
+  {
+    String key;
+
+    key = getKey (uri, documentId);
+
+    while (pending.containsKey (key))
+      {
+	signal.throwIfCanceled ();
+
+	try
+	  {
+	    /* Wake periodically to check for cancellation.  */
+	    wait (100);
+	  }
+	catch (InterruptedException exception)
+	  {
+	    throw new OperationCanceledException ();
+	  }
+      }
+  }
+
+  /* Return the names of each document whose save has yet to
+     complete.  */
+
+  public synchronized String[]
+  getPending ()
+  {
+    HashSet<String> names;
+
+    names = new HashSet<String> ();
+
+    for (Upload upload : pending.values ())
+      names.add (upload.name);
+
+    for (Upload upload : writing)
+      names.add (upload.name);
+
+    return names.toArray (new String[0]);
+  }
+};
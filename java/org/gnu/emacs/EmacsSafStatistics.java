@@ -0,0 +1,233 @@
+/* Communication module for Android terminals.  -*- c-file-style: "GNU" -*-
+
+Copyright (C) 2024 Free Software Foundation, Inc.
+
+This file is part of GNU Emacs.
+
+GNU Emacs is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or (at
+your option) any later version.
+
+GNU Emacs is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with GNU Emacs.  If not, see <https://www.gnu.org/licenses/>.  */
+
+package org.gnu.emacs;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+
+
+/* Counters describing the performance of requests made to document
+   providers, so that users can tell whether slowness is caused by
+   the provider, the document cache, or the transfer of requests
+   between the Emacs thread and the SAF threads.
+
+   The time taken by each operation is recorded by the SAF thread
+   that performed it, and includes time spent consulting the cache
+   and the provider.  The time spent by the Emacs thread waiting for
+   each request to complete is recorded separately as SYNC_WAIT, and
+   the difference between the two is the cost of the transfer.
+
+   Durations are recorded in histograms whose buckets are powers of
+   two in microseconds.  */
+
+public final class EmacsSafStatistics
+{
+  /* Operations whose duration is recorded.  Keep this in synch with
+     androidfns.c.  */
+  public static final int DOCUMENT_ID_FROM_NAME   = 0;
+  public static final int STAT_DOCUMENT           = 1;
+  public static final int ACCESS_DOCUMENT         = 2;
+  public static final int OPEN_DOCUMENT_DIRECTORY = 3;
+  public static final int OPEN_DOCUMENT           = 4;
+  public static final int SYNC_WAIT               = 5;
+  public static final int OPERATION_COUNT         = 6;
+
+  /* Number of buckets in each histogram.  Bucket N counts durations
+     between 2^N and 2^(N + 1) - 1 microseconds, except that the
+     first also counts shorter durations and the last longer
+     ones.  */
+  public static final int BUCKET_COUNT = 24;
+
+  /* Outcomes of cache lookups.  */
+  public static final int CACHE_HIT     = 0;
+  public static final int CACHE_MISS    = 1;
+  public static final int CACHE_EXPIRED = 2;
+
+  /* Histogram of the durations of an operation.  */
+
+  private static final class Histogram
+  {
+    /* The number of durations recorded, their sum and the longest,
+       all in microseconds.  */
+    long count, total, max;
+
+    /* The number of durations within each bucket.  */
+    final long[] buckets = new long[BUCKET_COUNT];
+  };
+
+  /* Counters of the outcomes of lookups within the cache of a single
+     document tree, indexed by CACHE_HIT, CACHE_MISS and
+     CACHE_EXPIRED.  */
+
+  public static final class CacheCounters
+  {
+    private final long[] counts = new long[3];
+
+    /* Record a lookup whose outcome was OUTCOME.  */
+
+    public void
+    record (int outcome)
+    {
+      synchronized (histograms)
+	{
+	  counts[outcome]++;
+	}
+    }
+  };
+
+  /* Histograms of each operation.  */
+  private static final Histogram[] histograms;
+
+  /* Map between tree URIs and the counters of their caches.  */
+  private static final HashMap<String, CacheCounters> caches;
+
+  static
+  {
+    int i;
+
+    histograms = new Histogram[OPERATION_COUNT];
+
+    for (i = 0; i < OPERATION_COUNT; ++i)
+      histograms[i] = new Histogram ();
+
+    caches = new HashMap<String, CacheCounters> ();
+  }
+
+  /* Record that OPERATION began at START, a value returned by
+     `System.nanoTime', and has just completed.  */
+
+  public static void
+  record (int operation, long start)
+  {
+    long micros;
+    int bucket;
+    Histogram histogram;
+
+    micros = (System.nanoTime () - start) / 1000;
+    bucket = 63 - Long.numberOfLeadingZeros (Math.max (1, micros));
+    bucket = Math.min (BUCKET_COUNT - 1, bucket);
+    histogram = histograms[operation];
+
+    synchronized (histograms)
+      {
+	histogram.count++;
+	histogram.total += micros;
+	histogram.max = Math.max (histogram.max, micros);
+	histogram.buckets[bucket]++;
+      }
+  }
+
+  /* Return the counters of the cache of the tree URI, creating them
+     if necessary.  */
+
+  public static CacheCounters
+  getCacheCounters (String uri)
+  {
+    CacheCounters counters;
+
+    synchronized (histograms)
+      {
+	counters = caches.get (uri);
+
+	if (counters == null)
+	  {
+	    counters = new CacheCounters ();
+	    caches.put (uri, counters);
+	  }
+
+	return counters;
+      }
+  }
+
+  /* Return an array describing OPERATION: the number of times it was
+     performed, the sum and maximum of their durations in
+     microseconds, and then the number of durations within each
+     bucket.  Value is NULL if OPERATION is invalid.  */
+
+  public static long[]
+  getOperationStatistics (int operation)
+  {
+    Histogram histogram;
+    long[] value;
+
+    if (operation < 0 || operation >= OPERATION_COUNT)
+      return null;
+
+    histogram = histograms[operation];
+    value = new long[3 + BUCKET_COUNT];
+
+    synchronized (histograms)
+      {
+	value[0] = histogram.count;
+	value[1] = histogram.total;
+	value[2] = histogram.max;
+	System.arraycopy (histogram.buckets, 0, value, 3,
+			  BUCKET_COUNT);
+      }
+
+    return value;
+  }
+
+  /* Return the tree URIs whose caches have been consulted.  */
+
+  public static String[]
+  getCacheTrees ()
+  {
+    synchronized (histograms)
+      {
+	return caches.keySet ().toArray (new String[0]);
+      }
+  }
+
+  /* Return an array of the number of hits, misses and expired
+     entries encountered in the cache of the tree URI.  */
+
+  public static long[]
+  getCacheStatistics (String uri)
+  {
+    CacheCounters counters;
+
+    counters = getCacheCounters (uri);
+
+    synchronized (histograms)
+      {
+	return counters.counts.clone ();
+      }
+  }
+
+  /* Reset each counter to zero.  */
+
+  public static void
+  reset ()
+  {
+    synchronized (histograms)
+      {
+	for (Histogram histogram : histograms)
+	  {
+	    histogram.count = histogram.total = histogram.max = 0;
+	    Arrays.fill (histogram.buckets, 0);
+	  }
+
+	for (CacheCounters counters : caches.values ())
+	  Arrays.fill (counters.counts, 0);
+      }
+  }
+};
@@ -19,23 +19,38 @@
 
 package org.gnu.emacs;
 
-import java.util.Collection;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 
+import java.text.Normalizer;
+
 import android.content.ContentResolver;
+import android.database.ContentObserver;
 import android.database.Cursor;
+import android.database.MatrixCursor;
 import android.net.Uri;
 
 import android.os.Build;
 import android.os.CancellationSignal;
+import android.os.CancellationSignal.OnCancelListener;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.OperationCanceledException;
 import android.os.ParcelFileDescriptor;
+import android.os.Process;
 import android.os.SystemClock;
 
 import android.util.Log;
@@ -45,9 +60,15 @@
 
 
 
-/* Emacs runs long-running SAF operations on a second thread running
-   its own handler.  These operations include opening files and
-   maintaining the path to document ID cache.
+/* Emacs runs long-running SAF operations on a small pool of worker
+   threads, each running its own handler.  These operations include
+   opening files and maintaining the path to document ID cache.
+
+   Each document tree is assigned to a single worker upon first use,
+   and every operation on that tree, cache invalidation included, is
+   run by that worker, in order.  Operations on trees assigned to
+   different workers proceed in parallel, so that a slow provider
+   doesn't delay access to unrelated trees.
 
    Because Emacs paths are based on file display names, while Android
    document identifiers have no discernible hierarchy of their own,
@@ -58,10 +79,14 @@
 
    A time limited cache tying components to document IDs is maintained
    in order to speed up consecutive searches for file names sharing
-   the same components.  Since listening for changes to each document
-   in the cache is prohibitively expensive, Emacs instead elects to
-   periodically remove entries that are older than a predetermined
-   amount of a time.
+   the same components.  A content observer is registered for the
+   authority of each tree in the cache, and notifications of changes
+   to a document or its children evict the subtree rooted at that
+   document.  Not every document provider sends such notifications,
+   so Emacs also periodically removes entries that are older than a
+   predetermined amount of a time; this period is extended once a
+   provider has demonstrated that it does notify Emacs of changes
+   made by other programs.
 
    The cache is split into two levels: the first caches the
    relationships between display names and document IDs, while the
@@ -81,19 +106,42 @@ second caches individual document IDs and their contents (children,
 
 
 
-public final class EmacsSafThread extends HandlerThread
+public final class EmacsSafThread
 {
   private static final String TAG = "EmacsSafThread";
 
   /* The content resolver used by this thread.  */
   private final ContentResolver resolver;
 
-  /* Map between tree URIs and the cache entry representing its
-     toplevel directory.  */
-  private final HashMap<Uri, CacheToplevel> cacheToplevels;
+  /* The worker threads.  */
+  private final SafWorker[] workers;
+
+  /* Map between tree URIs and the workers to which they are
+     assigned.  */
+  private final HashMap<String, SafWorker> workerAssignments;
+
+  /* Number of worker threads.  */
+  public static final int WORKER_COUNT = 3;
+
+  /* Directory holding persistent indices of each tree, or NULL if
+     they are disabled.  */
+  private volatile File indexDirectory;
+
+  /* Local copies of documents that can only be streamed, or NULL if
+     they are disabled.  */
+  private final EmacsSafSpool spool;
+
+  /* Write-behind saves of documents, or NULL if they are
+     disabled.  */
+  private final EmacsSafStaging staging;
 
-  /* Handler for this thread's main loop.  */
-  private Handler handler;
+  /* Threads listing directories on behalf of tree walks, or NULL if
+     no tree walk has yet been started.  */
+  private ExecutorService walkExecutor;
+
+  /* Thread waiting for documents being saved in the background, or
+     NULL if Emacs has never waited for them.  */
+  private ExecutorService flushExecutor;
 
   /* File access mode constants.  See `man 7 inode'.  */
   public static final int S_IRUSR = 0000400;
@@ -107,46 +155,549 @@ public final class EmacsSafThread extends HandlerThread
      cache.  */
   public static final int CACHE_PRUNE_TIME = 10;
 
-  /* Number of seconds after which an entry in the cache is to be
-     considered invalid.  */
+  /* Number of seconds after which an entry in the cache is
+     initially considered invalid.  This is subsequently adjusted for
+     each authority by its `CachePolicy'.  */
   public static final int CACHE_INVALID_TIME = 10;
 
+  /* Minimum and maximum number of seconds to which the lifetime of
+     cache entries is adjusted.  */
+  public static final int CACHE_MIN_INVALID_TIME = 2;
+  public static final int CACHE_MAX_INVALID_TIME = 300;
+
+  /* Number of seconds after which an entry in the cache is to be
+     considered invalid, if its document provider is known to send
+     change notifications.  */
+  public static final int CACHE_OBSERVED_INVALID_TIME = 300;
+
+  /* Number of seconds after which a record of the absence of a
+     document is considered invalid, unless its document provider is
+     known to send change notifications.  */
+  public static final int CACHE_MISSING_TIME = 10;
+
+  /* Number of seconds after Emacs begins or finishes modifying a
+     document during which change notifications for the authority
+     providing it are attributed to Emacs.  */
+  public static final int CACHE_OWN_CHANGE_TIME = 5;
+
+  /* Maximum number of entries within each of the caches in a
+     toplevel.  */
+  public static final int CACHE_MAX_ENTRIES = 65536;
+
+  /* Maximum number of children cached for any single directory.  */
+  public static final int CACHE_MAX_CHILDREN = 16384;
+
+  /* Maximum number of directories whose complete contents are
+     indexed by name in each toplevel.  */
+  public static final int CACHE_MAX_NAME_INDEXES = 64;
+
+  /* Maximum number of bytes the caches within a toplevel may consume,
+     unless limited further by the size of the Java heap.  */
+  public static final long CACHE_MAX_BYTES = 8 * 1024 * 1024;
+
+  /* Maximum number of subdirectories listed in advance after a
+     directory is opened.  */
+  public static final int PREFETCH_MAX_DIRECTORIES = 32;
+
+  /* Maximum number of directories listed simultaneously by a tree
+     walk.  */
+  public static final int WALK_MAX_PARALLEL = 4;
+
+  /* Create a SAF thread using RESOLVER to access documents.  If
+     FILESDIR is set, save persistent indices of the contents of each
+     tree within a directory inside it.  If CACHEDIR is set, save
+     local copies of documents and documents being saved in the
+     background within directories inside it.  */
+
   public
-  EmacsSafThread (ContentResolver resolver)
+  EmacsSafThread (ContentResolver resolver, File filesDir,
+		  File cacheDir)
   {
-    super ("Document provider access thread");
+    int i;
+
     this.resolver = resolver;
-    this.cacheToplevels = new HashMap<Uri, CacheToplevel> ();
+    setIndexDirectory (filesDir);
+    this.spool = (cacheDir != null
+		  ? new EmacsSafSpool (new File (cacheDir, "saf-spool"))
+		  : null);
+    this.staging = (cacheDir != null
+		    ? new EmacsSafStaging (resolver, this,
+					   new File (cacheDir,
+						     "saf-staging"))
+		    : null);
+    this.workers = new SafWorker[WORKER_COUNT];
+    this.workerAssignments = new HashMap<String, SafWorker> ();
+
+    for (i = 0; i < WORKER_COUNT; ++i)
+      workers[i] = new SafWorker (i);
   }
 
+  /* Save persistent indices of the contents of each tree within a
+     directory inside FILESDIR, or cease to consult and update them if
+     FILESDIR is NULL.  Indices already loaded are retained, and
+     consulted again once they are enabled.  */
+
+  public void
+  setIndexDirectory (File filesDir)
+  {
+    indexDirectory = (filesDir != null
+		      ? new File (filesDir, "saf-index")
+		      : null);
+  }
 
 
-  @Override
+  /* Thread running SAF operations on behalf of the trees assigned to
+     it.  */
+
+  private final class SafWorker extends HandlerThread
+  {
+    /* Handler for this thread's main loop.  */
+    Handler handler;
+
+    /* Map between tree URIs and the cache entry representing its
+       toplevel directory.  Only accessed from this thread.  */
+    final HashMap<Uri, CacheToplevel> cacheToplevels;
+
+    /* Request reused for each function run within this thread.  */
+    final SafRequest request;
+
+    /* Whether REQUEST is in use.  */
+    boolean requestBusy;
+
+    /* Prefetch under way within this thread, or NULL.  */
+    SafPrefetch prefetch;
+
+    public
+    SafWorker (int number)
+    {
+      super ("Document provider access thread " + number);
+      this.cacheToplevels = new HashMap<Uri, CacheToplevel> ();
+      this.request = new SafRequest ();
+    }
+
+    /* Post REQUEST to this thread.  */
+
+    public synchronized void
+    postRequest (SafRequest request)
+    {
+      /* Requests from Emacs take precedence over prefetching.  */
+
+      if (prefetch != null)
+	{
+	  prefetch.signal.cancel ();
+	  prefetch = null;
+	}
+
+      handler.post (request);
+    }
+
+    @Override
+    public void
+    start ()
+    {
+      super.start ();
+
+      /* Set up the handler after the thread starts.  */
+      handler = new Handler (getLooper ());
+
+      /* And start periodically pruning the cache.  */
+      postPruneMessage (this);
+    }
+  };
+
+  /* Start each of the worker threads.  */
+
   public void
   start ()
   {
-    super.start ();
+    for (SafWorker worker : workers)
+      worker.start ();
+  }
+
+  /* Return the worker responsible for the tree identified by URI,
+     assigning one if URI has not been encountered before.  URI is
+     the string form of a tree URI.  */
+
+  private SafWorker
+  getWorker (String uri)
+  {
+    SafWorker worker;
+
+    synchronized (workerAssignments)
+      {
+	worker = workerAssignments.get (uri);
+
+	if (worker == null)
+	  {
+	    /* Distribute trees evenly among the workers.  */
+	    worker = workers[workerAssignments.size () % WORKER_COUNT];
+	    workerAssignments.put (uri, worker);
+	  }
+
+	return worker;
+      }
+  }
+
+  /* Speculative listing of the subdirectories of a directory that has
+     been opened, run within a worker thread at a low priority until
+     they are exhausted or a request from Emacs arrives.  */
+
+  private final class SafPrefetch implements Runnable
+  {
+    /* The worker running this prefetch.  */
+    final SafWorker worker;
+
+    /* The tree holding the directories.  */
+    final Uri tree;
+
+    /* IDs of the directories yet to be listed.  */
+    final List<String> directories;
+
+    /* Cancellation signal for the listing under way.  */
+    final CancellationSignal signal;
+
+    public
+    SafPrefetch (SafWorker worker, Uri tree, List<String> directories)
+    {
+      this.worker = worker;
+      this.tree = tree;
+      this.directories = directories;
+      this.signal = new CancellationSignal ();
+    }
+
+    @Override
+    public void
+    run ()
+    {
+      String documentId;
+
+      synchronized (worker)
+	{
+	  /* Return if this prefetch has been abandoned or
+	     completed.  */
+
+	  if (worker.prefetch != this)
+	    return;
+
+	  if (directories.isEmpty ())
+	    {
+	      worker.prefetch = null;
+	      return;
+	    }
+	}
+
+      documentId = directories.remove (directories.size () - 1);
+      Process.setThreadPriority (Process.THREAD_PRIORITY_BACKGROUND);
+
+      try
+	{
+	  prefetchDirectory (tree, documentId, signal);
+	}
+      catch (Throwable throwable)
+	{
+	  /* The prefetch was canceled, or the provider failed; in
+	     either case, give up.  */
+	  directories.clear ();
+	}
+      finally
+	{
+	  Process.setThreadPriority (Process.THREAD_PRIORITY_DEFAULT);
+	}
+
+      /* List the next directory after any other messages pending in
+	 this thread.  */
+      worker.handler.post (this);
+    }
+  };
 
-    /* Set up the handler after the thread starts.  */
-    handler = new Handler (getLooper ());
+  /* Return the worker responsible for the tree URI.  */
 
-    /* And start periodically pruning the cache.  */
-    postPruneMessage ();
+  private SafWorker
+  getWorker (Uri uri)
+  {
+    return getWorker (uri.toString ());
   }
 
 
   private static final class CacheToplevel
   {
+    /* Limit on the memory consumed by the caches below.  The
+       children of each entry in `idCache' are charged to that
+       entry.  */
+    EmacsLruCache.Budget budget;
+
     /* Map between document names and children.  */
-    HashMap<String, DocIdEntry> children;
+    EmacsLruCache<String, DocIdEntry> children;
 
     /* Map between document names and file status.  */
-    HashMap<String, StatCacheEntry> statCache;
+    EmacsLruCache<String, StatCacheEntry> statCache;
 
     /* Map between document IDs and cache items.  */
-    HashMap<String, CacheEntry> idCache;
+    EmacsLruCache<String, CacheEntry> idCache;
+
+    /* Map between the keys produced by `missingKey' and the times at
+       which the document they designate was found not to exist.  */
+    EmacsLruCache<String, Long> missing;
+
+    /* Map between the IDs of directories and indexes of their
+       complete contents.  */
+    EmacsLruCache<String, NameIndex> nameIndexes;
+
+    /* The tree URI this toplevel represents.  */
+    Uri tree;
+
+    /* Content observer monitoring this tree for changes, or NULL if
+       it could not be registered.  */
+    ContentObserver observer;
+
+    /* Whether a change notification not attributable to Emacs's own
+       modifications has ever been received for this tree.  */
+    boolean notifying;
+
+    /* Persistent index of this tree, or NULL if not yet loaded.  */
+    EmacsSafIndex index;
+
+    /* Map between the IDs of directories whose records in INDEX have
+       been validated and the times of their validation.  */
+    HashMap<String, Long> validDirectories;
+
+    /* Policy of the authority providing this tree.  */
+    CachePolicy policy;
+
+    /* Counters of the outcomes of lookups within this toplevel.  */
+    EmacsSafStatistics.CacheCounters counters;
+
+    /* Number of expired file status entries revalidated since the
+       lifetime of cache entries was last adjusted, and the number of
+       those that were stale.  */
+    int revalidated, staleRevalidated;
+
+    /* Number incremented each time documents might have been
+       created, deleted or renamed within directories that remain in
+       `idCache'.  */
+    int generation;
+
+    /* Return the number of milliseconds after which entries within
+       this toplevel are to be considered invalid.  */
+
+    public long
+    getInvalidTime ()
+    {
+      return policy.getInvalidTime (notifying);
+    }
+
+    /* Return the number of milliseconds after which records of the
+       absence of documents within this toplevel, including indexes
+       of the complete contents of directories, are to be considered
+       invalid.  Documents created by other programs would otherwise
+       remain invisible for as long as the lifetime of other entries,
+       unless the provider reports their creation.  */
+
+    public long
+    getMissingTime ()
+    {
+      if (notifying)
+	return getInvalidTime ();
+
+      return Math.min (getInvalidTime (), CACHE_MISSING_TIME * 1000);
+    }
+  };
+
+  /* Policy governing the lifetime of cache entries for the documents
+     of an authority.  The lifetime is shortened each time a request
+     finds cache entries to be stale when they are revalidated after
+     expiring, and lengthened each time a request finds them to be
+     unchanged, unless the user has specified a lifetime.  */
+
+  private static final class CachePolicy
+  {
+    /* Lifetime of cache entries in milliseconds.  */
+    private long lifetime;
+
+    /* Lifetime specified by the user in milliseconds, or -1.  */
+    private long override;
+
+    /* Number of cache entries revalidated, and the number of those
+       that were stale.  */
+    private long revalidations, stale;
+
+    /* Whether the authority's provider is known to return every
+       document within a directory when asked for one by name.  */
+    private volatile boolean ignoresSelection;
+
+    /* Time until which change notifications are attributed to Emacs's
+       own modifications of the authority's documents.  */
+    private long ownChangeTime;
+
+    public
+    CachePolicy ()
+    {
+      lifetime = CACHE_INVALID_TIME * 1000;
+      override = -1;
+    }
+
+    /* Return the number of milliseconds after which cache entries are
+       to be considered invalid.  NOTIFYING means the tree holding
+       them is known to send change notifications.  */
+
+    public synchronized long
+    getInvalidTime (boolean notifying)
+    {
+      if (override >= 0)
+	return override;
+
+      return (notifying
+	      ? CACHE_OBSERVED_INVALID_TIME * 1000
+	      : lifetime);
+    }
+
+    /* Record the revalidation of COUNT expired cache entries by a
+       single request or directory listing, STALE of which had
+       changed, and adjust the lifetime once accordingly.  */
+
+    public synchronized void
+    recordRevalidation (int count, int stale)
+    {
+      revalidations += count;
+      this.stale += stale;
+
+      if (stale > 0)
+	lifetime = Math.max (CACHE_MIN_INVALID_TIME * 1000,
+			     lifetime / 2);
+      else
+	lifetime = Math.min (CACHE_MAX_INVALID_TIME * 1000,
+			     lifetime + lifetime / 4);
+    }
+
+    /* Set the lifetime specified by the user to LIFETIME, or remove
+       it if LIFETIME is negative.  */
+
+    public synchronized void
+    setOverride (long lifetime)
+    {
+      override = lifetime < 0 ? -1 : lifetime;
+    }
+
+    /* Record that Emacs is modifying a document provided by the
+       authority, so that change notifications its provider sends in
+       consequence are not taken to mean that it reports changes made
+       by other programs.  */
+
+    public synchronized void
+    recordOwnChange ()
+    {
+      ownChangeTime = (SystemClock.uptimeMillis ()
+		       + CACHE_OWN_CHANGE_TIME * 1000);
+    }
+
+    /* Return whether a change notification received now is likely to
+       have been caused by Emacs's own modifications.  */
+
+    public synchronized boolean
+    isOwnChange ()
+    {
+      return SystemClock.uptimeMillis () < ownChangeTime;
+    }
+
+    /* Record that the provider ignores selections by name.  */
+
+    public void
+    setIgnoresSelection ()
+    {
+      ignoresSelection = true;
+    }
+
+    /* Return whether the provider ignores selections by name.  */
+
+    public boolean
+    getIgnoresSelection ()
+    {
+      return ignoresSelection;
+    }
+
+    /* Return the statistics of this policy, in the format returned by
+       `getCacheStatistics'.  */
+
+    public synchronized long[]
+    getStatistics ()
+    {
+      return new long[] { getInvalidTime (false), revalidations,
+			  stale, override >= 0 ? 1 : 0, };
+    }
   };
 
+  /* Map between authorities and their cache policies.  */
+  private static final HashMap<String, CachePolicy> cachePolicies
+    = new HashMap<String, CachePolicy> ();
+
+  /* Return the cache policy of AUTHORITY, creating it if
+     necessary.  */
+
+  private static CachePolicy
+  getCachePolicy (String authority)
+  {
+    CachePolicy policy;
+
+    synchronized (cachePolicies)
+      {
+	policy = cachePolicies.get (authority);
+
+	if (policy == null)
+	  {
+	    policy = new CachePolicy ();
+	    cachePolicies.put (authority, policy);
+	  }
+
+	return policy;
+      }
+  }
+
+  /* Set the lifetime of cache entries for documents provided by
+     AUTHORITY to SECONDS, or if SECONDS is negative, let it be
+     adjusted automatically.  */
+
+  public static void
+  setCacheLifetime (String authority, double seconds)
+  {
+    getCachePolicy (authority).setOverride (seconds < 0 ? -1
+					    : (long) (seconds * 1000));
+  }
+
+  /* Record that Emacs is about to modify, or has just modified, a
+     document within the tree URI.  Call this both before and after
+     each modification, so that the change notifications it causes
+     are not mistaken for reports of changes made by other
+     programs.  */
+
+  public static void
+  recordChange (Uri uri)
+  {
+    getCachePolicy (uri.getAuthority ()).recordOwnChange ();
+  }
+
+  /* Return the authorities for which cache policies exist.  */
+
+  public static String[]
+  getCacheAuthorities ()
+  {
+    synchronized (cachePolicies)
+      {
+	return cachePolicies.keySet ().toArray (new String[0]);
+      }
+  }
+
+  /* Return an array describing the cache policy of AUTHORITY: the
+     lifetime of cache entries in milliseconds, the number of entries
+     revalidated after expiring, the number of those that were stale,
+     and 1 if the lifetime was specified by the user or 0
+     otherwise.  */
+
+  public static long[]
+  getCacheStatistics (String authority)
+  {
+    return getCachePolicy (authority).getStatistics ();
+  }
+
   private static final class StatCacheEntry
   {
     /* The time at which this cache entry was created.  */
@@ -164,11 +715,22 @@ public final class EmacsSafThread extends HandlerThread
       time = SystemClock.uptimeMillis ();
     }
 
+    /* Return whether ENTRY describes the same file status as this
+       entry.  */
+
+    public boolean
+    sameStatus (StatCacheEntry entry)
+    {
+      return (flags == entry.flags && size == entry.size
+	      && mtime == entry.mtime
+	      && isDirectory == entry.isDirectory);
+    }
+
     public boolean
-    isValid ()
+    isValid (CacheToplevel toplevel)
     {
       return ((SystemClock.uptimeMillis () - time)
-	      < CACHE_INVALID_TIME * 1000);
+	      < toplevel.getInvalidTime ());
     }
   };
 
@@ -177,6 +739,9 @@ public final class EmacsSafThread extends HandlerThread
     /* The document ID.  */
     String documentId;
 
+    /* The MIME type of the document, or NULL if unknown.  */
+    String type;
+
     /* The time this entry was created.  */
     long time;
 
@@ -258,10 +823,10 @@ public final class EmacsSafThread extends HandlerThread
     }
 
     public boolean
-    isValid ()
+    isValid (CacheToplevel toplevel)
     {
       return ((SystemClock.uptimeMillis () - time)
-	      < CACHE_INVALID_TIME * 1000);
+	      < toplevel.getInvalidTime ());
     }
   };
 
@@ -271,88 +836,610 @@ public final class EmacsSafThread extends HandlerThread
     String type;
 
     /* Map between document names and children.  */
-    HashMap<String, DocIdEntry> children;
+    EmacsLruCache<String, DocIdEntry> children;
 
     /* The time this entry was created.  */
     long time;
 
+    /* The cache holding this entry and its ID there, or NULL if it
+       has not yet been entered into a cache.  */
+    IdCache owner;
+    String documentId;
+
+    /* Whether this entry has been removed from OWNER.  */
+    boolean released;
+
+    /* Whether CHILDREN holds every child of this directory, and the
+       generation of its toplevel at the time it was listed.  */
+    boolean complete;
+    int generation;
+
     public
     CacheEntry ()
     {
-      children = new HashMap<String, DocIdEntry> ();
+      children = new ChildCache (this);
       time = SystemClock.uptimeMillis ();
     }
 
+    /* Charge the memory consumed by this entry's children to the
+       cache holding it, if any.  */
+
+    public void
+    charge ()
+    {
+      if (owner != null && !released)
+	owner.resize (documentId, this);
+    }
+
+    /* Return whether CHILDREN can be relied upon to hold every child
+       of this directory within TOPLEVEL.  As with indexes of the
+       complete contents of directories, this is limited to the
+       lifetime of records of the absence of documents.  */
+
+    public boolean
+    isComplete (CacheToplevel toplevel)
+    {
+      return (complete && generation == toplevel.generation
+	      && ((SystemClock.uptimeMillis () - time)
+		  < toplevel.getMissingTime ()));
+    }
+
     public boolean
-    isValid ()
+    isValid (CacheToplevel toplevel)
     {
       return ((SystemClock.uptimeMillis () - time)
-	      < CACHE_INVALID_TIME * 1000);
+	      < toplevel.getInvalidTime ());
     }
   };
 
-  /* Create or return a toplevel for the given tree URI.  */
+  /* Caches of the various types within a toplevel, which estimate
+     the memory consumed by their contents.  */
 
-  private CacheToplevel
-  getCache (Uri uri)
+  private static final class ChildCache
+    extends EmacsLruCache<String, DocIdEntry>
   {
-    CacheToplevel toplevel;
+    /* The directory whose children these are, or NULL if they are
+       those of the root of the tree.  */
+    private final CacheEntry directory;
 
-    toplevel = cacheToplevels.get (uri);
+    /* Create a cache of the children of the root of a tree, charged
+       to BUDGET.  */
 
-    if (toplevel != null)
-      return toplevel;
+    public
+    ChildCache (int maxEntries, EmacsLruCache.Budget budget)
+    {
+      super (maxEntries, budget);
+      this.directory = null;
+    }
 
-    toplevel = new CacheToplevel ();
-    toplevel.children = new HashMap<String, DocIdEntry> ();
-    toplevel.statCache = new HashMap<String, StatCacheEntry> ();
-    toplevel.idCache = new HashMap<String, CacheEntry> ();
-    cacheToplevels.put (uri, toplevel);
-    return toplevel;
-  }
+    /* Create a cache of the children of DIRECTORY.  It has no budget
+       of its own; the memory it consumes is instead charged to
+       DIRECTORY's entry in its `IdCache', so that a directory is
+       evicted together with its children.  Children removed are
+       credited to it the next time the directory's entry is
+       resized.  */
 
-  /* Remove each cache entry within COLLECTION older than
-     CACHE_INVALID_TIME.  */
+    public
+    ChildCache (CacheEntry directory)
+    {
+      super (CACHE_MAX_CHILDREN, null);
+      this.directory = directory;
+    }
 
-  private void
-  pruneCache1 (Collection<DocIdEntry> collection)
-  {
-    Iterator<DocIdEntry> iter;
-    DocIdEntry tem;
+    @Override
+    public void
+    put (String name, DocIdEntry entry)
+    {
+      /* Don't record children of a directory no longer cached, as
+	 nothing would ever release them.  */
 
-    iter = collection.iterator ();
-    while (iter.hasNext ())
-      {
-	/* Get the cache entry.  */
-	tem = iter.next ();
+      if (directory != null && directory.released)
+	return;
 
-	/* If it's not valid anymore, remove it.  Iterating over a
-	   collection whose contents are being removed is undefined
-	   unless the removal is performed using the iterator's own
-	   `remove' function, so tem.remove cannot be used here.  */
+      super.put (name, entry);
 
-	if (tem.isValid ())
-	  continue;
+      if (directory != null)
+	directory.charge ();
+    }
 
-	iter.remove ();
-      }
-  }
+    @Override
+    protected int
+    sizeOf (String name, DocIdEntry entry)
+    {
+      return (stringSize (name) + stringSize (entry.documentId)
+	      + stringSize (entry.type) + 32);
+    }
 
-  /* Remove every entry older than CACHE_INVALID_TIME from each
-     toplevel inside `cachedToplevels'.  */
+    @Override
+    protected void
+    entryRemoved (String name, DocIdEntry entry, boolean evicted)
+    {
+      /* The directory's listing is no longer complete once children
+	 are evicted to make room for others.  */
 
-  private void
-  pruneCache ()
+      if (evicted && directory != null)
+	directory.complete = false;
+    }
+  };
+
+  private static final class StatCache
+    extends EmacsLruCache<String, StatCacheEntry>
+  {
+    public
+    StatCache (int maxEntries, EmacsLruCache.Budget budget)
+    {
+      super (maxEntries, budget);
+    }
+
+    @Override
+    protected int
+    sizeOf (String documentId, StatCacheEntry entry)
+    {
+      return stringSize (documentId) + 48;
+    }
+  };
+
+  private static final class IdCache
+    extends EmacsLruCache<String, CacheEntry>
+  {
+    public
+    IdCache (int maxEntries, EmacsLruCache.Budget budget)
+    {
+      super (maxEntries, budget);
+    }
+
+    @Override
+    protected int
+    sizeOf (String documentId, CacheEntry entry)
+    {
+      return (int) (stringSize (documentId) + stringSize (entry.type)
+		    + 96 + entry.children.getBytes ());
+    }
+
+    @Override
+    public void
+    put (String documentId, CacheEntry entry)
+    {
+      entry.owner = this;
+      entry.documentId = documentId;
+      super.put (documentId, entry);
+    }
+
+    @Override
+    protected void
+    entryRemoved (String documentId, CacheEntry entry,
+		  boolean evicted)
+    {
+      /* ENTRY's children were released with it; don't let them be
+	 added to afterwards.  */
+      entry.released = true;
+      entry.children.clear ();
+    }
+  };
+
+  private static final class MissingCache
+    extends EmacsLruCache<String, Long>
+  {
+    public
+    MissingCache (int maxEntries, EmacsLruCache.Budget budget)
+    {
+      super (maxEntries, budget);
+    }
+
+    @Override
+    protected int
+    sizeOf (String key, Long time)
+    {
+      return stringSize (key) + 16;
+    }
+  };
+
+  /* Index of the complete contents of a directory, built from a full
+     listing of the directory.  It answers lookups by name, including
+     lookups of documents that don't exist, without consulting the
+     provider.  This is useful when the provider ignores selections by
+     name, as each lookup would otherwise read the entire directory.  */
+
+  private static final class NameIndex
+  {
+    /* Maps between the display names of the directory's children and
+       their document IDs and MIME types.  */
+    HashMap<String, String> ids, types;
+
+    /* Estimated number of bytes consumed by this index.  */
+    int size;
+
+    /* The time this index was created.  */
+    long time;
+
+    public
+    NameIndex ()
+    {
+      ids = new HashMap<String, String> ();
+      types = new HashMap<String, String> ();
+      time = SystemClock.uptimeMillis ();
+    }
+
+    /* Add a child named NAME with the document ID ID and the MIME type
+       TYPE.  */
+
+    public void
+    add (String name, String id, String type)
+    {
+      ids.put (name, id);
+      types.put (name, type);
+      size += (EmacsLruCache.stringSize (name)
+	       + EmacsLruCache.stringSize (id) + 64);
+    }
+
+    public boolean
+    isValid (CacheToplevel toplevel)
+    {
+      return ((SystemClock.uptimeMillis () - time)
+	      < toplevel.getMissingTime ());
+    }
+  };
+
+  private static final class NameIndexCache
+    extends EmacsLruCache<String, NameIndex>
+  {
+    public
+    NameIndexCache (int maxEntries, EmacsLruCache.Budget budget)
+    {
+      super (maxEntries, budget);
+    }
+
+    @Override
+    protected int
+    sizeOf (String documentId, NameIndex index)
+    {
+      return stringSize (documentId) + index.size;
+    }
+  };
+
+  /* Record the outcome of looking up ENTRY within the file status
+   cache of TOPLEVEL.  */
+
+  private static void
+  recordStatLookup (CacheToplevel toplevel, StatCacheEntry entry)
+  {
+    if (entry == null)
+      toplevel.counters.record (EmacsSafStatistics.CACHE_MISS);
+    else if (!entry.isValid (toplevel))
+      toplevel.counters.record (EmacsSafStatistics.CACHE_EXPIRED);
+    else
+      toplevel.counters.record (EmacsSafStatistics.CACHE_HIT);
+  }
+
+  /* Create or return a toplevel for the given tree URI.  */
+
+  private CacheToplevel
+  getCache (Uri uri)
+  {
+    CacheToplevel toplevel;
+    SafWorker worker;
+    long maxBytes;
+
+    worker = getWorker (uri);
+    toplevel = worker.cacheToplevels.get (uri);
+
+    if (toplevel != null)
+      return toplevel;
+
+    /* Don't permit the cache to consume more than a sixteenth of the
+       heap on devices with little memory.  */
+    maxBytes = Math.min (CACHE_MAX_BYTES,
+			 Runtime.getRuntime ().maxMemory () / 16);
+
+    toplevel = new CacheToplevel ();
+    toplevel.budget = new EmacsLruCache.Budget (maxBytes);
+    toplevel.children = new ChildCache (CACHE_MAX_ENTRIES,
+					toplevel.budget);
+    toplevel.statCache = new StatCache (CACHE_MAX_ENTRIES,
+					toplevel.budget);
+    toplevel.idCache = new IdCache (CACHE_MAX_ENTRIES, toplevel.budget);
+    toplevel.missing = new MissingCache (CACHE_MAX_ENTRIES,
+					 toplevel.budget);
+    toplevel.nameIndexes = new NameIndexCache (CACHE_MAX_NAME_INDEXES,
+					       toplevel.budget);
+
+    /* When the budget is exhausted, discard directories first, as
+       they also hold their children.  */
+    toplevel.budget.setPrimary (toplevel.idCache);
+    toplevel.tree = uri;
+    toplevel.validDirectories = new HashMap<String, Long> ();
+    toplevel.policy = getCachePolicy (uri.getAuthority ());
+    toplevel.counters
+      = EmacsSafStatistics.getCacheCounters (uri.toString ());
+    worker.cacheToplevels.put (uri, toplevel);
+    registerObserver (worker, toplevel);
+    return toplevel;
+  }
+
+  /* Content observer that evicts documents from the cache within
+     TOPLEVEL as the document provider reports changes to them.  */
+
+  private final class CacheObserver extends ContentObserver
+  {
+    /* The toplevel whose contents are being monitored.  */
+    private final CacheToplevel toplevel;
+
+    public
+    CacheObserver (Handler handler, CacheToplevel toplevel)
+    {
+      super (handler);
+      this.toplevel = toplevel;
+    }
+
+    @Override
+    public void
+    onChange (boolean selfChange)
+    {
+      onChange (selfChange, null);
+    }
+
+    @Override
+    public void
+    onChange (boolean selfChange, Uri uri)
+    {
+      /* Providers also report changes made by Emacs itself, which
+	 say nothing about whether changes made by other programs are
+	 reported.  */
+
+      if (!toplevel.policy.isOwnChange ())
+	toplevel.notifying = true;
+
+      invalidateFromUri (toplevel, uri);
+    }
+  };
+
+  /* Register a content observer for changes to documents within
+     TOPLEVEL's tree, whose notifications are delivered to WORKER.
+
+     Document providers notify changes through document and child
+     document URIs, which don't lie beneath the tree URI itself, so
+     the observer must monitor the tree's entire authority.  */
+
+  private void
+  registerObserver (SafWorker worker, CacheToplevel toplevel)
+  {
+    Uri authority;
+    ContentObserver observer;
+
+    authority = Uri.parse ("content://" + toplevel.tree.getAuthority ());
+    observer = new CacheObserver (worker.handler, toplevel);
+
+    try
+      {
+	resolver.registerContentObserver (authority, true, observer);
+	toplevel.observer = observer;
+      }
+    catch (Exception e)
+      {
+	/* Providers are free to refuse observers, in which case the
+	   time limit on cache entries continues to apply.  */
+	Log.w (TAG, "Unable to monitor " + toplevel.tree + ": " + e);
+      }
+  }
+
+  /* Remove the document designated by DOCUMENTID from the cache
+     within TOPLEVEL, together with every cached document beneath it.
+     Value is the set of the IDs of the documents removed.  */
+
+  private Set<String>
+  evictSubtree (CacheToplevel toplevel, String documentId)
+  {
+    List<String> pending;
+    Set<String> evicted;
+    CacheEntry entry;
+    String id;
+
+    pending = new ArrayList<String> ();
+    pending.add (documentId);
+    evicted = new HashSet<String> ();
+
+    /* The children of the root of the tree are recorded in the
+       toplevel itself.  */
+    id = DocumentsContract.getTreeDocumentId (toplevel.tree);
+
+    if (documentId.equals (id))
+      {
+	for (DocIdEntry idEntry : toplevel.children)
+	  pending.add (idEntry.documentId);
+
+	toplevel.children.clear ();
+      }
+
+    while (!pending.isEmpty ())
+      {
+	id = pending.remove (pending.size () - 1);
+
+	if (!evicted.add (id))
+	  continue;
+
+	toplevel.statCache.remove (id);
+	toplevel.nameIndexes.remove (id);
+	toplevel.validDirectories.remove (id);
+	entry = toplevel.idCache.peek (id);
+
+	if (entry == null)
+	  continue;
+
+	/* Removing ENTRY releases its children, so enumerate them
+	   first.  */
+
+	for (DocIdEntry idEntry : entry.children)
+	  pending.add (idEntry.documentId);
+
+	toplevel.idCache.remove (id);
+      }
+
+    return evicted;
+  }
+
+  /* Remove each record of the absence of a document from a directory
+     within TOPLEVEL whose ID is in DIRECTORIES.  */
+
+  private static void
+  forgetMissing (CacheToplevel toplevel, Set<String> directories)
+  {
+    Iterator<Map.Entry<String, Long>> iter;
+    String key;
+
+    iter = toplevel.missing.entryIterator ();
+
+    while (iter.hasNext ())
+      {
+	key = iter.next ().getKey ();
+
+	if (directories.contains (key.substring (0, key.indexOf ('\0'))))
+	  iter.remove ();
+      }
+  }
+
+  /* Invalidate the portion of the cache within TOPLEVEL affected by a
+     change notification for URI, which is either a document URI, a
+     child documents URI, or NULL if the provider did not specify what
+     changed.  */
+
+  private void
+  invalidateFromUri (CacheToplevel toplevel, Uri uri)
+  {
+    List<String> segments;
+    Iterator<NameIndex> iter;
+    Set<String> evicted;
+    String documentId;
+    int index;
+
+    segments = (uri != null ? uri.getPathSegments () : null);
+    index = (segments != null ? segments.indexOf ("document") : -1);
+
+    if (index < 0 || index + 1 >= segments.size ())
+      {
+	/* The extent of the change is unknown, so discard everything
+	   cached for this tree.  */
+	toplevel.children.clear ();
+	toplevel.statCache.clear ();
+	toplevel.idCache.clear ();
+	toplevel.missing.clear ();
+	toplevel.nameIndexes.clear ();
+	toplevel.validDirectories.clear ();
+	return;
+      }
+
+    /* URI is either `.../document/ID' or `.../document/ID/children';
+       in both cases, remove ID and its descendants.  Notifications
+       concerning documents in other trees provided by the same
+       authority affect nothing recorded here.  */
+    documentId = segments.get (index + 1);
+    evicted = evictSubtree (toplevel, documentId);
+
+    /* Documents previously recorded as missing might have been
+       created within any of the directories removed.  */
+    forgetMissing (toplevel, evicted);
+
+    /* If the document has been deleted or renamed, any index of the
+       contents of the directory holding it is also out of date.  */
+
+    iter = toplevel.nameIndexes.iterator ();
+
+    while (iter.hasNext ())
+      {
+	if (iter.next ().ids.containsValue (documentId))
+	  iter.remove ();
+      }
+
+    /* So is the listing of that directory's children, which is not
+       known.  */
+    toplevel.generation++;
+  }
+
+  /* Return the key under which the absence of a document named NAME
+     within the directory PARENT is recorded.  */
+
+  private static String
+  missingKey (String parent, String name)
+  {
+    return parent + '\0' + name;
+  }
+
+  /* Return whether a document named NAME within the directory
+     designated by PARENT was recently found not to exist within
+     TOPLEVEL.  */
+
+  private boolean
+  isMissing (CacheToplevel toplevel, String parent, String name)
+  {
+    Long time;
+
+    time = toplevel.missing.get (missingKey (parent, name));
+
+    if (time == null)
+      return false;
+
+    if (SystemClock.uptimeMillis () - time >= toplevel.getMissingTime ())
+      {
+	toplevel.missing.remove (missingKey (parent, name));
+	return false;
+      }
+
+    return true;
+  }
+
+  /* Remove each cache entry within COLLECTION older than
+     CACHE_INVALID_TIME.  Value is whether any were removed.  */
+
+  private boolean
+  pruneCache1 (CacheToplevel toplevel,
+	       EmacsLruCache<String, DocIdEntry> collection)
+  {
+    Iterator<DocIdEntry> iter;
+    DocIdEntry tem;
+    boolean removed;
+
+    removed = false;
+
+    iter = collection.iterator ();
+    while (iter.hasNext ())
+      {
+	/* Get the cache entry.  */
+	tem = iter.next ();
+
+	/* If it's not valid anymore, remove it.  Iterating over a
+	   collection whose contents are being removed is undefined
+	   unless the removal is performed using the iterator's own
+	   `remove' function, so tem.remove cannot be used here.  */
+
+	if (tem.isValid (toplevel))
+	  continue;
+
+	iter.remove ();
+	removed = true;
+      }
+
+    return removed;
+  }
+
+  /* Remove every entry older than CACHE_INVALID_TIME from each
+     toplevel inside WORKER's `cacheToplevels'.  */
+
+  private void
+  pruneCache (SafWorker worker)
   {
     Iterator<CacheEntry> iter;
     Iterator<StatCacheEntry> statIter;
+    Iterator<Long> missingIter;
+    Iterator<NameIndex> indexIter;
     CacheEntry tem;
     StatCacheEntry stat;
+    long now;
 
-    for (CacheToplevel toplevel : cacheToplevels.values ())
+    now = SystemClock.uptimeMillis ();
+
+    for (CacheToplevel toplevel : worker.cacheToplevels.values ())
       {
 	/* First, clean up expired cache entries.  */
-	iter = toplevel.idCache.values ().iterator ();
+	iter = toplevel.idCache.iterator ();
 
 	while (iter.hasNext ())
 	  {
@@ -365,18 +1452,19 @@ public final class EmacsSafThread extends HandlerThread
 	       iterator's own `remove' function, so tem.remove cannot
 	       be used here.  */
 
-	    if (tem.isValid ())
+	    if (tem.isValid (toplevel))
 	      {
 		/* Otherwise, clean up expired items in its document
 		   ID cache.  */
-		pruneCache1 (tem.children.values ());
+		if (pruneCache1 (toplevel, tem.children))
+		  tem.complete = false;
 		continue;
 	      }
 
 	    iter.remove ();
 	  }
 
-	statIter = toplevel.statCache.values ().iterator ();
+	statIter = toplevel.statCache.iterator ();
 
 	while (statIter.hasNext ())
 	  {
@@ -389,14 +1477,48 @@ public final class EmacsSafThread extends HandlerThread
 	       iterator's own `remove' function, so tem.remove cannot
 	       be used here.  */
 
-	    if (stat.isValid ())
+	    if (stat.isValid (toplevel))
 	      continue;
 
 	    statIter.remove ();
 	  }
+
+	missingIter = toplevel.missing.iterator ();
+
+	while (missingIter.hasNext ())
+	  {
+	    if (now - missingIter.next () < toplevel.getMissingTime ())
+	      continue;
+
+	    missingIter.remove ();
+	  }
+
+	indexIter = toplevel.nameIndexes.iterator ();
+
+	while (indexIter.hasNext ())
+	  {
+	    if (indexIter.next ().isValid (toplevel))
+	      continue;
+
+	    indexIter.remove ();
+	  }
+
+	/* Save the persistent index if it has changed.  */
+
+	if (toplevel.index != null && toplevel.index.isDirty ())
+	  {
+	    try
+	      {
+		toplevel.index.save ();
+	      }
+	    catch (IOException e)
+	      {
+		Log.w (TAG, "Failed to save index: " + e);
+	      }
+	  }
       }
 
-    postPruneMessage ();
+    postPruneMessage (worker);
   }
 
   /* Cache file information within TOPLEVEL, under the list of
@@ -414,7 +1536,7 @@ public final class EmacsSafThread extends HandlerThread
 
   private CacheEntry
   cacheChild (CacheToplevel toplevel,
-	      HashMap<String, DocIdEntry> children,
+	      EmacsLruCache<String, DocIdEntry> children,
 	      String name, String id, String type,
 	      boolean id_entry_exists)
   {
@@ -425,6 +1547,7 @@ public final class EmacsSafThread extends HandlerThread
       {
 	idEntry = new DocIdEntry ();
 	idEntry.documentId = id;
+	idEntry.type = type;
 	children.put (name, idEntry);
       }
 
@@ -486,16 +1609,59 @@ public final class EmacsSafThread extends HandlerThread
 
     /* Finally, add this entry to the cache and return.  */
     if (!no_cache)
-      toplevel.statCache.put (documentId, entry);
+      putFileStatus (documentId, toplevel, entry);
     return entry;
   }
 
+  /* Save the file status ENTRY for DOCUMENTID within TOPLEVEL.  If an
+     expired entry is being replaced, count it and whether it was
+     stale towards the next call to `adjustCacheLifetime'.  */
+
+  private static void
+  putFileStatus (String documentId, CacheToplevel toplevel,
+		 StatCacheEntry entry)
+  {
+    StatCacheEntry old;
+
+    old = toplevel.statCache.peek (documentId);
+
+    if (old != null && !old.isValid (toplevel))
+      {
+	toplevel.revalidated++;
+
+	if (!old.sameStatus (entry))
+	  toplevel.staleRevalidated++;
+      }
+
+    toplevel.statCache.put (documentId, entry);
+  }
+
+  /* Adjust the lifetime of cache entries within TOPLEVEL's authority
+     according to the expired entries revalidated since it was last
+     adjusted.  Call this once after each request or directory
+     listing, so that the lifetime is not adjusted once for every
+     document in a directory.  */
+
+  private static void
+  adjustCacheLifetime (CacheToplevel toplevel)
+  {
+    if (toplevel.revalidated == 0)
+      return;
+
+    toplevel.policy.recordRevalidation (toplevel.revalidated,
+					toplevel.staleRevalidated);
+    toplevel.revalidated = 0;
+    toplevel.staleRevalidated = 0;
+  }
+
   /* Cache the type and as many of the children of the directory
      designated by DOCUMENTID as possible into TOPLEVEL.
 
      CURSOR should be a cursor representing an open directory stream,
      with its projection consisting of at least the display name,
-     document ID and MIME type columns.
+     document ID and MIME type columns.  The file status of each
+     child is also cached if the projection includes the columns
+     required by `cacheFileStatus'.
 
      Rewind the position of CURSOR to before its first element after
      completion.  */
@@ -508,6 +1674,7 @@ public final class EmacsSafThread extends HandlerThread
     int nameColumn, idColumn, typeColumn;
     String id, name, type;
     DocIdEntry idEntry;
+    NameIndex names;
 
     /* Find the numbers of the columns wanted.  */
 
@@ -525,7 +1692,17 @@ public final class EmacsSafThread extends HandlerThread
 
     /* We know this is a directory already.  */
     entry.type = Document.MIME_TYPE_DIR;
-    toplevel.idCache.put (documentId, entry);
+
+    /* Its children are complete unless a row can't be read, or
+       children are evicted from ENTRY's cache of them.  */
+    entry.complete = true;
+    entry.generation = toplevel.generation;
+
+    /* If the provider is known to ignore selections by name, also
+       index the directory's contents, as `documentIdFromName1' would
+       otherwise read the directory in full for each lookup.  */
+    names = (toplevel.policy.getIgnoresSelection ()
+	     ? new NameIndex () : null);
 
     /* Now, try to cache each of its constituents.  */
 
@@ -538,13 +1715,21 @@ public final class EmacsSafThread extends HandlerThread
 	    type = cursor.getString (typeColumn);
 
 	    if (name == null || id == null || type == null)
-	      continue;
+	      {
+		names = null;
+		entry.complete = false;
+		continue;
+	      }
 
 	    /* First, add the name and ID to ENTRY's map of
 	       children.  */
 	    idEntry = new DocIdEntry ();
 	    idEntry.documentId = id;
-	    entry.children.put (id, idEntry);
+	    idEntry.type = type;
+	    entry.children.put (name, idEntry);
+
+	    if (names != null)
+	      names.add (name, id, type);
 
 	    /* Cache the file status for ID within TOPELVEL too; if a
 	       directory listing is being requested, it's very likely
@@ -563,38 +1748,110 @@ public final class EmacsSafThread extends HandlerThread
 	       type.  */
 	    constituent = new CacheEntry ();
 	    constituent.type = type;
-	    toplevel.idCache.put (documentId, entry);
+	    toplevel.idCache.put (id, constituent);
 	  }
 	catch (Exception e)
 	  {
 	    e.printStackTrace ();
+	    names = null;
+	    entry.complete = false;
 	    continue;
 	  }
       }
 
-    /* Rewind cursor back to the beginning.  */
+    /* Enter the directory into the cache once its children are
+       known, so that they are charged to it all at once.  */
+    toplevel.idCache.put (documentId, entry);
+    adjustCacheLifetime (toplevel);
+
+    if (names != null)
+      toplevel.nameIndexes.put (documentId, names);
+
+    /* Rewind cursor back to the beginning.  */
     cursor.moveToPosition (-1);
   }
 
-  /* Post a message to run `pruneCache' every CACHE_PRUNE_TIME
-     seconds.  */
+  /* Post a message to run `pruneCache' within WORKER every
+     CACHE_PRUNE_TIME seconds.  */
 
   private void
-  postPruneMessage ()
+  postPruneMessage (final SafWorker worker)
   {
-    handler.postDelayed (new Runnable () {
+    worker.handler.postDelayed (new Runnable () {
 	@Override
 	public void
 	run ()
 	{
-	  pruneCache ();
+	  pruneCache (worker);
 	}
       }, CACHE_PRUNE_TIME * 1000);
   }
 
+  /* Return the map of children cached for the directory designated
+     by the file name NAME within TOPLEVEL, or NULL if any of its
+     components is not cached.  */
+
+  private EmacsLruCache<String, DocIdEntry>
+  findChildren (CacheToplevel toplevel, String name)
+  {
+    EmacsLruCache<String, DocIdEntry> children;
+    DocIdEntry idEntry;
+    CacheEntry entry;
+
+    children = toplevel.children;
+
+    for (String component : name.split ("/"))
+      {
+	/* Java `split' removes trailing empty matches but not leading
+	   or intermediary ones.  */
+	if (component.isEmpty ())
+	  continue;
+
+	idEntry = children.get (component);
+
+	if (idEntry == null)
+	  return null;
+
+	entry = toplevel.idCache.get (idEntry.documentId);
+
+	if (entry == null)
+	  return null;
+
+	children = entry.children;
+      }
+
+    return children;
+  }
+
+  /* Remove the entry for DOCUMENTID from CHILDREN, and return the name
+     under which it was recorded, or NULL if there is none.  */
+
+  private static String
+  removeChild (EmacsLruCache<String, DocIdEntry> children,
+	       String documentId)
+  {
+    Iterator<Map.Entry<String, DocIdEntry>> iter;
+    Map.Entry<String, DocIdEntry> entry;
+
+    iter = children.entryIterator ();
+
+    while (iter.hasNext ())
+      {
+	entry = iter.next ();
+
+	if (entry.getValue ().documentId.equals (documentId))
+	  {
+	    iter.remove ();
+	    return entry.getKey ();
+	  }
+      }
+
+    return null;
+  }
+
   /* Invalidate the cache entry denoted by DOCUMENT_ID, within the
-     document tree URI.
-     Call this after deleting a document or directory.
+     document tree URI, and those of each document beneath it.  Call
+     this after deleting a document or directory.
 
      At the same time, remove the final component within the file name
      CACHENAME from the cache if it exists.  */
@@ -603,137 +1860,150 @@ public final class EmacsSafThread extends HandlerThread
   postInvalidateCache (final Uri uri, final String documentId,
 		       final String cacheName)
   {
-    handler.post (new Runnable () {
+    getWorker (uri).handler.post (new Runnable () {
 	@Override
 	public void
 	run ()
 	{
 	  CacheToplevel toplevel;
-	  HashMap<String, DocIdEntry> children;
-	  String[] components;
-	  CacheEntry entry;
-	  DocIdEntry idEntry;
+	  EmacsLruCache<String, DocIdEntry> children;
+	  int index;
 
 	  toplevel = getCache (uri);
-	  toplevel.idCache.remove (documentId);
-	  toplevel.statCache.remove (documentId);
-
-	  /* If the parent of CACHENAME is cached, remove it.  */
-
-	  children = toplevel.children;
-	  components = cacheName.split ("/");
-
-	  for (String component : components)
-	    {
-	      /* Java `split' removes trailing empty matches but not
-		 leading or intermediary ones.  */
-	      if (component.isEmpty ())
-		continue;
-
-	      if (component == components[components.length - 1])
-		{
-		  /* This is the last component, so remove it from
-		     children.  */
-		  children.remove (component);
-		  return;
-		}
-	      else
-		{
-		  /* Search for this component within the last level
-		     of the cache.  */
+	  evictSubtree (toplevel, documentId);
+	  toplevel.missing.clear ();
+	  toplevel.nameIndexes.clear ();
+	  toplevel.validDirectories.clear ();
+	  toplevel.generation++;
 
-		  idEntry = children.get (component);
+	  if (toplevel.index != null)
+	    toplevel.index.remove (getIndexPath (cacheName));
 
-		  if (idEntry == null)
-		    /* Not cached, so return.  */
-		    return;
+	  /* If the parent of CACHENAME is cached, remove CACHENAME
+	     from it.  */
 
-		  entry = toplevel.idCache.get (idEntry.documentId);
+	  index = cacheName.lastIndexOf ('/');
+	  children = findChildren (toplevel, (index < 0 ? ""
+					      : cacheName.substring (0,
+								     index)));
 
-		  if (entry == null)
-		    /* Not cached, so return.  */
-		    return;
-
-		  /* Locate the next component within this
-		     directory.  */
-		  children = entry.children;
-		}
-	    }
+	  if (children != null)
+	    children.remove (cacheName.substring (index + 1));
 	}
       });
   }
 
-  /* Invalidate the cache entry denoted by DOCUMENT_ID, within the
-     document tree URI.
-     Call this after deleting a document or directory.
+  /* Update the cache within the document tree URI to reflect the
+     renaming of the document DOCUMENTID within the directory DIRNAME
+     to NAME.  NEWID is the ID of the document after the renaming,
+     which may differ from DOCUMENTID.
 
-     At the same time, remove the child referring to DOCUMENTID from
-     within CACHENAME's cache entry if it exists.  */
+     If the document's ID is unchanged, its cache entry is retained
+     under its new name, together with those of any documents beneath
+     it.  */
 
   public void
-  postInvalidateCacheDir (final Uri uri, final String documentId,
-			  final String cacheName)
+  postRenameDocument (final Uri uri, final String documentId,
+		      final String newId, final String dirName,
+		      final String name)
   {
-    handler.post (new Runnable () {
+    getWorker (uri).handler.post (new Runnable () {
 	@Override
 	public void
 	run ()
 	{
 	  CacheToplevel toplevel;
-	  HashMap<String, DocIdEntry> children;
-	  String[] components;
-	  CacheEntry entry;
+	  EmacsLruCache<String, DocIdEntry> children;
 	  DocIdEntry idEntry;
-	  Iterator<DocIdEntry> iter;
+	  String oldName;
 
 	  toplevel = getCache (uri);
-	  toplevel.idCache.remove (documentId);
-	  toplevel.statCache.remove (documentId);
 
-	  /* Now remove DOCUMENTID from CACHENAME's cache entry, if
-	     any.  */
+	  /* The new name may have been recorded as missing, and the
+	     directory holding it has changed.  */
+	  toplevel.missing.clear ();
+	  toplevel.nameIndexes.clear ();
+	  toplevel.validDirectories.clear ();
+	  toplevel.generation++;
 
-	  children = toplevel.children;
-	  components = cacheName.split ("/");
+	  children = findChildren (toplevel, dirName);
+	  oldName = (children != null
+		     ? removeChild (children, documentId) : null);
 
-	  for (String component : components)
+	  if (oldName != null && toplevel.index != null)
+	    toplevel.index.remove (getIndexPath (dirName + "/"
+						 + oldName));
+
+	  if (children == null || oldName == null
+	      || !documentId.equals (newId))
 	    {
-	      /* Java `split' removes trailing empty matches but not
-		 leading or intermediary ones.  */
-	      if (component.isEmpty ())
-		continue;
+	      /* The IDs of documents beneath DOCUMENTID might have
+		 changed with its own.  */
+	      evictSubtree (toplevel, documentId);
+	      return;
+	    }
+
+	  /* Record the document under its new name.  */
+	  idEntry = new DocIdEntry ();
+	  idEntry.documentId = documentId;
+	  children.put (name, idEntry);
+	}
+      });
+  }
+
+  /* Update the cache within the document tree URI to reflect the
+     movement of the document DOCUMENTID from the directory DIRNAME,
+     whose ID is SRCID, into the directory DSTID.  NEWID is the ID of
+     the document after the movement.
 
-	      /* Search for this component within the last level
-		 of the cache.  */
+     If the document's ID is unchanged and the destination directory
+     is cached, its cache entry is moved into that directory, together
+     with those of any documents beneath it.  */
 
-	      idEntry = children.get (component);
+  public void
+  postMoveDocument (final Uri uri, final String documentId,
+		    final String newId, final String dirName,
+		    final String srcId, final String dstId)
+  {
+    getWorker (uri).handler.post (new Runnable () {
+	@Override
+	public void
+	run ()
+	{
+	  CacheToplevel toplevel;
+	  EmacsLruCache<String, DocIdEntry> children, destination;
+	  DocIdEntry idEntry;
+	  String name;
 
-	      if (idEntry == null)
-		/* Not cached, so return.  */
-		return;
+	  toplevel = getCache (uri);
+	  toplevel.missing.clear ();
+	  toplevel.nameIndexes.clear ();
+	  toplevel.validDirectories.clear ();
+	  toplevel.generation++;
 
-	      entry = toplevel.idCache.get (idEntry.documentId);
+	  /* The contents of both directories have changed.  */
+	  toplevel.statCache.remove (srcId);
+	  toplevel.statCache.remove (dstId);
 
-	      if (entry == null)
-		/* Not cached, so return.  */
-		return;
+	  children = findChildren (toplevel, dirName);
+	  name = (children != null
+		  ? removeChild (children, documentId) : null);
 
-	      /* Locate the next component within this
-		 directory.  */
-	      children = entry.children;
-	    }
+	  if (name != null && toplevel.index != null)
+	    toplevel.index.remove (getIndexPath (dirName + "/" + name));
 
-	  iter = children.values ().iterator ();
-	  while (iter.hasNext ())
-	    {
-	      idEntry = iter.next ();
+	  destination = getChildren (toplevel, dstId);
 
-	      if (idEntry.documentId.equals (documentId))
-		{
-		  iter.remove ();
-		  break;
-		}
+	  if (name == null || destination == null
+	      || !documentId.equals (newId))
+	    {
+	      evictSubtree (toplevel, documentId);
+	      return;
 	    }
+
+	  idEntry = new DocIdEntry ();
+	  idEntry.documentId = documentId;
+	  destination.put (name, idEntry);
 	}
       });
   }
@@ -746,7 +2016,7 @@ Call this when the contents of a file (i.e. the constituents of a
   public void
   postInvalidateStat (final Uri uri, final String documentId)
   {
-    handler.post (new Runnable () {
+    getWorker (uri).handler.post (new Runnable () {
 	@Override
 	public void
 	run ()
@@ -759,6 +2029,34 @@ Call this when the contents of a file (i.e. the constituents of a
       });
   }
 
+  /* Remove any record of the absence of a document named NAME from
+     the directory designated by DOCUMENTID within URI, including the
+     index of that directory's contents.  Call this after creating a
+     document or directory.  */
+
+  public void
+  postInvalidateMissing (final Uri uri, final String documentId,
+			 final String name)
+  {
+    getWorker (uri).handler.post (new Runnable () {
+	@Override
+	public void
+	run ()
+	{
+	  CacheToplevel toplevel;
+	  CacheEntry entry;
+
+	  toplevel = getCache (uri);
+	  toplevel.missing.remove (missingKey (documentId, name));
+	  toplevel.nameIndexes.remove (documentId);
+	  entry = toplevel.idCache.peek (documentId);
+
+	  if (entry != null)
+	    entry.complete = false;
+	}
+      });
+  }
+
 
 
   /* ``Prototypes'' for nested functions that are run within the SAF
@@ -815,105 +2113,156 @@ public abstract Object runObject (CancellationSignal signal)
     throw (T) exception;
   }
 
-  /* Run the given function (or rather, its `runInt' field) within the
-     SAF thread, waiting for it to complete.
+  /* Request to run a function within a worker thread, and the
+     result of that function.  The Emacs thread waits for each request
+     to complete before making another, so each worker reuses a single
+     request, rather than allocating the objects required afresh for
+     each function run.  */
 
-     If async input arrives in the meantime and sets Vquit_flag,
-     signal the cancellation signal supplied to that function.
+  private static final class SafRequest implements Runnable
+  {
+    /* The function to run, only one of which is set.  */
+    SafIntFunction intFunction;
+    SafObjectFunction objectFunction;
 
-     Rethrow any exception thrown from that function, and return its
-     value otherwise.  */
+    /* The value returned by that function.  */
+    int intResult;
+    Object objectResult;
 
-  private int
-  runIntFunction (final SafIntFunction function)
-  {
-    final EmacsHolder<Object> result;
-    final CancellationSignal signal;
-    Throwable throwable;
+    /* Any error object thrown by that function, or NULL.  */
+    Throwable error;
 
-    result = new EmacsHolder<Object> ();
-    signal = new CancellationSignal ();
+    /* Cancellation signal provided to the function.  */
+    CancellationSignal signal;
 
-    handler.post (new Runnable () {
-	@Override
-	public void
-	run ()
-	{
-	  try
-	    {
-	      result.thing
-		= Integer.valueOf (function.runInt (signal));
-	    }
-	  catch (Throwable throwable)
-	    {
-	      result.thing = throwable;
-	    }
+    public
+    SafRequest ()
+    {
+      signal = new CancellationSignal ();
+    }
 
-	  EmacsNative.safPostRequest ();
+    @Override
+    public void
+    run ()
+    {
+      try
+	{
+	  if (intFunction != null)
+	    intResult = intFunction.runInt (signal);
+	  else
+	    objectResult = objectFunction.runObject (signal);
+	}
+      catch (Throwable throwable)
+	{
+	  error = throwable;
 	}
-      });
 
-    if (EmacsNative.safSyncAndReadInput () != 0)
+      EmacsNative.safPostRequest ();
+    }
+
+    /* Prepare this request to be reused.  */
+
+    public void
+    reset ()
+    {
+      intFunction = null;
+      objectFunction = null;
+      objectResult = null;
+      error = null;
+
+      /* A cancellation signal cannot be reset once canceled.  */
+      if (signal.isCanceled ())
+	signal = new CancellationSignal ();
+    }
+  };
+
+  /* Return a request with which to run a function within WORKER.  */
+
+  private static SafRequest
+  obtainRequest (SafWorker worker)
+  {
+    synchronized (worker)
       {
-	signal.cancel ();
+	/* A new request is required if the worker's request is
+	   already in use, which is only possible if functions are run
+	   from more than one thread.  */
 
-	/* Now wait for the function to finish.  Either the signal has
-	   arrived after the query took place, in which case it will
-	   finish normally, or an OperationCanceledException will be
-	   thrown.  */
+	if (worker.requestBusy)
+	  return new SafRequest ();
 
-	EmacsNative.safSync ();
+	worker.requestBusy = true;
+	return worker.request;
       }
+  }
+
+  /* Release REQUEST, which was obtained from WORKER.  */
 
-    if (result.thing instanceof Throwable)
+  private static void
+  releaseRequest (SafWorker worker, SafRequest request)
+  {
+    request.reset ();
+
+    if (request == worker.request)
       {
-	throwable = (Throwable) result.thing;
-	EmacsSafThread.<RuntimeException>throwException (throwable);
+	synchronized (worker)
+	  {
+	    worker.requestBusy = false;
+	  }
       }
-
-    return (Integer) result.thing;
   }
 
-  /* Run the given function (or rather, its `runObject' field) within
-     the SAF thread, waiting for it to complete.
+  /* Run REQUEST within WORKER, waiting for it to complete.
 
      If async input arrives in the meantime and sets Vquit_flag,
-     signal the cancellation signal supplied to that function.
+     signal the cancellation signal supplied to its function.
 
-     Rethrow any exception thrown from that function, and return its
-     value otherwise.  */
+     Rethrow any exception thrown from that function.
 
-  private Object
-  runObjectFunction (final SafObjectFunction function)
+     Identical requests are never coalesced into one: only the Emacs
+     thread makes requests, and it waits for each to complete before
+     making another, so no request is ever pending while an identical
+     one is made.  */
+
+  private static void
+  runRequest (SafWorker worker, SafRequest request)
   {
-    final EmacsHolder<Object> result;
-    final CancellationSignal signal;
     Throwable throwable;
 
-    result = new EmacsHolder<Object> ();
-    signal = new CancellationSignal ();
+    worker.postRequest (request);
+    waitForRequest (request);
 
-    handler.post (new Runnable () {
-	@Override
-	public void
-	run ()
-	{
-	  try
-	    {
-	      result.thing = function.runObject (signal);
-	    }
-	  catch (Throwable throwable)
-	    {
-	      result.thing = throwable;
-	    }
+    if (request.error != null)
+      {
+	throwable = request.error;
+	releaseRequest (worker, request);
 
-	  EmacsNative.safPostRequest ();
-	}
-      });
+	/* A SecurityException might indicate that the rights to
+	   access a tree have been released, so that it must no
+	   longer be listed.  */
+
+	if (throwable instanceof SecurityException
+	    && EmacsService.SERVICE != null)
+	  EmacsService.SERVICE.invalidateDocumentTrees ();
+
+	EmacsSafThread.<RuntimeException>throwException (throwable);
+      }
+  }
+
+  /* Wait for REQUEST, which has been posted to another thread, to
+     complete.  If async input arrives in the meantime and sets
+     Vquit_flag, signal the cancellation signal supplied to its
+     function.  */
+
+  private static void
+  waitForRequest (SafRequest request)
+  {
+    long start;
+
+    start = System.nanoTime ();
 
     if (EmacsNative.safSyncAndReadInput () != 0)
       {
-	signal.cancel ();
+	request.signal.cancel ();
 
 	/* Now wait for the function to finish.  Either the signal has
 	   arrived after the query took place, in which case it will
@@ -923,95 +2272,346 @@ public abstract Object runObject (CancellationSignal signal)
 	EmacsNative.safSync ();
       }
 
-    if (result.thing instanceof Throwable)
-      {
-	throwable = (Throwable) result.thing;
-	EmacsSafThread.<RuntimeException>throwException (throwable);
-      }
-
-    return result.thing;
+    EmacsSafStatistics.record (EmacsSafStatistics.SYNC_WAIT, start);
   }
 
-  /* The crux of `documentIdFromName1', run within the SAF thread.
-     SIGNAL should be a cancellation signal run upon quitting.  */
+  /* Run the given function (or rather, its `runInt' field) within the
+     SAF thread responsible for the tree URI, waiting for it to
+     complete.
+
+     If async input arrives in the meantime and sets Vquit_flag,
+     signal the cancellation signal supplied to that function.
+
+     Rethrow any exception thrown from that function, and return its
+     value otherwise.  */
 
   private int
-  documentIdFromName1 (String tree_uri, String name,
-		       String[] id_return, CancellationSignal signal)
+  runIntFunction (String uri, SafIntFunction function)
   {
-    Uri uri, treeUri;
-    String id, type, newId, newType;
-    String[] components, projection;
-    Cursor cursor;
-    int nameColumn, idColumn, typeColumn;
-    CacheToplevel toplevel;
-    DocIdEntry idEntry;
-    HashMap<String, DocIdEntry> children, next;
-    CacheEntry cache;
+    SafWorker worker;
+    SafRequest request;
+    int value;
+
+    worker = getWorker (uri);
+    request = obtainRequest (worker);
+    request.intFunction = function;
+    runRequest (worker, request);
+    value = request.intResult;
+    releaseRequest (worker, request);
+    return value;
+  }
 
-    projection = new String[] {
-      Document.COLUMN_DISPLAY_NAME,
-      Document.COLUMN_DOCUMENT_ID,
-      Document.COLUMN_MIME_TYPE,
-    };
+  /* Run the given function (or rather, its `runObject' field) within
+     the SAF thread responsible for the tree URI, waiting for it to
+     complete.
 
-    /* Parse the URI identifying the tree first.  */
-    uri = Uri.parse (tree_uri);
+     If async input arrives in the meantime and sets Vquit_flag,
+     signal the cancellation signal supplied to that function.
 
-    /* Now, split NAME into its individual components.  */
-    components = name.split ("/");
+     Rethrow any exception thrown from that function, and return its
+     value otherwise.  */
 
-    /* Set id and type to the value at the root of the tree.  */
-    type = id = null;
-    cursor = null;
+  private Object
+  runObjectFunction (String uri, SafObjectFunction function)
+  {
+    SafWorker worker;
+    SafRequest request;
+    Object value;
+
+    worker = getWorker (uri);
+    request = obtainRequest (worker);
+    request.objectFunction = function;
+    runRequest (worker, request);
+    value = request.objectResult;
+    releaseRequest (worker, request);
+    return value;
+  }
 
-    /* Obtain the top level of this cache.  */
-    toplevel = getCache (uri);
+  /* Return NAME, a file name relative to a document tree, in the form
+     in which it is recorded within a persistent index.  */
 
-    /* Set the current map of children to this top level.  */
-    children = toplevel.children;
+  private static String
+  getIndexPath (String name)
+  {
+    StringBuilder builder;
 
-    /* For each component... */
+    builder = new StringBuilder ();
 
-    try
+    for (String component : name.split ("/"))
       {
-	for (String component : components)
-	  {
-	    /* Java split doesn't behave very much like strtok when it
-	       comes to trailing and leading delimiters...  */
-	    if (component.isEmpty ())
-	      continue;
+	if (component.isEmpty ())
+	  continue;
 
-	    /* Search for component within the currently cached list
-	       of children.  */
+	if (builder.length () > 0)
+	  builder.append ('/');
 
-	    idEntry = children.get (component);
+	builder.append (component);
+      }
 
-	    if (idEntry != null)
-	      {
-		/* The document ID is known.  Now find the
-		   corresponding document ID cache.  */
+    return builder.toString ();
+  }
 
-		cache = toplevel.idCache.get (idEntry.documentId);
+  /* Return the persistent index of TOPLEVEL, loading it if necessary,
+     or NULL if persistent indices are disabled.  */
 
-		/* Fetch just the information for this document.  */
+  private EmacsSafIndex
+  getIndex (CacheToplevel toplevel)
+  {
+    File directory;
 
-		if (cache == null)
-		  cache = idEntry.getCacheEntry (resolver, uri, toplevel,
-						 signal);
+    directory = indexDirectory;
 
-		if (cache == null)
-		  {
-		    /* File status matching idEntry could not be
-		       obtained.  Treat this as if the file does not
-		       exist.  */
+    if (directory == null)
+      return null;
 
-		    children.remove (component);
+    if (toplevel.index == null)
+      toplevel.index = new EmacsSafIndex (directory,
+					  toplevel.tree.toString ());
 
-		    if (id == null)
-		      id = DocumentsContract.getTreeDocumentId (uri);
+    return toplevel.index;
+  }
 
-		    id_return[0] = id;
+  /* Look up the document named COMPONENT within the directory PATH in
+     the persistent index of TOPLEVEL.  DOCUMENTID is the ID of that
+     directory, and TREE the tree holding it.
+
+     Records within the index are only trusted if the modification
+     time of their directory is identical to the time recorded when
+     it was last listed.  Confirm this afresh at most once in each
+     cache lifetime.  Each directory must be confirmed separately,
+     as the directories along a path have different parents, so a
+     path is resolved with as many provider queries as there are
+     directories within it when Emacs starts, but not the children
+     queries otherwise required to locate each component.
+
+     Value is the record found, or NULL if there is none or it might
+     be stale.  */
+
+  private EmacsSafIndex.Entry
+  lookupIndex (CacheToplevel toplevel, Uri tree, String path,
+	       String documentId, String component,
+	       CancellationSignal signal)
+  {
+    EmacsSafIndex index;
+    EmacsSafIndex.Entry directory;
+    StatCacheEntry stat;
+    Long time;
+    long now;
+
+    index = getIndex (toplevel);
+
+    if (index == null)
+      return null;
+
+    directory = index.get (path);
+
+    if (directory == null || directory.mtime <= 0
+	|| !directory.documentId.equals (documentId))
+      return null;
+
+    now = SystemClock.uptimeMillis ();
+    time = toplevel.validDirectories.get (documentId);
+
+    if (time == null || now - time >= toplevel.getInvalidTime ())
+      {
+	/* Obtain the present modification time of the directory,
+	   bypassing the file status cache.  */
+
+	toplevel.statCache.remove (documentId);
+	statDocument1 (tree.toString (), documentId, signal, false);
+	stat = toplevel.statCache.peek (documentId);
+
+	if (stat == null || stat.mtime != directory.mtime)
+	  return null;
+
+	toplevel.validDirectories.put (documentId, now);
+      }
+
+    return index.get (path.isEmpty () ? component
+		      : path + "/" + component);
+  }
+
+  /* Record in the persistent index of TOPLEVEL that the directory
+     PATH, whose ID is DOCUMENTID, is being listed.  MTIME is its
+     modification time prior to the listing, or -1 if unknown.
+
+     If the directory has changed since it was last recorded, the
+     records of its children are discarded, since they might name
+     documents that no longer exist.  */
+
+  private void
+  recordIndexDirectory (CacheToplevel toplevel, String path,
+			String documentId, long mtime)
+  {
+    EmacsSafIndex index;
+    EmacsSafIndex.Entry entry;
+
+    index = getIndex (toplevel);
+
+    if (index == null)
+      return;
+
+    entry = index.get (path);
+
+    if (entry == null || entry.mtime <= 0 || entry.mtime != mtime
+	|| !entry.documentId.equals (documentId))
+      index.removeChildren (path);
+
+    index.put (path, documentId, Document.MIME_TYPE_DIR, mtime);
+  }
+
+  /* Record the document DOCUMENTID of the MIME type TYPE as PATH in
+     the persistent index of TOPLEVEL.  */
+
+  private void
+  recordIndexChild (CacheToplevel toplevel, String path,
+		    String documentId, String type)
+  {
+    EmacsSafIndex index;
+    EmacsSafIndex.Entry entry;
+    StatCacheEntry stat;
+    long mtime;
+
+    index = getIndex (toplevel);
+
+    if (index == null)
+      return;
+
+    if (type.equals (Document.MIME_TYPE_DIR))
+      {
+	/* The time recorded for a directory is that at which it was
+	   last listed, so retain it if the directory is unchanged.  */
+
+	entry = index.get (path);
+	mtime = -1;
+
+	if (entry != null && entry.documentId.equals (documentId))
+	  mtime = entry.mtime;
+      }
+    else
+      {
+	stat = toplevel.statCache.peek (documentId);
+	mtime = stat != null ? stat.mtime : -1;
+      }
+
+    index.put (path, documentId, type, mtime);
+  }
+
+  /* Return whether a provider might consider a document named NAME
+     to match a selection for the display name COMPONENT, if it
+     compares names disregarding their case or after normalizing
+     them.  A row returned for such a selection whose name fails this
+     test proves that the provider has ignored the selection.  */
+
+  private static boolean
+  mayMatchName (String name, String component)
+  {
+    if (name.equalsIgnoreCase (component))
+      return true;
+
+    name = Normalizer.normalize (name, Normalizer.Form.NFKC);
+    component = Normalizer.normalize (component, Normalizer.Form.NFKC);
+    return name.equalsIgnoreCase (component);
+  }
+
+  /* The crux of `documentIdFromName1', run within the SAF thread.
+     SIGNAL should be a cancellation signal run upon quitting.  */
+
+  private int
+  documentIdFromName1 (String tree_uri, String name,
+		       String[] id_return, CancellationSignal signal)
+  {
+    Uri uri, treeUri;
+    String id, type, newId, newType, path, childPath, dirId;
+    String[] components, projection;
+    Cursor cursor;
+    int nameColumn, idColumn, typeColumn;
+    CacheToplevel toplevel;
+    DocIdEntry idEntry;
+    EmacsLruCache<String, DocIdEntry> children, next;
+    CacheEntry cache;
+    EmacsSafIndex.Entry indexed;
+    StatCacheEntry stat;
+    NameIndex names;
+    boolean complete;
+
+    /* Request the file status of each document as well, so that it
+       can be cached for subsequent calls to `statDocument'.  */
+
+    projection = new String[] {
+      Document.COLUMN_DISPLAY_NAME,
+      Document.COLUMN_DOCUMENT_ID,
+      Document.COLUMN_MIME_TYPE,
+      Document.COLUMN_FLAGS,
+      Document.COLUMN_LAST_MODIFIED,
+      Document.COLUMN_SIZE,
+    };
+
+    /* Parse the URI identifying the tree first.  */
+    uri = Uri.parse (tree_uri);
+
+    /* Now, split NAME into its individual components.  */
+    components = name.split ("/");
+
+    /* Set id and type to the value at the root of the tree, and path
+       to the name of the directory they designate.  */
+    type = id = null;
+    cursor = null;
+    path = "";
+
+    /* Obtain the top level of this cache.  */
+    toplevel = getCache (uri);
+
+    /* Set the current map of children to this top level.  */
+    children = toplevel.children;
+
+    /* For each component... */
+
+    try
+      {
+	for (String component : components)
+	  {
+	    /* Java split doesn't behave very much like strtok when it
+	       comes to trailing and leading delimiters...  */
+	    if (component.isEmpty ())
+	      continue;
+
+	    childPath = (path.isEmpty () ? component
+			 : path + "/" + component);
+
+	    /* Search for component within the currently cached list
+	       of children.  */
+
+	    idEntry = children.get (component);
+	    toplevel.counters.record (idEntry != null
+				      ? EmacsSafStatistics.CACHE_HIT
+				      : EmacsSafStatistics.CACHE_MISS);
+
+	    if (idEntry != null)
+	      {
+		/* The document ID is known.  Now find the
+		   corresponding document ID cache.  */
+
+		cache = toplevel.idCache.get (idEntry.documentId);
+
+		/* Fetch just the information for this document.  */
+
+		if (cache == null)
+		  cache = idEntry.getCacheEntry (resolver, uri, toplevel,
+						 signal);
+
+		if (cache == null)
+		  {
+		    /* File status matching idEntry could not be
+		       obtained.  Treat this as if the file does not
+		       exist.  */
+
+		    children.remove (component);
+
+		    if (id == null)
+		      id = DocumentsContract.getTreeDocumentId (uri);
+
+		    id_return[0] = id;
 
 		    if ((type == null
 			 || type.equals (Document.MIME_TYPE_DIR))
@@ -1027,6 +2627,7 @@ public abstract Object runObject (CancellationSignal signal)
 		id = idEntry.documentId;
 		type = cache.type;
 		children = cache.children;
+		path = childPath;
 		continue;
 	      }
 
@@ -1036,6 +2637,82 @@ public abstract Object runObject (CancellationSignal signal)
 	    if (id == null)
 	      id = DocumentsContract.getTreeDocumentId (uri);
 
+	    /* If this component was recently found not to exist, don't
+	       ask the provider again.  */
+
+	    if (isMissing (toplevel, id, component))
+	      {
+		if ((type == null
+		     || type.equals (Document.MIME_TYPE_DIR))
+		    && component == components[components.length  - 1])
+		  {
+		    id_return[0] = id;
+		    return -2;
+		  }
+
+		return -1;
+	      }
+
+	    /* If the directory's complete contents have been indexed,
+	       consult that index instead of the provider.  */
+
+	    names = toplevel.nameIndexes.get (id);
+
+	    if (names != null && !names.isValid (toplevel))
+	      {
+		toplevel.nameIndexes.remove (id);
+		names = null;
+	      }
+
+	    if (names != null)
+	      {
+		newId = names.ids.get (component);
+
+		if (newId == null)
+		  {
+		    if ((type == null
+			 || type.equals (Document.MIME_TYPE_DIR))
+			&& component == components[components.length  - 1])
+		      {
+			id_return[0] = id;
+			return -2;
+		      }
+
+		    return -1;
+		  }
+
+		newType = names.types.get (component);
+		cache = cacheChild (toplevel, children, component,
+				    newId, newType, false);
+		id = newId;
+		type = newType;
+		children = cache.children;
+		path = childPath;
+		continue;
+	      }
+
+	    /* If this component is recorded in the persistent index and
+	       its directory hasn't changed since, use that record.  */
+
+	    indexed = lookupIndex (toplevel, uri, path, id, component,
+				   signal);
+
+	    if (indexed != null)
+	      {
+		cache = cacheChild (toplevel, children, component,
+				    indexed.documentId, indexed.type,
+				    false);
+		id = indexed.documentId;
+		type = indexed.type;
+		children = cache.children;
+		path = childPath;
+		continue;
+	      }
+
+	    /* Save the modification time of this directory before it
+	       is listed, so that it can be recorded in the index.  */
+	    stat = toplevel.statCache.peek (id);
+
 	    treeUri
 	      = DocumentsContract.buildChildDocumentsUriUsingTree (uri, id);
 
@@ -1064,8 +2741,19 @@ public abstract Object runObject (CancellationSignal signal)
 	    if (nameColumn < 0 || idColumn < 0 || typeColumn < 0)
 	      return -1;
 
+	    recordIndexDirectory (toplevel, path, id,
+				  stat != null ? stat.mtime : -1);
 	    next = null;
 
+	    /* Index every row returned, in case the provider returns
+	       the entire directory.  COMPLETE is set once a row is
+	       encountered whose name the provider cannot have
+	       considered a match for COMPONENT, as only such a row
+	       proves that the entire directory has been returned.  */
+	    names = new NameIndex ();
+	    complete = false;
+	    dirId = id;
+
 	    while (true)
 	      {
 		/* Even though the query selects for a specific
@@ -1074,12 +2762,26 @@ public abstract Object runObject (CancellationSignal signal)
 
 		if (!cursor.moveToNext ())
 		  {
+		    /* If the provider has returned the entire
+		       directory, remember as much, and save the index
+		       of its contents.  */
+
+		    if (complete)
+		      {
+			toplevel.policy.setIgnoresSelection ();
+			toplevel.nameIndexes.put (dirId, names);
+		      }
+
 		    /* If a component has been found, break out of the
 		       loop.  */
 
 		    if (next != null)
 		      break;
 
+		    /* Otherwise, record that it doesn't exist.  */
+		    toplevel.missing.put (missingKey (id, component),
+					  SystemClock.uptimeMillis ());
+
 		    /* If the last component considered is a
 		       directory... */
 		    if ((type == null
@@ -1130,6 +2832,28 @@ public abstract Object runObject (CancellationSignal signal)
 				    newId, newType,
 				    idEntry != null);
 
+		/* Likewise for its file status, if the provider
+		   supplied it.  */
+
+		try
+		  {
+		    cacheFileStatus (newId, toplevel, cursor, false);
+		  }
+		catch (Exception e)
+		  {
+		    /* The status columns are of the wrong type; the
+		       file status will be retrieved later by
+		       `statDocument'.  */
+		  }
+
+		recordIndexChild (toplevel, (path.isEmpty () ? name
+					     : path + "/" + name),
+				  newId, newType);
+		names.add (name, newId, newType);
+
+		if (!mayMatchName (name, component))
+		  complete = true;
+
 		/* Record the desired component once it is located,
 		   but continue reading and caching items from the
 		   cursor.  */
@@ -1143,6 +2867,7 @@ public abstract Object runObject (CancellationSignal signal)
 	      }
 
 	    children = next;
+	    path = childPath;
 
 	    /* Now close the cursor.  */
 	    cursor.close ();
@@ -1162,6 +2887,8 @@ public abstract Object runObject (CancellationSignal signal)
 
 	if (cursor != null)
 	  cursor.close ();
+
+	adjustCacheLifetime (toplevel);
       }
 
     /* Here, id is either NULL (meaning the same as TREE_URI), and
@@ -1205,13 +2932,38 @@ type is either NULL (in which case id should also be NULL) or
   documentIdFromName (final String tree_uri, final String name,
 		      final String[] id_return)
   {
-    return runIntFunction (new SafIntFunction () {
+    int rc;
+
+    /* Resolve NAME through the file system if possible.  */
+
+    if (EmacsSafDirect.mayAccess (tree_uri))
+      {
+	rc = EmacsSafDirect.documentIdFromName (Uri.parse (tree_uri),
+						name, id_return);
+
+	if (rc != EmacsSafDirect.UNAVAILABLE)
+	  return rc;
+      }
+
+    return runIntFunction (tree_uri, new SafIntFunction () {
 	@Override
 	public int
 	runInt (CancellationSignal signal)
 	{
-	  return documentIdFromName1 (tree_uri, name, id_return,
-				      signal);
+	  long start;
+
+	  start = System.nanoTime ();
+
+	  try
+	    {
+	      return documentIdFromName1 (tree_uri, name, id_return,
+					  signal);
+	    }
+	  finally
+	    {
+	      EmacsSafStatistics.record (EmacsSafStatistics
+					 .DOCUMENT_ID_FROM_NAME, start);
+	    }
 	}
       });
   }
@@ -1225,7 +2977,6 @@ type is either NULL (in which case id should also be NULL) or
   {
     Uri uriObject, tree;
     String[] projection;
-    long[] stat;
     Cursor cursor;
     CacheToplevel toplevel;
     StatCacheEntry cache;
@@ -1246,8 +2997,9 @@ type is either NULL (in which case id should also be NULL) or
 
     toplevel = getCache (tree);
     cache = toplevel.statCache.get (documentId);
+    recordStatLookup (toplevel, cache);
 
-    if (cache == null || !cache.isValid ())
+    if (cache == null || !cache.isValid (toplevel))
       {
 	/* Stat this document and enter its information into the
 	   cache.  */
@@ -1276,6 +3028,7 @@ type is either NULL (in which case id should also be NULL) or
 	finally
 	  {
 	    cursor.close ();
+	    adjustCacheLifetime (toplevel);
 	  }
 
 	/* If cache is still null, return null.  */
@@ -1284,6 +3037,17 @@ type is either NULL (in which case id should also be NULL) or
 	  return null;
       }
 
+    return makeStat (cache);
+  }
+
+  /* Return an array of file status, in the format returned by
+     `statDocument', populated with the information within CACHE.  */
+
+  private static long[]
+  makeStat (StatCacheEntry cache)
+  {
+    long[] stat;
+
     /* Create the array of file status and populate it with the
        information within cache.  */
     stat = new long[3];
@@ -1347,48 +3111,327 @@ type is either NULL (in which case id should also be NULL) or
   statDocument (final String uri, final String documentId,
 		final boolean noCache)
   {
-    return (long[]) runObjectFunction (new SafObjectFunction () {
+    long[] stat;
+
+    /* Obtain the file status through the file system if
+       possible.  */
+
+    if (EmacsSafDirect.mayAccess (uri))
+      {
+	try
+	  {
+	    stat = EmacsSafDirect.statDocument (Uri.parse (uri),
+						documentId);
+	  }
+	catch (FileNotFoundException exception)
+	  {
+	    EmacsSafThread.<RuntimeException>throwException (exception);
+	    return null;
+	  }
+
+	if (stat != null)
+	  return stat;
+      }
+
+    return (long[]) runObjectFunction (uri, new SafObjectFunction () {
 	@Override
 	public Object
 	runObject (CancellationSignal signal)
 	{
-	  return statDocument1 (uri, documentId, signal, noCache);
+	  long start;
+
+	  start = System.nanoTime ();
+
+	  try
+	    {
+	      return statDocument1 (uri, documentId, signal, noCache);
+	    }
+	  finally
+	    {
+	      EmacsSafStatistics.record (EmacsSafStatistics.STAT_DOCUMENT,
+					 start);
+	    }
 	}
       });
   }
 
-  /* The bulk of `accessDocument'.  SIGNAL should be a cancellation
-     signal.  */
+  /* Return the map of children cached for the directory designated
+     by DOCUMENTID within TOPLEVEL, or NULL if none is cached.  */
 
-  private int
-  accessDocument1 (String uri, String documentId, boolean writable,
-		   CancellationSignal signal)
+  private static EmacsLruCache<String, DocIdEntry>
+  getChildren (CacheToplevel toplevel, String documentId)
   {
-    Uri uriObject;
-    String[] projection;
-    int tem, index;
-    String tem1;
-    Cursor cursor;
-    CacheToplevel toplevel;
     CacheEntry entry;
+    String root;
 
-    uriObject = Uri.parse (uri);
-
-    if (documentId == null)
-      documentId = DocumentsContract.getTreeDocumentId (uriObject);
+    /* The children of the root of the tree are recorded in the
+       toplevel itself.  */
+    root = DocumentsContract.getTreeDocumentId (toplevel.tree);
 
-    /* If WRITABLE is false and the document ID is cached, use its
-       cached value instead.  This speeds up
-       `directory-files-with-attributes' a little.  */
+    if (documentId.equals (root))
+      return toplevel.children;
 
-    if (!writable)
-      {
-	toplevel = getCache (uriObject);
-	entry = toplevel.idCache.get (documentId);
+    entry = toplevel.idCache.peek (documentId);
+    return entry != null ? entry.children : null;
+  }
 
-	if (entry != null)
-	  return 0;
-      }
+  /* The bulk of `statDocuments'.  SIGNAL should be a cancellation
+     signal.  */
+
+  private long[][]
+  statDocuments1 (String uri, String parentId, String[] documents,
+		  int count, boolean byName, boolean noCache,
+		  CancellationSignal signal)
+  {
+    Uri tree, childrenUri;
+    CacheToplevel toplevel;
+    EmacsLruCache<String, DocIdEntry> children;
+    DocIdEntry idEntry;
+    StatCacheEntry[] entries;
+    StatCacheEntry entry;
+    HashMap<String, Integer> wanted;
+    String[] ids, projection;
+    String id, name, type;
+    long[][] stat;
+    int i, unknown, nameColumn, idColumn, typeColumn;
+    Integer index;
+    Cursor cursor;
+
+    tree = Uri.parse (uri);
+    toplevel = getCache (tree);
+
+    if (parentId == null)
+      parentId = DocumentsContract.getTreeDocumentId (tree);
+
+    children = getChildren (toplevel, parentId);
+    ids = new String[count];
+    entries = new StatCacheEntry[count];
+    unknown = 0;
+
+    /* First, answer as many requests from the cache as possible.  */
+
+    for (i = 0; i < count; ++i)
+      {
+	if (documents[i] == null)
+	  continue;
+	else if (!byName)
+	  ids[i] = documents[i];
+	else if (children != null)
+	  {
+	    idEntry = children.get (documents[i]);
+
+	    if (idEntry != null)
+	      ids[i] = idEntry.documentId;
+	  }
+
+	if (ids[i] != null && !noCache)
+	  {
+	    entry = toplevel.statCache.get (ids[i]);
+
+	    if (entry != null && entry.isValid (toplevel))
+	      entries[i] = entry;
+	  }
+
+	if (entries[i] == null && documents[i] != null)
+	  unknown++;
+      }
+
+    /* If more than one document remains (or any document is only
+       known by name), list the parent directory and obtain the file
+       status of all of its children at once.  */
+
+    if (unknown > 1 || (byName && unknown > 0))
+      {
+	wanted = new HashMap<String, Integer> ();
+
+	for (i = 0; i < count; ++i)
+	  {
+	    if (entries[i] == null && documents[i] != null)
+	      wanted.put (documents[i], i);
+	  }
+
+	childrenUri
+	  = DocumentsContract.buildChildDocumentsUriUsingTree (tree,
+							       parentId);
+	projection = new String[] {
+	  Document.COLUMN_DISPLAY_NAME,
+	  Document.COLUMN_DOCUMENT_ID,
+	  Document.COLUMN_MIME_TYPE,
+	  Document.COLUMN_FLAGS,
+	  Document.COLUMN_LAST_MODIFIED,
+	  Document.COLUMN_SIZE,
+	};
+
+	cursor = resolver.query (childrenUri, projection, null, null,
+				 null, signal);
+
+	if (cursor != null)
+	  {
+	    try
+	      {
+		nameColumn
+		  = cursor.getColumnIndex (Document.COLUMN_DISPLAY_NAME);
+		idColumn
+		  = cursor.getColumnIndex (Document.COLUMN_DOCUMENT_ID);
+		typeColumn
+		  = cursor.getColumnIndex (Document.COLUMN_MIME_TYPE);
+
+		while (nameColumn >= 0 && idColumn >= 0
+		       && typeColumn >= 0 && cursor.moveToNext ())
+		  {
+		    try
+		      {
+			name = cursor.getString (nameColumn);
+			id = cursor.getString (idColumn);
+			type = cursor.getString (typeColumn);
+
+			if (name == null || id == null || type == null)
+			  continue;
+
+			index = wanted.get (byName ? name : id);
+
+			/* Unless NOCACHE, cache every child, since
+			   the others are likely to be requested
+			   soon.  */
+
+			if (index == null && noCache)
+			  continue;
+
+			if (children != null)
+			  cacheChild (toplevel, children, name, id, type,
+				      false);
+
+			entry = cacheFileStatus (id, toplevel, cursor,
+						 noCache);
+
+			if (index != null)
+			  {
+			    ids[index] = id;
+			    entries[index] = entry;
+			  }
+		      }
+		    catch (Exception e)
+		      {
+			/* This row is malformed; skip it.  */
+		      }
+		  }
+	      }
+	    finally
+	      {
+		cursor.close ();
+		adjustCacheLifetime (toplevel);
+	      }
+	  }
+      }
+
+    /* Stat the remaining documents individually, as they might not
+       reside within PARENTID after all.  */
+
+    stat = new long[count][];
+
+    for (i = 0; i < count; ++i)
+      {
+	if (entries[i] != null)
+	  stat[i] = makeStat (entries[i]);
+	else if (!byName && ids[i] != null)
+	  stat[i] = statDocument1 (uri, ids[i], signal, noCache);
+      }
+
+    return stat;
+  }
+
+  /* Return file status for each of the first COUNT DOCUMENTS within
+     the tree URI, in the format returned by `statDocument'.
+     DOCUMENTS should be document IDs, or if BYNAME, the display names
+     of children of the directory designated by PARENTID.  PARENTID is
+     the directory containing most or all of DOCUMENTS, or NULL if
+     that is the root of the tree.  Null elements of DOCUMENTS are
+     ignored.
+
+     Where more than one document is not cached, file status is
+     retrieved from a single listing of PARENTID, so that an entire
+     directory can be examined with one query.
+
+     Value is an array of COUNT elements, each of which is null if the
+     file status of the corresponding document cannot be obtained.
+     NOCACHE and the exceptions signaled are as in `statDocument'.  */
+
+  public long[][]
+  statDocuments (final String uri, final String parentId,
+		 final String[] documents, final int count,
+		 final boolean byName, final boolean noCache)
+  {
+    return (long[][]) runObjectFunction (uri, new SafObjectFunction () {
+	@Override
+	public Object
+	runObject (CancellationSignal signal)
+	{
+	  return statDocuments1 (uri, parentId, documents, count,
+				 byName, noCache, signal);
+	}
+      });
+  }
+
+  /* Return whether a document whose file status is STAT is
+     accessible, in the format returned by `accessDocument'.  */
+
+  private static int
+  accessFromStat (StatCacheEntry stat, boolean writable)
+  {
+    if (!writable)
+      return 0;
+
+    /* Check for FLAG_DIR_SUPPORTS_CREATE rather than
+       FLAG_SUPPORTS_WRITE if this is a directory.  */
+
+    if (stat.isDirectory)
+      return ((stat.flags & Document.FLAG_DIR_SUPPORTS_CREATE) == 0
+	      ? -3 : 0);
+
+    return (stat.flags & Document.FLAG_SUPPORTS_WRITE) == 0 ? -3 : 0;
+  }
+
+  /* The bulk of `accessDocument'.  SIGNAL should be a cancellation
+     signal.  */
+
+  private int
+  accessDocument1 (String uri, String documentId, boolean writable,
+		   CancellationSignal signal)
+  {
+    Uri uriObject;
+    String[] projection;
+    Cursor cursor;
+    CacheToplevel toplevel;
+    CacheEntry entry;
+    StatCacheEntry stat;
+
+    uriObject = Uri.parse (uri);
+
+    if (documentId == null)
+      documentId = DocumentsContract.getTreeDocumentId (uriObject);
+
+    toplevel = getCache (uriObject);
+
+    /* If WRITABLE is false and the document ID is cached, use its
+       cached value instead.  This speeds up
+       `directory-files-with-attributes' a little.  */
+
+    if (!writable)
+      {
+	entry = toplevel.idCache.get (documentId);
+
+	if (entry != null)
+	  return 0;
+      }
+
+    /* Next, answer from the file status cache, which records the
+       flags of each document.  */
+
+    stat = toplevel.statCache.get (documentId);
+    recordStatLookup (toplevel, stat);
+
+    if (stat != null && stat.isValid (toplevel))
+      return accessFromStat (stat, writable);
 
     /* Create a document URI representing DOCUMENTID within URI's
        authority.  */
@@ -1396,11 +3439,14 @@ type is either NULL (in which case id should also be NULL) or
     uriObject
       = DocumentsContract.buildDocumentUriUsingTree (uriObject, documentId);
 
-    /* Now stat this document.  */
+    /* Now stat this document, and cache its file status for
+       subsequent calls to this function and `statDocument'.  */
 
     projection = new String[] {
       Document.COLUMN_FLAGS,
+      Document.COLUMN_LAST_MODIFIED,
       Document.COLUMN_MIME_TYPE,
+      Document.COLUMN_SIZE,
     };
 
     cursor = resolver.query (uriObject, projection, null,
@@ -1414,48 +3460,20 @@ type is either NULL (in which case id should also be NULL) or
 	if (!cursor.moveToFirst ())
 	  return -1;
 
-	if (!writable)
-	  return 0;
-
-	index = cursor.getColumnIndex (Document.COLUMN_MIME_TYPE);
-	if (index < 0)
-	  return -3;
-
-	/* Get the type of this file to check if it's a directory.  */
-	tem1 = cursor.getString (index);
-
-	/* Check if this is a directory file.  */
-	if (tem1.equals (Document.MIME_TYPE_DIR))
-	  {
-	    /* If so, don't check for FLAG_SUPPORTS_WRITE.
-	       Check for FLAG_DIR_SUPPORTS_CREATE instead.  */
-
-	    index = cursor.getColumnIndex (Document.COLUMN_FLAGS);
-	    if (index < 0)
-	      return -3;
-
-	    tem = cursor.getInt (index);
-	    if ((tem & Document.FLAG_DIR_SUPPORTS_CREATE) == 0)
-	      return -3;
-
-	    return 0;
-	  }
-
-	index = cursor.getColumnIndex (Document.COLUMN_FLAGS);
-	if (index < 0)
-	  return -3;
-
-	tem = cursor.getInt (index);
-	if (writable && (tem & Document.FLAG_SUPPORTS_WRITE) == 0)
-	  return -3;
+	stat = cacheFileStatus (documentId, toplevel, cursor, false);
       }
     finally
       {
 	/* Close the cursor if an exception occurs.  */
 	cursor.close ();
+	adjustCacheLifetime (toplevel);
       }
 
-    return 0;
+    /* The document exists, but its flags are unavailable.  */
+    if (stat == null)
+      return writable ? -3 : 0;
+
+    return accessFromStat (stat, writable);
   }
 
   /* Find out whether Emacs has access to the document designated by
@@ -1481,23 +3499,143 @@ In addition, arbitrary runtime exceptions (such as
   accessDocument (final String uri, final String documentId,
 		  final boolean writable)
   {
-    return runIntFunction (new SafIntFunction () {
+    int rc;
+
+    /* Check the file's accessibility through the file system if
+       possible.  */
+
+    if (EmacsSafDirect.mayAccess (uri))
+      {
+	rc = EmacsSafDirect.accessDocument (Uri.parse (uri), documentId,
+					    writable);
+
+	if (rc != EmacsSafDirect.UNAVAILABLE)
+	  return rc;
+      }
+
+    return runIntFunction (uri, new SafIntFunction () {
 	@Override
 	public int
 	runInt (CancellationSignal signal)
 	{
-	  return accessDocument1 (uri, documentId, writable,
-				  signal);
+	  long start;
+
+	  start = System.nanoTime ();
+
+	  try
+	    {
+	      return accessDocument1 (uri, documentId, writable,
+				      signal);
+	    }
+	  finally
+	    {
+	      EmacsSafStatistics.record (EmacsSafStatistics
+					 .ACCESS_DOCUMENT, start);
+	    }
 	}
       });
   }
 
+  /* Cache the children of the directory DOCUMENTID within TREE,
+     unless already cached.  SIGNAL is a cancellation signal.  */
+
+  private void
+  prefetchDirectory (Uri tree, String documentId,
+		     CancellationSignal signal)
+  {
+    CacheToplevel toplevel;
+    CacheEntry entry;
+    Uri uri;
+    Cursor cursor;
+    String projection[];
+
+    toplevel = getCache (tree);
+    entry = toplevel.idCache.peek (documentId);
+
+    if (entry != null && entry.isValid (toplevel))
+      return;
+
+    uri = DocumentsContract.buildChildDocumentsUriUsingTree (tree,
+							     documentId);
+    projection = new String [] {
+      Document.COLUMN_DISPLAY_NAME,
+      Document.COLUMN_DOCUMENT_ID,
+      Document.COLUMN_MIME_TYPE,
+      Document.COLUMN_FLAGS,
+      Document.COLUMN_LAST_MODIFIED,
+      Document.COLUMN_SIZE,
+    };
+
+    cursor = resolver.query (uri, projection, null, null, null,
+			     signal);
+
+    if (cursor == null)
+      return;
+
+    try
+      {
+	cacheDirectoryFromCursor (toplevel, documentId, cursor);
+      }
+    finally
+      {
+	cursor.close ();
+      }
+  }
+
+  /* Begin listing the subdirectories of the directory DOCUMENTID
+     within TOPLEVEL in the background, replacing any prefetch
+     already under way.  */
+
+  private void
+  startPrefetch (CacheToplevel toplevel, String documentId)
+  {
+    CacheEntry entry;
+    StatCacheEntry stat;
+    List<String> directories;
+    SafWorker worker;
+    SafPrefetch prefetch;
+
+    entry = toplevel.idCache.peek (documentId);
+
+    if (entry == null)
+      return;
+
+    directories = new ArrayList<String> ();
+
+    for (DocIdEntry idEntry : entry.children)
+      {
+	if (directories.size () >= PREFETCH_MAX_DIRECTORIES)
+	  break;
+
+	stat = toplevel.statCache.peek (idEntry.documentId);
+
+	if (stat != null && stat.isDirectory)
+	  directories.add (idEntry.documentId);
+      }
+
+    if (directories.isEmpty ())
+      return;
+
+    worker = getWorker (toplevel.tree);
+    prefetch = new SafPrefetch (worker, toplevel.tree, directories);
+
+    synchronized (worker)
+      {
+	if (worker.prefetch != null)
+	  worker.prefetch.signal.cancel ();
+
+	worker.prefetch = prefetch;
+      }
+
+    worker.handler.post (prefetch);
+  }
+
   /* The crux of openDocumentDirectory.  SIGNAL must be a cancellation
      signal.  */
 
   private Cursor
   openDocumentDirectory1 (String uri, String documentId,
-			  CancellationSignal signal)
+			  boolean prefetch, CancellationSignal signal)
   {
     Uri uriObject, tree;
     Cursor cursor;
@@ -1538,6 +3676,12 @@ In addition, arbitrary runtime exceptions (such as
 	toplevel = getCache (tree);
 	cacheDirectoryFromCursor (toplevel, documentId,
 				  cursor);
+
+	/* List its subdirectories in the background if
+	   requested.  */
+
+	if (prefetch)
+	  startPrefetch (toplevel, documentId);
       }
 
     /* Return the cursor.  */
@@ -1550,65 +3694,442 @@ In addition, arbitrary runtime exceptions (such as
      If DOCUMENTID is NULL, use the document ID within URI itself.
      Value is NULL upon failure.
 
+     If PREFETCH, list the subdirectories of this directory in the
+     background once it is opened, until a subsequent request is
+     made.
+
      In addition, arbitrary runtime exceptions (such as
      SecurityException or UnsupportedOperationException) may be
      thrown.  */
 
   public Cursor
-  openDocumentDirectory (final String uri, final String documentId)
+  openDocumentDirectory (final String uri, final String documentId,
+			 final boolean prefetch)
   {
-    return (Cursor) runObjectFunction (new SafObjectFunction () {
+    return (Cursor) runObjectFunction (uri, new SafObjectFunction () {
 	@Override
 	public Object
 	runObject (CancellationSignal signal)
 	{
-	  return openDocumentDirectory1 (uri, documentId, signal);
+	  long start;
+
+	  start = System.nanoTime ();
+
+	  try
+	    {
+	      return openDocumentDirectory1 (uri, documentId, prefetch,
+					     signal);
+	    }
+	  finally
+	    {
+	      EmacsSafStatistics.record (EmacsSafStatistics
+					 .OPEN_DOCUMENT_DIRECTORY, start);
+	    }
 	}
       });
   }
 
-  /* The crux of `openDocument'.  SIGNAL must be a cancellation
-     signal.  */
+  /* Return whether NAME begins with PREFIX, disregarding case if
+     IGNORECASE.  */
 
-  public ParcelFileDescriptor
-  openDocument1 (String uri, String documentId, boolean read,
-		 boolean write, boolean truncate,
-		 CancellationSignal signal)
-    throws Throwable
+  private static boolean
+  hasPrefix (String name, String prefix, boolean ignoreCase)
   {
-    Uri treeUri, documentUri;
-    String mode;
-    ParcelFileDescriptor fileDescriptor;
-    CacheToplevel toplevel;
-
-    treeUri = Uri.parse (uri);
+    return name.regionMatches (ignoreCase, 0, prefix, 0,
+			       prefix.length ());
+  }
 
-    /* documentId must be set for this request, since it doesn't make
-       sense to ``open'' the root of the directory tree.  */
+  /* Return a pattern for the LIKE operator matching each string that
+     begins with PREFIX, in which backslashes escape wildcards.  */
 
-    documentUri
-      = DocumentsContract.buildDocumentUriUsingTree (treeUri, documentId);
+  private static String
+  getPrefixPattern (String prefix)
+  {
+    StringBuilder builder;
+    char c;
+    int i;
 
-    /* Select the mode used to open the file.  */
+    builder = new StringBuilder ();
 
-    if (write)
+    for (i = 0; i < prefix.length (); ++i)
       {
-	if (read)
-	  {
-	    if (truncate)
-	      mode = "rwt";
-	    else
-	      mode = "rw";
-	  }
-	else
-	  /* Set mode to w when WRITE && !READ, disregarding TRUNCATE.
-	     In contradiction with the ContentResolver documentation,
-	     document providers seem to truncate files whenever w is
-	     specified, at least superficially.  (But see below.)  */
-	  mode = "w";
+	c = prefix.charAt (i);
+
+	if (c == '%' || c == '_' || c == '\\')
+	  builder.append ('\\');
+
+	builder.append (c);
       }
-    else
-      mode = "r";
+
+    builder.append ('%');
+    return builder.toString ();
+  }
+
+  /* Return whether STRING consists solely of ASCII characters.  */
+
+  private static boolean
+  isAscii (String string)
+  {
+    int i;
+
+    for (i = 0; i < string.length (); ++i)
+      {
+	if (string.charAt (i) >= 128)
+	  return false;
+      }
+
+    return true;
+  }
+
+  /* Return whether the type of each child of ENTRY is known.  */
+
+  private static boolean
+  hasChildTypes (CacheEntry entry)
+  {
+    for (DocIdEntry idEntry : entry.children)
+      {
+	if (idEntry.type == null)
+	  return false;
+      }
+
+    return true;
+  }
+
+  /* The crux of openDocumentDirectoryMatching.  SIGNAL must be a
+     cancellation signal.  */
+
+  private Cursor
+  openDocumentDirectoryMatching1 (String uri, String documentId,
+				  String prefix, boolean ignoreCase,
+				  CancellationSignal signal)
+  {
+    Uri tree, childrenUri;
+    CacheToplevel toplevel;
+    NameIndex names;
+    CacheEntry directory;
+    Iterator<Map.Entry<String, DocIdEntry>> iter;
+    Map.Entry<String, DocIdEntry> child;
+    MatrixCursor result;
+    Cursor cursor;
+    String projection[], selection, selectionArgs[], name, type;
+    int nameColumn, typeColumn;
+    boolean complete;
+
+    tree = Uri.parse (uri);
+
+    if (documentId == null)
+      documentId = DocumentsContract.getTreeDocumentId (tree);
+
+    toplevel = getCache (tree);
+    result = new MatrixCursor (new String[] {
+	Document.COLUMN_DISPLAY_NAME,
+	Document.COLUMN_MIME_TYPE,
+      });
+
+    /* If the directory's complete contents have been indexed, search
+       that index instead of the provider.  */
+
+    names = toplevel.nameIndexes.get (documentId);
+
+    if (names != null && !names.isValid (toplevel))
+      {
+	toplevel.nameIndexes.remove (documentId);
+	names = null;
+      }
+
+    if (names != null)
+      {
+	for (Map.Entry<String, String> entry : names.types.entrySet ())
+	  {
+	    if (hasPrefix (entry.getKey (), prefix, ignoreCase))
+	      result.addRow (new Object[] { entry.getKey (),
+					    entry.getValue (), });
+	  }
+
+	return result;
+      }
+
+    /* Likewise if the directory's children were last read in full
+       and the type of each is known.  */
+
+    directory = toplevel.idCache.get (documentId);
+
+    if (directory != null && directory.isComplete (toplevel)
+	&& hasChildTypes (directory))
+      {
+	iter = directory.children.entryIterator ();
+
+	while (iter.hasNext ())
+	  {
+	    child = iter.next ();
+
+	    if (hasPrefix (child.getKey (), prefix, ignoreCase))
+	      result.addRow (new Object[] { child.getKey (),
+					    child.getValue ().type, });
+	  }
+
+	return result;
+      }
+
+    /* Otherwise, ask the provider for the documents whose names
+       begin with PREFIX, unless it is known to ignore selections, in
+       which case list and index the whole directory.  LIKE only
+       disregards the case of ASCII characters, so also list the
+       whole directory if IGNORECASE and PREFIX contains others.  */
+
+    selection = null;
+    selectionArgs = null;
+
+    if (!prefix.isEmpty () && !toplevel.policy.getIgnoresSelection ()
+	&& (!ignoreCase || isAscii (prefix)))
+      {
+	selection = (Document.COLUMN_DISPLAY_NAME
+		     + " LIKE ? ESCAPE '\\'");
+	selectionArgs = new String[] { getPrefixPattern (prefix), };
+      }
+
+    childrenUri
+      = DocumentsContract.buildChildDocumentsUriUsingTree (tree,
+							   documentId);
+    projection = new String [] {
+      Document.COLUMN_DISPLAY_NAME,
+      Document.COLUMN_DOCUMENT_ID,
+      Document.COLUMN_MIME_TYPE,
+      Document.COLUMN_FLAGS,
+      Document.COLUMN_LAST_MODIFIED,
+      Document.COLUMN_SIZE,
+    };
+
+    cursor = resolver.query (childrenUri, projection, selection,
+			     selectionArgs, null, signal);
+
+    if (cursor == null)
+      return null;
+
+    try
+      {
+	nameColumn
+	  = cursor.getColumnIndex (Document.COLUMN_DISPLAY_NAME);
+	typeColumn
+	  = cursor.getColumnIndex (Document.COLUMN_MIME_TYPE);
+
+	if (nameColumn < 0 || typeColumn < 0)
+	  return null;
+
+	complete = selection == null;
+
+	while (cursor.moveToNext ())
+	  {
+	    name = cursor.getString (nameColumn);
+	    type = cursor.getString (typeColumn);
+
+	    if (name == null)
+	      continue;
+
+	    /* LIKE matches names regardless of the case of ASCII
+	       characters, so a name that doesn't match even then
+	       proves that the provider has ignored the selection and
+	       returned the entire directory.  */
+
+	    if (!hasPrefix (name, prefix, true))
+	      complete = true;
+
+	    if (hasPrefix (name, prefix, ignoreCase))
+	      result.addRow (new Object[] { name, type, });
+	  }
+
+	/* If the entire directory was returned, cache and index its
+	   contents, so that subsequent requests are answered without
+	   consulting the provider.  */
+
+	if (complete)
+	  {
+	    if (selection != null)
+	      toplevel.policy.setIgnoresSelection ();
+
+	    cursor.moveToPosition (-1);
+	    cacheDirectoryFromCursor (toplevel, documentId, cursor);
+	  }
+      }
+    finally
+      {
+	cursor.close ();
+      }
+
+    return result;
+  }
+
+  /* Open a cursor representing those entries within the directory
+     designated by the specified DOCUMENTID within the tree URI whose
+     names begin with PREFIX, disregarding case if IGNORECASE.  Its
+     projection consists of only the display name and MIME type
+     columns.
+
+     If DOCUMENTID is NULL, use the document ID within URI itself.
+     Value is NULL upon failure.
+
+     The contents of the directory are taken from its index if it has
+     been read in full.  Otherwise, the provider is asked for
+     matching documents alone, although many return every document
+     regardless, in which case the directory is indexed for
+     subsequent requests.
+
+     In addition, arbitrary runtime exceptions (such as
+     SecurityException or UnsupportedOperationException) may be
+     thrown.  */
+
+  public Cursor
+  openDocumentDirectoryMatching (final String uri,
+				 final String documentId,
+				 final String prefix,
+				 final boolean ignoreCase)
+  {
+    return (Cursor) runObjectFunction (uri, new SafObjectFunction () {
+	@Override
+	public Object
+	runObject (CancellationSignal signal)
+	{
+	  return openDocumentDirectoryMatching1 (uri, documentId,
+						 prefix, ignoreCase,
+						 signal);
+	}
+      });
+  }
+
+  /* The crux of `openDocument'.  SIGNAL must be a cancellation
+     signal.  */
+
+  public ParcelFileDescriptor
+  openDocument1 (String uri, String documentId, boolean read,
+		 boolean write, boolean truncate, long spoolLimit,
+		 String stageName, CancellationSignal signal)
+    throws Throwable
+  {
+    Uri treeUri, documentUri;
+    String mode;
+    ParcelFileDescriptor fileDescriptor, copy;
+    CacheToplevel toplevel;
+    long[] stat;
+    long mtime;
+
+    treeUri = Uri.parse (uri);
+    mtime = 0;
+
+    if (staging != null)
+      {
+	/* If the document is being saved in the background, read the
+	   contents being saved rather than those of the
+	   document.  */
+
+	if (read && !write)
+	  {
+	    fileDescriptor = staging.openPending (uri, documentId);
+
+	    if (fileDescriptor != null)
+	      return fileDescriptor;
+	  }
+
+	/* If the document is to be replaced and STAGENAME is set,
+	   write to a staging file that will be saved into the
+	   document once it is closed, unless the document can be
+	   written directly.  */
+
+	if (write && !read && truncate && stageName != null
+	    && !EmacsSafDirect.mayAccess (uri))
+	  {
+	    fileDescriptor = staging.open (uri, documentId, stageName,
+					   getWorker (uri).handler);
+
+	    if (fileDescriptor != null)
+	      {
+		getCache (treeUri).statCache.remove (documentId);
+
+		if (spool != null)
+		  spool.remove (uri, documentId);
+
+		return fileDescriptor;
+	      }
+	  }
+
+	/* Otherwise, if the document is to be written, wait for any
+	   save of the document pending in the background to complete
+	   first.  Else that save would overwrite what is written now,
+	   and anything appended would be appended to the contents it
+	   is about to replace.  */
+
+	if (write)
+	  staging.flushDocument (uri, documentId, signal);
+      }
+
+    /* If the document is only to be read, and a local copy of its
+       current contents exists, open that instead.  Copies are
+       identified by modification time, so documents without one are
+       never copied.  */
+
+    if (read && !write && spoolLimit > 0 && spool != null)
+      {
+	/* A copy must never be returned after the document is
+	   modified, so disregard the cached file status unless the
+	   provider is known to report changes, as in
+	   `openDocumentIfChanged1'.  */
+
+	toplevel = getCache (treeUri);
+
+	if (!toplevel.notifying)
+	  toplevel.statCache.remove (documentId);
+
+	stat = statDocument1 (uri, documentId, signal, false);
+
+	if (stat != null && stat[2] != 0)
+	  {
+	    mtime = stat[2];
+	    fileDescriptor = spool.open (uri, documentId, mtime,
+					 spoolLimit);
+
+	    if (fileDescriptor != null)
+	      return fileDescriptor;
+	  }
+
+	/* Don't copy documents whose size is unknown or exceeds
+	   SPOOLLIMIT, which would otherwise be downloaded in their
+	   entirety before Emacs could read any of their contents.  */
+
+	if (stat == null || stat[1] < 0 || stat[1] > spoolLimit)
+	  mtime = 0;
+      }
+
+    /* documentId must be set for this request, since it doesn't make
+       sense to ``open'' the root of the directory tree.  */
+
+    documentUri
+      = DocumentsContract.buildDocumentUriUsingTree (treeUri, documentId);
+
+    /* Select the mode used to open the file.  */
+
+    if (write)
+      {
+	if (read)
+	  {
+	    if (truncate)
+	      mode = "rwt";
+	    else
+	      mode = "rw";
+	  }
+	else
+	  /* Set mode to w when WRITE && !READ, disregarding TRUNCATE.
+	     In contradiction with the ContentResolver documentation,
+	     document providers seem to truncate files whenever w is
+	     specified, at least superficially.  (But see below.)  */
+	  mode = "w";
+      }
+    else
+      mode = "r";
+
+    /* Providers often report the modification of documents opened
+       for writing.  */
+
+    if (write)
+      recordChange (treeUri);
 
     fileDescriptor
       = resolver.openFileDescriptor (documentUri, mode,
@@ -1661,6 +4182,23 @@ else if (!read && write && truncate && fileDescriptor != null)
     toplevel = getCache (treeUri);
     toplevel.statCache.remove (documentId);
 
+    if (write && spool != null)
+      spool.remove (uri, documentId);
+
+    /* If the provider returned a pipe or socket, which cannot be
+       seeked within or read again, copy its contents into a local
+       file and return that instead.  */
+
+    if (mtime != 0 && fileDescriptor != null
+	&& fileDescriptor.getStatSize () < 0)
+      {
+	copy = spool.spool (uri, documentId, mtime, spoolLimit,
+			    fileDescriptor, signal);
+
+	if (copy != null)
+	  fileDescriptor = copy;
+      }
+
     return fileDescriptor;
   }
 
@@ -1675,7 +4213,18 @@ else if (!read && write && truncate && fileDescriptor != null)
      the file after it is opened.
 
      If only READ or WRITE is set, value may be a non-seekable FIFO or
-     one end of a socket pair.
+     one end of a socket pair.  But if only READ is set and
+     SPOOLLIMIT is positive, the contents of such a FIFO are copied
+     into a local file, which is returned in its place, and retained
+     for subsequent requests to read the document until it is
+     modified or the total size of such files exceeds SPOOLLIMIT.
+     Documents whose size is unknown or greater than SPOOLLIMIT are
+     not copied.
+
+     If WRITE && TRUNCATE && !READ and STAGENAME is set, value is a
+     local staging file whose contents are saved into the document in
+     the background once it is closed, after which Emacs is notified
+     that the document named STAGENAME has been saved.
 
      Value is NULL upon failure or a parcel file descriptor upon
      success.  Call `ParcelFileDescriptor.close' on this file
@@ -1688,21 +4237,742 @@ else if (!read && write && truncate && fileDescriptor != null)
   public ParcelFileDescriptor
   openDocument (final String uri, final String documentId,
 		final boolean read, final boolean write,
-		final boolean truncate)
+		final boolean truncate, final long spoolLimit,
+		final String stageName)
   {
     Object tem;
+    ParcelFileDescriptor fileDescriptor;
+
+    /* Open the file through the file system if possible.  */
+
+    if (EmacsSafDirect.mayAccess (uri))
+      {
+	fileDescriptor
+	  = EmacsSafDirect.openDocument (Uri.parse (uri), documentId,
+					 read, write, truncate);
 
-    tem = runObjectFunction (new SafObjectFunction () {
+	if (fileDescriptor != null)
+	  return fileDescriptor;
+      }
+
+    tem = runObjectFunction (uri, new SafObjectFunction () {
 	@Override
 	public Object
 	runObject (CancellationSignal signal)
 	  throws Throwable
 	{
-	  return openDocument1 (uri, documentId, read,
-				write, truncate, signal);
+	  long start;
+
+	  start = System.nanoTime ();
+
+	  try
+	    {
+	      return openDocument1 (uri, documentId, read, write,
+				    truncate, spoolLimit, stageName,
+				    signal);
+	    }
+	  finally
+	    {
+	      EmacsSafStatistics.record (EmacsSafStatistics
+					 .OPEN_DOCUMENT, start);
+	    }
 	}
       });
 
     return (ParcelFileDescriptor) tem;
   }
+
+  /* Return whether STAT, in the format returned by `statDocument',
+     records a size of SIZE and a modification time of MTIME.  An
+     unknown size or modification time is never considered to
+     match.  */
+
+  private static boolean
+  isUnchanged (long[] stat, long size, long mtime)
+  {
+    return (stat[1] >= 0 && stat[2] != 0
+	    && stat[1] == size && stat[2] == mtime);
+  }
+
+  /* The crux of `openDocumentIfChanged'.  SIGNAL must be a
+     cancellation signal.  */
+
+  private ParcelFileDescriptor
+  openDocumentIfChanged1 (String uri, String documentId, long size,
+			  long mtime, long[] stat_return,
+			  CancellationSignal signal)
+    throws Throwable
+  {
+    CacheToplevel toplevel;
+    long[] stat;
+
+    /* The cached file status can only be relied upon to be current
+       if the provider has been observed to report changes.
+       Otherwise, query the provider, which is still far cheaper than
+       opening and reading the document.  */
+
+    toplevel = getCache (Uri.parse (uri));
+
+    if (!toplevel.notifying)
+      toplevel.statCache.remove (documentId);
+
+    stat = statDocument1 (uri, documentId, signal, false);
+
+    if (stat == null)
+      {
+	stat_return[0] = 0;
+	return null;
+      }
+
+    System.arraycopy (stat, 0, stat_return, 0, 3);
+
+    if (isUnchanged (stat, size, mtime))
+      return null;
+
+    return openDocument1 (uri, documentId, true, false, false, 0,
+			  null, signal);
+  }
+
+  /* Open a file descriptor for reading the file document designated
+     by DOCUMENTID within the document tree identified by URI, unless
+     its size and modification time (as returned by `statDocument')
+     are still SIZE and MTIME.
+
+     Place the file status of the document, in the format returned by
+     `statDocument', within STAT_RETURN.  Value is NULL if the
+     document is unchanged, in which case it is not opened, or if it
+     could not be opened, in which case the first element of
+     STAT_RETURN is 0.  Otherwise, value is a parcel file descriptor
+     as returned by `openDocument', which may be a non-seekable FIFO.
+
+     The exceptions signaled are as in `openDocument'.  */
+
+  public ParcelFileDescriptor
+  openDocumentIfChanged (final String uri, final String documentId,
+			 final long size, final long mtime,
+			 final long[] stat_return)
+  {
+    Object tem;
+    ParcelFileDescriptor fileDescriptor;
+    long[] stat;
+
+    /* Compare and open the file through the file system if
+       possible.  */
+
+    if (EmacsSafDirect.mayAccess (uri))
+      {
+	try
+	  {
+	    stat = EmacsSafDirect.statDocument (Uri.parse (uri),
+						documentId);
+	  }
+	catch (FileNotFoundException exception)
+	  {
+	    EmacsSafThread.<RuntimeException>throwException (exception);
+	    return null;
+	  }
+
+	if (stat != null)
+	  {
+	    System.arraycopy (stat, 0, stat_return, 0, 3);
+
+	    if (isUnchanged (stat, size, mtime))
+	      return null;
+
+	    fileDescriptor
+	      = EmacsSafDirect.openDocument (Uri.parse (uri), documentId,
+					     true, false, false);
+
+	    if (fileDescriptor != null)
+	      return fileDescriptor;
+	  }
+      }
+
+    tem = runObjectFunction (uri, new SafObjectFunction () {
+	@Override
+	public Object
+	runObject (CancellationSignal signal)
+	  throws Throwable
+	{
+	  return openDocumentIfChanged1 (uri, documentId, size, mtime,
+					 stat_return, signal);
+	}
+      });
+
+    return (ParcelFileDescriptor) tem;
+  }
+
+  /* Wait for documents being saved in the background to be saved.
+     If NAME is set, wait only for saves of the document that Emacs
+     knows by that name.  Value is the error with which the last of
+     those saves failed, or NULL if all succeeded.
+
+     OperationCanceledException is signaled if Emacs is interrupted
+     before the saves complete.  */
+
+  public String
+  flushDocuments (final String name)
+  {
+    SafRequest request;
+
+    if (staging == null)
+      return null;
+
+    /* Saves might take arbitrarily long to complete, so wait for them
+       within a thread of its own rather than a worker, whose trees
+       would be inaccessible in the meantime.  */
+
+    synchronized (this)
+      {
+	if (flushExecutor == null)
+	  flushExecutor = Executors.newSingleThreadExecutor ();
+      }
+
+    request = new SafRequest ();
+    request.objectFunction = new SafObjectFunction () {
+	@Override
+	public Object
+	runObject (CancellationSignal signal)
+	{
+	  return staging.flush (name, signal);
+	}
+      };
+
+    flushExecutor.execute (request);
+    waitForRequest (request);
+
+    if (request.error != null)
+      EmacsSafThread.<RuntimeException>throwException (request.error);
+
+    return (String) request.objectResult;
+  }
+
+  /* Return the names of documents being saved in the background.  */
+
+  public String[]
+  getPendingDocuments ()
+  {
+    if (staging == null)
+      return new String[0];
+
+    return staging.getPending ();
+  }
+
+
+
+  /* Tree walks.  A tree walk lists every document beneath a directory
+     in breadth-first order, listing up to WALK_MAX_PARALLEL
+     directories at once on threads of its own, and returns their
+     contents in batches as they arrive.
+
+     Listings are read on the walk's threads, but the contents of
+     each directory are entered into the cache by the worker
+     responsible for the tree as Emacs reads them, as the caches are
+     only accessed from that thread.  */
+
+  /* Directory awaiting listing by a tree walk.  */
+
+  private static final class WalkDirectory
+  {
+    /* The document ID of the directory.  */
+    final String documentId;
+
+    /* Its file name relative to the directory being walked, or the
+       empty string if it is that directory.  */
+    final String path;
+
+    public
+    WalkDirectory (String documentId, String path)
+    {
+      this.documentId = documentId;
+      this.path = path;
+    }
+  };
+
+  /* Contents of a directory listed by a tree walk.  */
+
+  private static final class WalkBatch
+  {
+    /* The directory listed.  */
+    final WalkDirectory directory;
+
+    /* The display names, document IDs and MIME types of its
+       children.  */
+    final ArrayList<String> names, ids, types;
+
+    /* The file status of each child, whose elements are NULL if it
+       could not be read.  */
+    final ArrayList<StatCacheEntry> stats;
+
+    /* Whether children were omitted because their rows were
+       incomplete.  */
+    boolean partial;
+
+    public
+    WalkBatch (WalkDirectory directory)
+    {
+      this.directory = directory;
+      this.names = new ArrayList<String> ();
+      this.ids = new ArrayList<String> ();
+      this.types = new ArrayList<String> ();
+      this.stats = new ArrayList<StatCacheEntry> ();
+    }
+  };
+
+  /* State of a tree walk.  Created by `walkDocumentTree', read with
+     `readTreeWalk', and released with `closeTreeWalk'.  */
+
+  public final class TreeWalk
+  {
+    /* The tree being walked.  */
+    private final Uri tree;
+
+    /* Cancellation signal for each listing.  */
+    private final CancellationSignal signal;
+
+    /* Directories yet to be listed, in order of discovery.  */
+    private final ArrayDeque<WalkDirectory> pending;
+
+    /* Directories listed but not yet read by Emacs.  */
+    private final ArrayDeque<WalkBatch> batches;
+
+    /* Number of listings under way.  */
+    private int running;
+
+    /* Error that terminated the walk, or NULL.  */
+    private Throwable error;
+
+    /* The batch being read by Emacs, and the position of the next
+       entry within it.  Only accessed from the worker thread.  */
+    private WalkBatch current;
+    private int position;
+
+    private
+    TreeWalk (Uri tree, String documentId)
+    {
+      this.tree = tree;
+      this.signal = new CancellationSignal ();
+      this.pending = new ArrayDeque<WalkDirectory> ();
+      this.batches = new ArrayDeque<WalkBatch> ();
+      this.pending.add (new WalkDirectory (documentId, ""));
+    }
+
+    /* Begin listing pending directories until WALK_MAX_PARALLEL
+       listings are under way.  Call with this walk locked.  */
+
+    private void
+    schedule ()
+    {
+      while (running < WALK_MAX_PARALLEL && !pending.isEmpty ()
+	     && error == null)
+	{
+	  running++;
+	  startListing (pending.remove ());
+	}
+    }
+
+    /* List DIRECTORY on one of the walk's threads.  */
+
+    private void
+    startListing (final WalkDirectory directory)
+    {
+      walkExecutor.execute (new Runnable () {
+	  @Override
+	  public void
+	  run ()
+	  {
+	    listDirectory (directory);
+	  }
+	});
+    }
+
+    /* List DIRECTORY, and save its contents for Emacs to read.  Run
+       from one of the walk's threads.  */
+
+    private void
+    listDirectory (WalkDirectory directory)
+    {
+      WalkBatch batch;
+      Throwable failure;
+      String name, path;
+      int i;
+
+      batch = null;
+      failure = null;
+
+      try
+	{
+	  batch = listWalkDirectory (tree, directory, signal);
+	}
+      catch (FileNotFoundException exception)
+	{
+	  /* Subdirectories deleted during the walk are skipped.  */
+	  if (directory.path.isEmpty ())
+	    failure = exception;
+	}
+      catch (Throwable throwable)
+	{
+	  failure = throwable;
+	}
+
+      synchronized (this)
+	{
+	  running--;
+
+	  if (failure != null && error == null)
+	    {
+	      error = failure;
+	      signal.cancel ();
+	    }
+
+	  if (batch != null)
+	    {
+	      batches.add (batch);
+
+	      /* Queue each subdirectory for listing.  */
+
+	      for (i = 0; i < batch.names.size (); ++i)
+		{
+		  if (!batch.types.get (i).equals (Document.MIME_TYPE_DIR))
+		    continue;
+
+		  name = batch.names.get (i);
+		  path = (directory.path.isEmpty () ? name
+			  : directory.path + "/" + name);
+		  pending.add (new WalkDirectory (batch.ids.get (i), path));
+		}
+	    }
+
+	  schedule ();
+	  notifyAll ();
+	}
+    }
+
+    /* Return the next batch to be read, waiting for one to arrive if
+       none is available.  Value is NULL once the walk is complete.
+       Throw OperationCanceledException if SIGNAL is canceled, or any
+       error that terminated the walk.  */
+
+    private synchronized WalkBatch
+    takeBatch (CancellationSignal signal)
+      throws Throwable
+    {
+      while (batches.isEmpty ())
+	{
+	  if (error != null)
+	    throw error;
+
+	  if (running == 0 && pending.isEmpty ())
+	    return null;
+
+	  signal.throwIfCanceled ();
+	  wait ();
+	}
+
+      return batches.remove ();
+    }
+
+    /* Abandon this walk.  */
+
+    private void
+    cancel ()
+    {
+      signal.cancel ();
+
+      synchronized (this)
+	{
+	  pending.clear ();
+	  batches.clear ();
+
+	  if (error == null)
+	    error = new OperationCanceledException ();
+
+	  notifyAll ();
+	}
+    }
+  };
+
+  /* List the directory DIRECTORY within TREE on behalf of a tree
+     walk, and return its contents.  SIGNAL is the walk's cancellation
+     signal.  */
+
+  private WalkBatch
+  listWalkDirectory (Uri tree, WalkDirectory directory,
+		     CancellationSignal signal)
+    throws FileNotFoundException
+  {
+    Uri uri;
+    Cursor cursor;
+    WalkBatch batch;
+    String[] projection;
+    String name, id, type;
+    int nameColumn, idColumn, typeColumn;
+    StatCacheEntry stat;
+
+    uri = (DocumentsContract.buildChildDocumentsUriUsingTree
+	   (tree, directory.documentId));
+    projection = new String [] {
+      Document.COLUMN_DISPLAY_NAME,
+      Document.COLUMN_DOCUMENT_ID,
+      Document.COLUMN_MIME_TYPE,
+      Document.COLUMN_FLAGS,
+      Document.COLUMN_LAST_MODIFIED,
+      Document.COLUMN_SIZE,
+    };
+
+    cursor = resolver.query (uri, projection, null, null, null,
+			     signal);
+
+    if (cursor == null)
+      throw new FileNotFoundException (uri.toString ());
+
+    batch = new WalkBatch (directory);
+
+    try
+      {
+	nameColumn
+	  = cursor.getColumnIndex (Document.COLUMN_DISPLAY_NAME);
+	idColumn
+	  = cursor.getColumnIndex (Document.COLUMN_DOCUMENT_ID);
+	typeColumn
+	  = cursor.getColumnIndex (Document.COLUMN_MIME_TYPE);
+
+	if (nameColumn < 0 || idColumn < 0 || typeColumn < 0)
+	  return batch;
+
+	while (cursor.moveToNext ())
+	  {
+	    name = cursor.getString (nameColumn);
+	    id = cursor.getString (idColumn);
+	    type = cursor.getString (typeColumn);
+
+	    /* Skip incomplete entries, and those whose names cannot be
+	       represented, as `readDirectoryEntries' does.  */
+
+	    if (name == null || id == null || type == null)
+	      {
+		batch.partial = true;
+		continue;
+	      }
+
+	    if (name.equals ("..") || name.equals (".")
+		|| name.contains ("/") || name.contains ("\0"))
+	      continue;
+
+	    /* This doesn't touch the cache if NO_CACHE.  */
+
+	    try
+	      {
+		stat = cacheFileStatus (id, null, cursor, true);
+	      }
+	    catch (Exception exception)
+	      {
+		stat = null;
+	      }
+
+	    batch.names.add (name);
+	    batch.ids.add (id);
+	    batch.types.add (type);
+	    batch.stats.add (stat);
+	  }
+      }
+    finally
+      {
+	cursor.close ();
+      }
+
+    return batch;
+  }
+
+  /* Enter the contents of the directory listed in BATCH into the
+     cache within TOPLEVEL.  */
+
+  private void
+  cacheWalkBatch (CacheToplevel toplevel, WalkBatch batch)
+  {
+    CacheEntry entry, constituent;
+    DocIdEntry idEntry;
+    StatCacheEntry stat;
+    String id, type;
+    int i;
+
+    entry = new CacheEntry ();
+    entry.type = Document.MIME_TYPE_DIR;
+    entry.complete = !batch.partial;
+    entry.generation = toplevel.generation;
+
+    for (i = 0; i < batch.names.size (); ++i)
+      {
+	id = batch.ids.get (i);
+	type = batch.types.get (i);
+	stat = batch.stats.get (i);
+
+	idEntry = new DocIdEntry ();
+	idEntry.documentId = id;
+	idEntry.type = type;
+	entry.children.put (batch.names.get (i), idEntry);
+
+	if (stat != null)
+	  putFileStatus (id, toplevel, stat);
+
+	/* Directories are entered into the cache as they are
+	   themselves read.  */
+
+	if (type.equals (Document.MIME_TYPE_DIR))
+	  continue;
+
+	constituent = new CacheEntry ();
+	constituent.type = type;
+	toplevel.idCache.put (id, constituent);
+      }
+
+    /* As in `cacheDirectoryFromCursor', enter the directory once its
+       children are known.  */
+    toplevel.idCache.put (batch.directory.documentId, entry);
+    adjustCacheLifetime (toplevel);
+  }
+
+  /* Begin walking the tree beneath the directory DOCUMENTID within
+     the tree URI, or the root of the tree if DOCUMENTID is NULL.
+     Value is the tree walk.  */
+
+  public TreeWalk
+  walkDocumentTree (String uri, String documentId)
+  {
+    TreeWalk walk;
+    Uri tree;
+
+    tree = Uri.parse (uri);
+
+    if (documentId == null)
+      documentId = DocumentsContract.getTreeDocumentId (tree);
+
+    walk = new TreeWalk (tree, documentId);
+
+    synchronized (this)
+      {
+	if (walkExecutor == null)
+	  walkExecutor
+	    = Executors.newFixedThreadPool (WALK_MAX_PARALLEL);
+      }
+
+    synchronized (walk)
+      {
+	walk.schedule ();
+      }
+
+    return walk;
+  }
+
+  /* Read up to NAMES.length entries from WALK.  Place the file name
+     of each entry relative to the directory being walked in NAMES,
+     and its type (1 if it is a directory, and 0 otherwise), size (or
+     -1 if unknown) and modification time in milliseconds (or 0 if
+     unknown) in TYPES, SIZES, and MTIMES.
+
+     Wait for further entries to be listed if none are available.
+     Value is the number of entries read, or 0 once every entry has
+     been read.
+
+     Signal OperationCanceledException if quitting while waiting, or
+     any exception that terminated the walk.  */
+
+  private int
+  readTreeWalk1 (final TreeWalk walk, String[] names, int[] types,
+		 long[] sizes, long[] mtimes, CancellationSignal signal)
+    throws Throwable
+  {
+    CacheToplevel toplevel;
+    WalkBatch batch;
+    StatCacheEntry stat;
+    String path, name;
+    int count;
+
+    toplevel = getCache (walk.tree);
+
+    while (walk.current == null
+	   || walk.position == walk.current.names.size ())
+      {
+	/* Wake the wait in `takeBatch' upon quitting.  */
+
+	signal.setOnCancelListener (new OnCancelListener () {
+	    @Override
+	    public void
+	    onCancel ()
+	    {
+	      synchronized (walk)
+		{
+		  walk.notifyAll ();
+		}
+	    }
+	  });
+
+	try
+	  {
+	    batch = walk.takeBatch (signal);
+	  }
+	catch (OperationCanceledException exception)
+	  {
+	    /* The walk is abandoned upon quitting.  */
+	    walk.cancel ();
+	    throw exception;
+	  }
+	finally
+	  {
+	    signal.setOnCancelListener (null);
+	  }
+
+	if (batch == null)
+	  return 0;
+
+	cacheWalkBatch (toplevel, batch);
+	walk.current = batch;
+	walk.position = 0;
+      }
+
+    batch = walk.current;
+    path = batch.directory.path;
+
+    for (count = 0; (count < names.length
+		     && walk.position < batch.names.size ()); ++count)
+      {
+	name = batch.names.get (walk.position);
+	names[count] = path.isEmpty () ? name : path + "/" + name;
+	types[count] = (batch.types.get (walk.position)
+			.equals (Document.MIME_TYPE_DIR) ? 1 : 0);
+	stat = batch.stats.get (walk.position);
+	sizes[count] = stat != null ? stat.size : -1;
+	mtimes[count] = stat != null ? stat.mtime : 0;
+	walk.position++;
+      }
+
+    return count;
+  }
+
+  /* Read entries from WALK, as with `readTreeWalk1'.  */
+
+  public int
+  readTreeWalk (final TreeWalk walk, final String[] names,
+		final int[] types, final long[] sizes,
+		final long[] mtimes)
+  {
+    return runIntFunction (walk.tree.toString (), new SafIntFunction () {
+	@Override
+	public int
+	runInt (CancellationSignal signal)
+	  throws Throwable
+	{
+	  return readTreeWalk1 (walk, names, types, sizes, mtimes,
+				signal);
+	}
+      });
+  }
+
+  /* Stop walking the tree with WALK.  */
+
+  public void
+  closeTreeWalk (TreeWalk walk)
+  {
+    walk.cancel ();
+  }
 };
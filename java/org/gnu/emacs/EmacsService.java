@@ -19,11 +19,13 @@
 
 package org.gnu.emacs;
 
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 
@@ -136,10 +138,26 @@ public final class EmacsService extends Service
      been created yet.  */
   private EmacsSafThread storageThread;
 
+  /* Whether persistent indices of the names of documents are
+     maintained.  */
+  private boolean documentIndexEnabled;
+
   /* The Thread object representing the Android user interface
      thread.  */
   private Thread mainThread;
 
+  /* Map between descriptors and document watches.  Only accessed
+     from the Emacs thread.  */
+  private final HashMap<Integer, EmacsDocumentWatch> documentWatches
+    = new HashMap<Integer, EmacsDocumentWatch> ();
+
+  /* The descriptor of the next document watch.  */
+  private int nextDocumentWatch;
+
+  /* Index of the document trees that Emacs holds persistent rights
+     to read, or null if it must be built anew.  */
+  private volatile DocumentTreeIndex documentTrees;
+
   static
   {
     servicingQuery = new AtomicInteger ();
@@ -1195,29 +1213,105 @@ else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M)
   /* Document tree management functions.  These functions shouldn't be
      called before Android 5.0.  */
 
-  /* Return an array of each document authority providing at least one
-     tree URI that Emacs holds the rights to persistently access.  */
+  /* Index of the tree URIs that Emacs holds the rights to
+     persistently read.  Listing the persisted URI permissions
+     entails IPC with the system, which is too slow to repeat each
+     time `/content/storage' is listed or a file within it is named,
+     so the index is retained until permissions are granted or
+     released.  */
 
-  public String[]
-  getDocumentAuthorities ()
+  private static final class DocumentTreeIndex
   {
-    List<UriPermission> permissions;
-    HashSet<String> allProviders;
-    Uri uri;
+    /* Map between authorities and the encoded IDs of the trees they
+       provide.  */
+    public final HashMap<String, String[]> trees;
 
-    permissions = resolver.getPersistedUriPermissions ();
-    allProviders = new HashSet<String> ();
+    /* The string forms of each tree URI.  */
+    public final HashSet<String> treeUris;
 
-    for (UriPermission permission : permissions)
-      {
-	uri = permission.getUri ();
+    /* Every authority in TREES.  */
+    public final String[] authorities;
+
+    public
+    DocumentTreeIndex (List<UriPermission> permissions)
+    {
+      HashMap<String, List<String>> lists;
+      List<String> list;
+      Uri uri;
+
+      lists = new HashMap<String, List<String>> ();
+      treeUris = new HashSet<String> ();
+
+      for (UriPermission permission : permissions)
+	{
+	  uri = permission.getUri ();
+
+	  if (!DocumentsContract.isTreeUri (uri)
+	      || !permission.isReadPermission ())
+	    continue;
+
+	  list = lists.get (uri.getAuthority ());
+
+	  if (list == null)
+	    {
+	      list = new ArrayList<String> ();
+	      lists.put (uri.getAuthority (), list);
+	    }
+
+	  /* Make sure the tree document ID is encoded.  Refrain from
+	     encoding characters such as +:&?#, since they don't
+	     conflict with file name separators or other special
+	     characters.  */
+	  list.add (Uri.encode (DocumentsContract.getTreeDocumentId (uri),
+				" +:&?#"));
+	  treeUris.add (uri.toString ());
+	}
+
+      trees = new HashMap<String, String[]> ();
+
+      for (String authority : lists.keySet ())
+	trees.put (authority, lists.get (authority).toArray (new String[0]));
+
+      authorities = trees.keySet ().toArray (new String[0]);
+    }
+  };
+
+  /* Return the index of document trees, building it if necessary.  */
+
+  private DocumentTreeIndex
+  getDocumentTreeIndex ()
+  {
+    DocumentTreeIndex index;
 
-	if (DocumentsContract.isTreeUri (uri)
-	    && permission.isReadPermission ())
-	  allProviders.add (uri.getAuthority ());
+    index = documentTrees;
+
+    if (index == null)
+      {
+	index
+	  = new DocumentTreeIndex (resolver.getPersistedUriPermissions ());
+	documentTrees = index;
       }
 
-    return allProviders.toArray (new String[0]);
+    return index;
+  }
+
+  /* Discard the index of document trees, after persistent rights to
+     access a tree are granted or released.  May be called from any
+     thread.  */
+
+  public void
+  invalidateDocumentTrees ()
+  {
+    documentTrees = null;
+  }
+
+  /* Return an array of each document authority providing at least one
+     tree URI that Emacs holds the rights to persistently access.  */
+
+  public String[]
+  getDocumentAuthorities ()
+  {
+    return getDocumentTreeIndex ().authorities.clone ();
   }
 
   /* Start a file chooser activity to request access to a directory
@@ -1296,9 +1390,7 @@ else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M)
   getDocumentTrees (byte provider[])
   {
     String providerName;
-    List<String> treeList;
-    List<UriPermission> permissions;
-    Uri uri;
+    String[] trees;
 
     try
       {
@@ -1309,25 +1401,8 @@ else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M)
 	return null;
       }
 
-    permissions = resolver.getPersistedUriPermissions ();
-    treeList = new ArrayList<String> ();
-
-    for (UriPermission permission : permissions)
-      {
-	uri = permission.getUri ();
-
-	if (DocumentsContract.isTreeUri (uri)
-	    && uri.getAuthority ().equals (providerName)
-	    && permission.isReadPermission ())
-	  /* Make sure the tree document ID is encoded.  Refrain from
-	     encoding characters such as +:&?#, since they don't
-	     conflict with file name separators or other special
-	     characters.  */
-	  treeList.add (Uri.encode (DocumentsContract.getTreeDocumentId (uri),
-				    " +:&?#"));
-      }
-
-    return treeList.toArray (new String[0]);
+    trees = getDocumentTreeIndex ().trees.get (providerName);
+    return trees != null ? trees.clone () : new String[0];
   }
 
   /* Find the document ID of the file within TREE_URI designated by
@@ -1357,7 +1432,8 @@ else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M)
 
     if (storageThread == null)
       {
-	storageThread = new EmacsSafThread (resolver);
+	storageThread = new EmacsSafThread (resolver, getIndexDirectory (),
+					    getCacheDir ());
 	storageThread.start ();
       }
 
@@ -1374,30 +1450,19 @@ else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M)
   public String
   getTreeUri (String tree, String authority)
   {
-    Uri uri, grantedUri;
-    List<UriPermission> permissions;
+    Uri uri;
+    String string;
 
     /* First, build the URI.  */
     tree = Uri.decode (tree);
     uri = DocumentsContract.buildTreeDocumentUri (authority, tree);
 
-    /* Now, search for it within the list of persisted URI
-       permissions.  */
-    permissions = resolver.getPersistedUriPermissions ();
-
-    for (UriPermission permission : permissions)
-      {
-	/* If the permission doesn't entitle Emacs to read access,
-	   skip it.  */
-
-	if (!permission.isReadPermission ())
-	  continue;
+    /* Now, search for it within the index of trees Emacs holds
+       persisted rights to read.  */
+    string = uri.toString ();
 
-        grantedUri = permission.getUri ();
-
-	if (grantedUri.equals (uri))
-	  return uri.toString ();
-      }
+    if (getDocumentTreeIndex ().treeUris.contains (string))
+      return string;
 
     /* Emacs doesn't have permission to access this tree URI.  */
     return null;
@@ -1428,13 +1493,48 @@ else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M)
 
     if (storageThread == null)
       {
-	storageThread = new EmacsSafThread (resolver);
+	storageThread = new EmacsSafThread (resolver, getIndexDirectory (),
+					    getCacheDir ());
 	storageThread.start ();
       }
 
     return storageThread.statDocument (uri, documentId, noCache);
   }
 
+  /* Return file status for each of the first COUNT DOCUMENTS within
+     the tree URI, in the format returned by `statDocument'.
+     DOCUMENTS should be document IDs, or if BYNAME, the display names
+     of children of the directory designated by PARENTID.  PARENTID is
+     the directory containing most or all of DOCUMENTS, or NULL if
+     that is the root of the tree.
+
+     Value is an array of COUNT elements, each of which is null if
+     the file status of the corresponding document cannot be
+     obtained.  All of the file status is retrieved within a single
+     request to the SAF thread, and where possible a single query of
+     PARENTID.
+
+     NOCACHE and the exceptions signaled are as in
+     `statDocument'.  */
+
+  public long[][]
+  statDocuments (String uri, String parentId, String[] documents,
+		 int count, boolean byName, boolean noCache)
+  {
+    /* Start the thread used to run SAF requests if it isn't already
+       running.  */
+
+    if (storageThread == null)
+      {
+	storageThread = new EmacsSafThread (resolver, getIndexDirectory (),
+					    getCacheDir ());
+	storageThread.start ();
+      }
+
+    return storageThread.statDocuments (uri, parentId, documents,
+					count, byName, noCache);
+  }
+
   /* Find out whether Emacs has access to the document designated by
      the specified DOCUMENTID within the tree URI.  If DOCUMENTID is
      NULL, use the document ID in URI itself.
@@ -1462,7 +1562,8 @@ In addition, arbitrary runtime exceptions (such as
 
     if (storageThread == null)
       {
-	storageThread = new EmacsSafThread (resolver);
+	storageThread = new EmacsSafThread (resolver, getIndexDirectory (),
+					    getCacheDir ());
 	storageThread.start ();
       }
 
@@ -1475,93 +1576,313 @@ In addition, arbitrary runtime exceptions (such as
      If DOCUMENTID is NULL, use the document ID within URI itself.
      Value is NULL upon failure.
 
+     If PREFETCH, list the subdirectories of this directory in the
+     background afterwards.
+
      In addition, arbitrary runtime exceptions (such as
      SecurityException or UnsupportedOperationException) may be
      thrown.  */
 
   public Cursor
-  openDocumentDirectory (String uri, String documentId)
+  openDocumentDirectory (String uri, String documentId,
+			 boolean prefetch)
   {
     /* Start the thread used to run SAF requests if it isn't already
        running.  */
 
     if (storageThread == null)
       {
-	storageThread = new EmacsSafThread (resolver);
+	storageThread = new EmacsSafThread (resolver, getIndexDirectory (),
+					    getCacheDir ());
 	storageThread.start ();
       }
 
-    return storageThread.openDocumentDirectory (uri, documentId);
+    return storageThread.openDocumentDirectory (uri, documentId,
+						prefetch);
   }
 
-  /* Read a single directory entry from the specified CURSOR.  Return
-     NULL if at the end of the directory stream, and a directory entry
-     with `d_name' set to NULL if an error occurs.  */
+  /* Like `openDocumentDirectory', but only return entries whose names
+     begin with PREFIX, disregarding case if IGNORECASE.  */
 
-  public EmacsDirectoryEntry
-  readDirectoryEntry (Cursor cursor)
+  public Cursor
+  openDocumentDirectoryMatching (String uri, String documentId,
+				 String prefix, boolean ignoreCase)
   {
-    EmacsDirectoryEntry entry;
-    int index;
+    /* Start the thread used to run SAF requests if it isn't already
+       running.  */
+
+    if (storageThread == null)
+      {
+	storageThread = new EmacsSafThread (resolver, getIndexDirectory (),
+					    getCacheDir ());
+	storageThread.start ();
+      }
+
+    return storageThread.openDocumentDirectoryMatching (uri, documentId,
+							prefix,
+							ignoreCase);
+  }
+
+  /* Read up to NAMES.length directory entries from the specified
+     CURSOR into NAMES, and whether each is a directory into TYPES.
+     Each element of TYPES is set to 1 if its entry is a directory,
+     and 0 otherwise.
+
+     COLUMNS must be an array of two elements, initially -1, in which
+     the indices of the display name and MIME type columns of CURSOR
+     are saved, so that they are located just once for each cursor.
+
+     Value is the number of entries read, 0 if at the end of the
+     directory stream, or -1 if an error occurs.  */
+
+  public int
+  readDirectoryEntries (Cursor cursor, int[] columns, String[] names,
+			int[] types)
+  {
+    int count;
     String name, type;
 
-    entry = new EmacsDirectoryEntry ();
+    /* First, locate the display name and type columns.  */
 
-    while (true)
+    if (columns[0] < 0 || columns[1] < 0)
       {
-	if (!cursor.moveToNext ())
-	  return null;
+	columns[0] = cursor.getColumnIndex (Document.COLUMN_DISPLAY_NAME);
+	columns[1] = cursor.getColumnIndex (Document.COLUMN_MIME_TYPE);
 
-	/* First, retrieve the display name.  */
-	index = cursor.getColumnIndex (Document.COLUMN_DISPLAY_NAME);
+	if (columns[0] < 0 || columns[1] < 0)
+	  return -1;
+      }
 
-	if (index < 0)
-	  /* Return an invalid directory entry upon failure.  */
-	  return entry;
+    count = 0;
 
+    while (count < names.length && cursor.moveToNext ())
+      {
 	try
 	  {
-	    name = cursor.getString (index);
+	    name = cursor.getString (columns[0]);
+	    type = cursor.getString (columns[1]);
 	  }
 	catch (Exception exception)
 	  {
-	    return entry;
+	    /* Return the entries read so far, and leave the erroneous
+	       row to be reported by the next call.  */
+
+	    if (count > 0)
+	      {
+		cursor.moveToPrevious ();
+		return count;
+	      }
+
+	    return -1;
 	  }
 
 	/* Skip this entry if its name cannot be represented.  NAME
 	   can still be null here, since some Cursors are permitted to
-	   return NULL if INDEX is not a string.  */
+	   return NULL if the column is not a string.  */
 
 	if (name == null || name.equals ("..")
 	    || name.equals (".") || name.contains ("/")
 	    || name.contains ("\0"))
 	  continue;
 
-	/* Now, look for its type.  */
+	names[count] = name;
+	types[count] = ((type != null
+			 && type.equals (Document.MIME_TYPE_DIR))
+			? 1 : 0);
+	count++;
+      }
 
-	index = cursor.getColumnIndex (Document.COLUMN_MIME_TYPE);
+    return count;
+  }
 
-	if (index < 0)
-	  /* Return an invalid directory entry upon failure.  */
-	  return entry;
+  /* Set the number of seconds for which the status of documents
+     provided by AUTHORITY is cached to SECONDS, or let it be adjusted
+     automatically if SECONDS is negative.  */
 
-	try
-	  {
-	    type = cursor.getString (index);
-	  }
-	catch (Exception exception)
-	  {
-	    return entry;
-	  }
+  public void
+  setCacheLifetime (String authority, double seconds)
+  {
+    EmacsSafThread.setCacheLifetime (authority, seconds);
+  }
+
+  /* Return the directory within which the SAF thread should save
+     persistent indices of document names, or NULL if they are
+     disabled.  */
+
+  private File
+  getIndexDirectory ()
+  {
+    return documentIndexEnabled ? getFilesDir () : null;
+  }
+
+  /* Enable or disable persistent indices of the names of documents
+     within each document tree, as requested by
+     `android-persistent-document-index'.  */
+
+  public void
+  setDocumentIndexEnabled (boolean enabled)
+  {
+    documentIndexEnabled = enabled;
+
+    if (storageThread != null)
+      storageThread.setIndexDirectory (getIndexDirectory ());
+  }
+
+  /* Return the authorities of every document provider whose
+     documents have been cached.  */
+
+  public String[]
+  getCacheAuthorities ()
+  {
+    return EmacsSafThread.getCacheAuthorities ();
+  }
+
+  /* Return the statistics of the document cache for AUTHORITY, in the
+     format returned by `EmacsSafThread.getCacheStatistics'.  */
+
+  public long[]
+  getCacheStatistics (String authority)
+  {
+    return EmacsSafThread.getCacheStatistics (authority);
+  }
+
+  /* Return the statistics of OPERATION, in the format returned by
+     `EmacsSafStatistics.getOperationStatistics'.  */
+
+  public long[]
+  getSafOperationStatistics (int operation)
+  {
+    return EmacsSafStatistics.getOperationStatistics (operation);
+  }
+
+  /* Return the tree URIs for which cache statistics exist.  */
+
+  public String[]
+  getSafCacheTrees ()
+  {
+    return EmacsSafStatistics.getCacheTrees ();
+  }
+
+  /* Return the number of hits, misses and expired entries encountered
+     in the cache of the tree URI.  */
+
+  public long[]
+  getSafCacheCounters (String uri)
+  {
+    return EmacsSafStatistics.getCacheStatistics (uri);
+  }
+
+  /* Reset the statistics of requests made to document providers.  */
 
-	if (type != null
-	    && type.equals (Document.MIME_TYPE_DIR))
-	  entry.d_type = 1;
-	entry.d_name = name;
-	return entry;
+  public void
+  resetSafStatistics ()
+  {
+    EmacsSafStatistics.reset ();
+  }
+
+  /* Begin watching the document DOCUMENTID within the tree URI for
+     changes, or the root of URI if DOCUMENTID is NULL.  PARENTNAME
+     is the file name of the directory holding the document within
+     URI, or NULL if it is the root of the tree.
+
+     Send an ANDROID_DOCUMENT_CHANGED event with the descriptor
+     returned whenever the document provider reports a change to the
+     document or its parent directory.  Value is that descriptor.
+
+     Signal FileNotFoundException, SecurityException,
+     OperationCanceledException or UnsupportedOperationException upon
+     failure.  */
+
+  public int
+  addDocumentWatch (String uri, String documentId, String parentName)
+  {
+    Uri tree;
+    String parentId;
+    String[] id;
+    EmacsDocumentWatch watch;
+
+    tree = Uri.parse (uri);
+    parentId = null;
+
+    if (documentId == null)
+      documentId = DocumentsContract.getTreeDocumentId (tree);
+
+    if (parentName != null)
+      {
+	id = new String[1];
+
+	/* documentIdFromName does not accept the name of the root of
+	   the tree.  */
+
+	if (parentName.replace ("/", "").isEmpty ())
+	  parentId = DocumentsContract.getTreeDocumentId (tree);
+	else if (documentIdFromName (uri, parentName, id) == 1)
+	  parentId = id[0];
       }
 
-    /* Not reached.  */
+    watch = new EmacsDocumentWatch (handler, nextDocumentWatch++);
+    watch.register (resolver, tree, documentId, parentId);
+    documentWatches.put (watch.descriptor, watch);
+    return watch.descriptor;
+  }
+
+  /* Stop watching for changes with the document watch identified by
+     DESCRIPTOR.  */
+
+  public void
+  removeDocumentWatch (int descriptor)
+  {
+    EmacsDocumentWatch watch;
+
+    watch = documentWatches.remove (descriptor);
+
+    if (watch != null)
+      resolver.unregisterContentObserver (watch);
+  }
+
+  /* Begin walking the tree beneath the directory DOCUMENTID within
+     the tree URI, or the root of URI if DOCUMENTID is NULL.  Value is
+     the tree walk, which must be released with `closeTreeWalk'.  */
+
+  public EmacsSafThread.TreeWalk
+  walkDocumentTree (String uri, String documentId)
+  {
+    /* Start the thread used to run SAF requests if it isn't already
+       running.  */
+
+    if (storageThread == null)
+      {
+	storageThread = new EmacsSafThread (resolver, getIndexDirectory (),
+					    getCacheDir ());
+	storageThread.start ();
+      }
+
+    return storageThread.walkDocumentTree (uri, documentId);
+  }
+
+  /* Read up to NAMES.length entries from the tree walk WALK into
+     NAMES, TYPES, SIZES and MTIMES, as described within
+     `EmacsSafThread.readTreeWalk1'.  Value is the number of entries
+     read, or 0 once the walk is complete.
+
+     Signal FileNotFoundException, SecurityException,
+     OperationCanceledException or UnsupportedOperationException upon
+     failure.  */
+
+  public int
+  readTreeWalk (EmacsSafThread.TreeWalk walk, String[] names,
+		int[] types, long[] sizes, long[] mtimes)
+  {
+    return storageThread.readTreeWalk (walk, names, types, sizes,
+				       mtimes);
+  }
+
+  /* Release the tree walk WALK.  */
+
+  public void
+  closeTreeWalk (EmacsSafThread.TreeWalk walk)
+  {
+    storageThread.closeTreeWalk (walk);
   }
 
   /* Open a file descriptor for a file document designated by
@@ -1575,7 +1896,13 @@ In addition, arbitrary runtime exceptions (such as
      is opened.
 
      If only READ or WRITE is set, value may be a non-seekable FIFO or
-     one end of a socket pair.
+     one end of a socket pair, unless only READ is set and SPOOLLIMIT
+     is positive, in which case such FIFOs are copied into local files
+     of which up to SPOOLLIMIT bytes are retained.
+
+     If only WRITE and TRUNCATE are set and STAGENAME is non-NULL, the
+     document may be saved in the background after the file descriptor
+     is closed; see `EmacsSafThread.openDocument'.
 
      Value is NULL upon failure or a parcel file descriptor upon
      success.  Call `ParcelFileDescriptor.close' on this file
@@ -1585,20 +1912,75 @@ In addition, arbitrary runtime exceptions (such as
      UnsupportedOperationException may be thrown upon failure.  */
 
   public ParcelFileDescriptor
-  openDocument (String uri, String documentId,
-		boolean read, boolean write, boolean truncate)
+  openDocument (String uri, String documentId, boolean read,
+		boolean write, boolean truncate, long spoolLimit,
+		String stageName)
   {
     /* Start the thread used to run SAF requests if it isn't already
        running.  */
 
     if (storageThread == null)
       {
-	storageThread = new EmacsSafThread (resolver);
+	storageThread = new EmacsSafThread (resolver, getIndexDirectory (),
+					    getCacheDir ());
 	storageThread.start ();
       }
 
     return storageThread.openDocument (uri, documentId, read, write,
-				       truncate);
+				       truncate, spoolLimit, stageName);
+  }
+
+  /* Open a file descriptor for reading the file document designated
+     by DOCUMENTID within the document tree identified by URI, unless
+     its size and modification time are still SIZE and MTIME.  See
+     `EmacsSafThread.openDocumentIfChanged' for the meaning of
+     STAT_RETURN and the value.
+
+     FileNotFoundException and/or SecurityException and
+     UnsupportedOperationException may be thrown upon failure.  */
+
+  public ParcelFileDescriptor
+  openDocumentIfChanged (String uri, String documentId, long size,
+			 long mtime, long[] stat_return)
+  {
+    /* Start the thread used to run SAF requests if it isn't already
+       running.  */
+
+    if (storageThread == null)
+      {
+	storageThread = new EmacsSafThread (resolver, getIndexDirectory (),
+					    getCacheDir ());
+	storageThread.start ();
+      }
+
+    return storageThread.openDocumentIfChanged (uri, documentId, size,
+						mtime, stat_return);
+  }
+
+  /* Wait for documents being saved in the background to be saved, or
+     only the document known as NAME if it is non-NULL.  Value is the
+     error with which a save failed, or NULL.
+
+     OperationCanceledException is thrown if Emacs is interrupted.  */
+
+  public String
+  flushDocuments (String name)
+  {
+    if (storageThread == null)
+      return null;
+
+    return storageThread.flushDocuments (name);
+  }
+
+  /* Return the names of documents being saved in the background.  */
+
+  public String[]
+  getPendingDocuments ()
+  {
+    if (storageThread == null)
+      return new String[0];
+
+    return storageThread.getPendingDocuments ();
   }
 
   /* Create a new document with the given display NAME within the
@@ -1654,17 +2036,23 @@ In addition, arbitrary runtime exceptions (such as
       = DocumentsContract.buildChildDocumentsUriUsingTree (treeUri,
 							   documentId);
 
+    EmacsSafThread.recordChange (treeUri);
     docUri = DocumentsContract.createDocument (resolver,
 					       directoryUri,
 					       mimeType, name);
+    EmacsSafThread.recordChange (treeUri);
 
     if (docUri == null)
       return null;
 
-    /* Invalidate the file status of the containing directory.  */
+    /* Invalidate the file status of the containing directory, and
+       any record of NAME's absence.  */
 
     if (storageThread != null)
-      storageThread.postInvalidateStat (treeUri, documentId);
+      {
+	storageThread.postInvalidateStat (treeUri, documentId);
+	storageThread.postInvalidateMissing (treeUri, documentId, name);
+      }
 
     /* Return the ID of the new document.  */
     return DocumentsContract.getDocumentId (docUri);
@@ -1701,10 +2089,12 @@ In addition, arbitrary runtime exceptions (such as
     /* From Android's perspective, directories are just ordinary
        documents with the `MIME_TYPE_DIR' type.  */
 
+    EmacsSafThread.recordChange (treeUri);
     docUri = DocumentsContract.createDocument (resolver,
 					       directoryUri,
 					       Document.MIME_TYPE_DIR,
 					       name);
+    EmacsSafThread.recordChange (treeUri);
 
     if (docUri == null)
       return null;
@@ -1713,7 +2103,10 @@ In addition, arbitrary runtime exceptions (such as
        state of the containing directory.  */
 
     if (storageThread != null)
-      storageThread.postInvalidateStat (treeUri, documentId);
+      {
+	storageThread.postInvalidateStat (treeUri, documentId);
+	storageThread.postInvalidateMissing (treeUri, documentId, name);
+      }
 
     return DocumentsContract.getDocumentId (docUri);
   }
@@ -1733,9 +2126,12 @@ In addition, arbitrary runtime exceptions (such as
 
     tree = Uri.parse (uri);
     uriObject = DocumentsContract.buildDocumentUriUsingTree (tree, id);
+    EmacsSafThread.recordChange (tree);
 
     if (DocumentsContract.deleteDocument (resolver, uriObject))
       {
+	EmacsSafThread.recordChange (tree);
+
 	if (storageThread != null)
 	  storageThread.postInvalidateCache (tree, id, name);
 
@@ -1754,19 +2150,28 @@ In addition, arbitrary runtime exceptions (such as
   renameDocument (String uri, String docId, String dir, String name)
     throws FileNotFoundException
   {
-    Uri tree, uriObject;
+    Uri tree, uriObject, result;
+    String newId;
 
     tree = Uri.parse (uri);
     uriObject = DocumentsContract.buildDocumentUriUsingTree (tree, docId);
+    EmacsSafThread.recordChange (tree);
+    result = DocumentsContract.renameDocument (resolver, uriObject,
+					       name);
+    EmacsSafThread.recordChange (tree);
 
-    if (DocumentsContract.renameDocument (resolver, uriObject,
-					  name)
-	!= null)
+    if (result != null)
       {
-	/* Invalidate the cache.  */
+	/* Update the cache.  The document's ID might have changed as a
+	   result of the renaming.  */
+
 	if (storageThread != null)
-	  storageThread.postInvalidateCacheDir (tree, docId,
-						name);
+	  {
+	    newId = DocumentsContract.getDocumentId (result);
+	    storageThread.postRenameDocument (tree, docId, newId, dir,
+					      name);
+	  }
+
 	return 0;
       }
 
@@ -1802,21 +2207,19 @@ In addition, arbitrary runtime exceptions (such as
 
     /* Move the document; this function returns the new ID of the
        document should it change.  */
+    EmacsSafThread.recordChange (uri1);
     name = DocumentsContract.moveDocument (resolver, docId1,
 					   srcId1, dstId1);
+    EmacsSafThread.recordChange (uri1);
 
-    /* Now invalidate the caches for both DIRNAME and DOCID.  */
+    /* Now update the caches for DIRNAME, DSTID and DOCID.  */
 
     if (storageThread != null)
-      {
-	storageThread.postInvalidateCacheDir (uri1, docId, dirName);
-
-	/* Invalidate the stat cache entries for both the source and
-	   destination directories, since their contents have
-	   changed.  */
-	storageThread.postInvalidateStat (uri1, dstId);
-	storageThread.postInvalidateStat (uri1, srcId);
-      }
+      storageThread.postMoveDocument (uri1, docId,
+				      (name != null
+				       ? DocumentsContract.getDocumentId (name)
+				       : docId),
+				      dirName, srcId, dstId);
 
     return (name != null
 	    ? DocumentsContract.getDocumentId (name)
@@ -1830,22 +2233,7 @@ In addition, arbitrary runtime exceptions (such as
   public boolean
   validAuthority (String authority)
   {
-    List<UriPermission> permissions;
-    Uri uri;
-
-    permissions = resolver.getPersistedUriPermissions ();
-
-    for (UriPermission permission : permissions)
-      {
-	uri = permission.getUri ();
-
-	if (DocumentsContract.isTreeUri (uri)
-	    && permission.isReadPermission ()
-	    && uri.getAuthority ().equals (authority))
-	  return true;
-      }
-
-    return false;
+    return getDocumentTreeIndex ().trees.containsKey (authority);
   }
 
 
@@ -53,7 +53,15 @@ DISPLAY is ignored on Android."
   ;; Create the default fontset.
   (create-default-fontset)
   ;; Just make sure the window system was initialized at startup.
-  (android-get-connection))
+  (android-get-connection)
+  ;; Provide file notifications for document trees, which inotify
+  ;; cannot monitor.
+  (when (fboundp 'android-add-document-watch)
+    (add-to-list 'file-name-handler-alist
+                 '("\\`/content/storage/" . android-document-watch-handler)))
+  ;; Remember the modification time of documents saved in the
+  ;; background, so that it can be updated once the save completes.
+  (add-hook 'after-save-hook #'android-record-document-modtime))
 
 (cl-defmethod frame-creation-function (params &context (window-system android))
   (x-create-frame-with-faces params))
@@ -479,6 +487,268 @@ the UTF-8 coding system."
     ;; Return the concatenation of both these values.
     (concat locale-base locale-modifier)))
 
+
+;; File notifications for document trees.
+
+(declare-function android-add-document-watch "androidfns.c")
+(declare-function android-remove-document-watch "androidfns.c")
+(declare-function android-document-watch-valid-p "androidfns.c")
+(declare-function file-notify-callback "filenotify")
+
+(defvar android-document-watches (make-hash-table)
+  "Hash table of file notification watches on document trees.
+Each key is a descriptor returned by `android-add-document-watch',
+and each value is a list (DIRECTORY FLAGS SNAPSHOT TIMER), where
+DIRECTORY is the directory being watched, FLAGS are the flags given
+to `file-notify-add-watch', SNAPSHOT is the value returned by
+`android-document-watch-snapshot' when DIRECTORY was last read, and
+TIMER is a timer that will read it anew, or nil.")
+
+(defvar android-document-watch-delay 0.5
+  "Seconds to wait after a change to a document tree is reported.
+Document providers often report several changes at once, each of
+which would otherwise entail listing the directory being watched.")
+
+(defun android-document-watch-snapshot (directory)
+  "Return the contents of DIRECTORY within a document tree.
+Value is an alist between the name of each file within DIRECTORY
+and a cons of its size and last modification time, or `missing' if
+DIRECTORY is no longer a directory."
+  (if (not (file-directory-p directory))
+      'missing
+    (condition-case nil
+        (mapcar (lambda (file)
+                  (cons (car file)
+                        (cons (file-attribute-size (cdr file))
+                              (file-attribute-modification-time
+                               (cdr file)))))
+                (directory-files-and-attributes
+                 directory nil directory-files-no-dot-files-regexp t))
+      (file-error 'missing))))
+
+(defun android-document-watch-update (descriptor)
+  "Report changes to the directory watched by DESCRIPTOR.
+Read the directory anew and compare its contents with those recorded
+when it was last read, and report each file that has been created,
+deleted or altered since."
+  (when-let* ((watch (gethash descriptor android-document-watches)))
+    (let* ((directory (nth 0 watch))
+           (flags (nth 1 watch))
+           (old (nth 2 watch))
+           (new (android-document-watch-snapshot directory))
+           (change (memq 'change flags)))
+      (setcar (nthcdr 2 watch) new)
+      (setcar (nthcdr 3 watch) nil)
+      (if (eq new 'missing)
+          (unless (eq old 'missing)
+            (file-notify-callback (list descriptor 'deleted directory)))
+        (unless (eq old 'missing)
+          (dolist (file new)
+            (let ((name (expand-file-name (car file) directory))
+                  (previous (cdr (assoc (car file) old))))
+              (cond ((not previous)
+                     (when change
+                       (file-notify-callback
+                        (list descriptor 'created name))))
+                    ((not (equal (car previous) (cadr file)))
+                     (when change
+                       (file-notify-callback
+                        (list descriptor 'changed name))))
+                    ((not (equal (cdr previous) (cddr file)))
+                     (file-notify-callback
+                      (list descriptor (if change 'changed
+                                         'attribute-changed)
+                            name))))))
+          (when change
+            (dolist (file old)
+              (unless (assoc (car file) new)
+                (file-notify-callback
+                 (list descriptor 'deleted
+                       (expand-file-name (car file) directory)))))))))))
+
+(defun android-document-watch-callback (event)
+  "Handle EVENT, a change reported to a document watch.
+Arrange to read the directory being watched after
+`android-document-watch-delay' seconds, unless it is already
+scheduled to be read."
+  (when-let* ((watch (gethash (car event) android-document-watches)))
+    (unless (nth 3 watch)
+      (setcar (nthcdr 3 watch)
+              (run-with-timer android-document-watch-delay nil
+                              #'android-document-watch-update
+                              (car event))))))
+
+(defun android-document-watch-handler (operation &rest args)
+  "File name handler providing file notifications for document trees.
+OPERATION is one of `file-notify-add-watch', `file-notify-rm-watch'
+and `file-notify-valid-p', and ARGS are its arguments.
+
+Document providers can only report that a document or directory has
+changed, not how, so each directory being watched is listed whenever
+a change is reported and compared with its previous contents."
+  (pcase operation
+    ('file-notify-add-watch
+     (let* ((directory (nth 0 args))
+            (descriptor (android-add-document-watch
+                         directory #'android-document-watch-callback)))
+       (puthash descriptor
+                (list directory (nth 1 args)
+                      (android-document-watch-snapshot directory)
+                      nil)
+                android-document-watches)
+       descriptor))
+    ('file-notify-rm-watch
+     (when-let* ((watch (gethash (car args) android-document-watches)))
+       (when (nth 3 watch)
+         (cancel-timer (nth 3 watch)))
+       (remhash (car args) android-document-watches)
+       (android-remove-document-watch (car args))))
+    ('file-notify-valid-p
+     (android-document-watch-valid-p (car args)))
+    (_ (let ((inhibit-file-name-handlers
+              (cons 'android-document-watch-handler
+                    (and (eq inhibit-file-name-operation operation)
+                         inhibit-file-name-handlers)))
+             (inhibit-file-name-operation operation))
+         (apply operation args)))))
+
+(put 'android-document-watch-handler 'operations
+     '(file-notify-add-watch file-notify-rm-watch file-notify-valid-p))
+
+
+;; Saving documents in the background.
+
+(defvar android-document-upload-functions nil
+  "Abnormal hook run after a document is saved in the background.
+When `android-document-write-behind' is non-nil, the contents of
+documents written by Emacs are saved into their document providers
+after the file is closed.  Once such a save completes, each function
+is called with two arguments FILE and ERROR, where FILE is the name
+of the document and ERROR is a string describing why the save
+failed, or nil if it succeeded.")
+
+(defvar-local android-document-saved-modtime nil
+  "Modification time of this buffer's document when it was last saved.
+This is the value of `visited-file-modtime' after the buffer was last
+saved into a document that is being saved in the background, or nil.")
+
+(defun android-record-document-modtime ()
+  "Record the modification time of the document just saved.
+If `android-document-write-behind' is non-nil and the current buffer
+visits a document within `/content/storage', save the value of
+`visited-file-modtime' in `android-document-saved-modtime'."
+  (when (and android-document-write-behind
+             buffer-file-name
+             (string-prefix-p "/content/storage/" buffer-file-name))
+    (setq android-document-saved-modtime (visited-file-modtime))))
+
+(defun android-handle-document-upload (event)
+  "Handle the outcome of saving a document in the background.
+EVENT is a list (FILE ERROR), as described in
+`android-document-upload-functions'.  Report failed saves.  Once a
+save succeeds, the document provider will have assigned FILE a new
+modification time, so record it within a buffer visiting FILE,
+unless the modification time recorded there has changed since the
+buffer was saved.  This is done even if the buffer has been modified
+since, so that saving it again does not report that FILE has changed
+on disk."
+  (let ((file (car event))
+        (error (cadr event)))
+    (if error
+        (message "Saving %s failed: %s" file error)
+      (when-let* ((buffer (find-buffer-visiting file)))
+        (with-current-buffer buffer
+          (when (and android-document-saved-modtime
+                     (equal (visited-file-modtime)
+                            android-document-saved-modtime))
+            (set-visited-file-modtime)
+            ;; A later save of the same document might still be
+            ;; pending, which will also assign it a new time.
+            (setq android-document-saved-modtime
+                  (visited-file-modtime))))))
+    (run-hook-with-args 'android-document-upload-functions
+                        file error)))
+
+
+;; Statistics on requests made to document providers.
+
+(declare-function android-document-statistics "androidfns.c")
+
+(defun android-document-statistics-hit-rate (hits misses expired)
+  "Return the percentage of HITS among HITS, MISSES and EXPIRED."
+  (let ((total (+ hits misses expired)))
+    (if (zerop total) 0.0
+      (/ (* 100.0 hits) total))))
+
+(defun android-show-document-statistics (&optional reset)
+  "Display statistics on requests made to document providers.
+For each kind of request, display the number made, the mean and
+longest time taken to perform them, and a histogram of their
+durations.  `sync-wait' is the time Emacs spent waiting for requests
+to complete; if it greatly exceeds the time taken to perform them,
+requests are being delayed on their way to the threads that perform
+them.  Then display the proportion of lookups in the document cache
+of each provider and document tree that were answered from the
+cache.
+
+With a prefix argument RESET, reset the statistics after displaying
+them."
+  (interactive "P")
+  (let ((statistics (android-document-statistics reset))
+        (authorities nil))
+    (with-current-buffer (get-buffer-create "*Document Statistics*")
+      (let ((inhibit-read-only t))
+        (erase-buffer)
+        (insert (format "%-24s %8s %10s %10s\n"
+                        "Operation" "Count" "Mean (ms)" "Max (ms)"))
+        (dolist (operation (car statistics))
+          (let ((count (nth 1 operation))
+                (buckets (nth 4 operation)))
+            (insert (format "%-24s %8d %10.2f %10.2f\n"
+                            (car operation) count
+                            (if (zerop count) 0.0
+                              (/ (* 1000 (nth 2 operation)) count))
+                            (* 1000 (nth 3 operation))))
+            (dotimes (i (length buckets))
+              (unless (zerop (aref buckets i))
+                (insert (format "  %14s us %8d\n"
+                                (if (= i (1- (length buckets)))
+                                    (format ">= %d" (ash 1 i))
+                                  (format "< %d" (ash 1 (1+ i))))
+                                (aref buckets i)))))))
+        (insert (format "\n%-48s %8s %8s %8s %6s\n"
+                        "Document tree" "Hits" "Misses" "Expired"
+                        "Rate"))
+        (dolist (tree (cadr statistics))
+          (let ((authority (and (string-match "\\`content://\\([^/]+\\)"
+                                              (car tree))
+                                (match-string 1 (car tree)))))
+            ;; Sum the counters of each authority.
+            (when authority
+              (let ((cell (assoc authority authorities)))
+                (unless cell
+                  (setq cell (list authority 0 0 0))
+                  (push cell authorities))
+                (setcar (nthcdr 1 cell) (+ (nth 1 cell) (nth 1 tree)))
+                (setcar (nthcdr 2 cell) (+ (nth 2 cell) (nth 2 tree)))
+                (setcar (nthcdr 3 cell) (+ (nth 3 cell) (nth 3 tree)))))
+            (insert (format "%-48s %8d %8d %8d %5.1f%%\n"
+                            (car tree) (nth 1 tree) (nth 2 tree)
+                            (nth 3 tree)
+                            (apply #'android-document-statistics-hit-rate
+                                   (cdr tree))))))
+        (insert (format "\n%-48s %8s %8s %8s %6s\n"
+                        "Authority" "Hits" "Misses" "Expired" "Rate"))
+        (dolist (authority (nreverse authorities))
+          (insert (format "%-48s %8d %8d %8d %5.1f%%\n"
+                          (car authority) (nth 1 authority)
+                          (nth 2 authority) (nth 3 authority)
+                          (apply #'android-document-statistics-hit-rate
+                                 (cdr authority))))))
+      (goto-char (point-min))
+      (special-mode)
+      (display-buffer (current-buffer)))))
+
 
 ;; Miscellaneous functions.
 
@@ -1655,17 +1655,58 @@ android_init_emacs_service (void)
 	       "Ljava/lang/String;");
   FIND_METHOD (stat_document, "statDocument",
 	       "(Ljava/lang/String;Ljava/lang/String;Z)[J");
+  FIND_METHOD (stat_documents, "statDocuments",
+	       "(Ljava/lang/String;Ljava/lang/String;"
+	       "[Ljava/lang/String;IZZ)[[J");
   FIND_METHOD (access_document, "accessDocument",
 	       "(Ljava/lang/String;Ljava/lang/String;Z)I");
   FIND_METHOD (open_document_directory, "openDocumentDirectory",
-	       "(Ljava/lang/String;Ljava/lang/String;)"
+	       "(Ljava/lang/String;Ljava/lang/String;Z)"
 	       "Landroid/database/Cursor;");
-  FIND_METHOD (read_directory_entry, "readDirectoryEntry",
-	       "(Landroid/database/Cursor;)Lorg/gnu/emacs/"
-	       "EmacsDirectoryEntry;");
+  FIND_METHOD (open_document_directory_matching,
+	       "openDocumentDirectoryMatching",
+	       "(Ljava/lang/String;Ljava/lang/String;"
+	       "Ljava/lang/String;Z)Landroid/database/Cursor;");
+  FIND_METHOD (read_directory_entries, "readDirectoryEntries",
+	       "(Landroid/database/Cursor;[I[Ljava/lang/String;[I)I");
+  FIND_METHOD (set_cache_lifetime, "setCacheLifetime",
+	       "(Ljava/lang/String;D)V");
+  FIND_METHOD (set_document_index_enabled, "setDocumentIndexEnabled",
+	       "(Z)V");
+  FIND_METHOD (get_cache_authorities, "getCacheAuthorities",
+	       "()[Ljava/lang/String;");
+  FIND_METHOD (get_cache_statistics, "getCacheStatistics",
+	       "(Ljava/lang/String;)[J");
+  FIND_METHOD (get_saf_operation_statistics, "getSafOperationStatistics",
+	       "(I)[J");
+  FIND_METHOD (get_saf_cache_trees, "getSafCacheTrees",
+	       "()[Ljava/lang/String;");
+  FIND_METHOD (get_saf_cache_counters, "getSafCacheCounters",
+	       "(Ljava/lang/String;)[J");
+  FIND_METHOD (reset_saf_statistics, "resetSafStatistics", "()V");
+  FIND_METHOD (walk_document_tree, "walkDocumentTree",
+	       "(Ljava/lang/String;Ljava/lang/String;)"
+	       "Lorg/gnu/emacs/EmacsSafThread$TreeWalk;");
+  FIND_METHOD (read_tree_walk, "readTreeWalk",
+	       "(Lorg/gnu/emacs/EmacsSafThread$TreeWalk;"
+	       "[Ljava/lang/String;[I[J[J)I");
+  FIND_METHOD (close_tree_walk, "closeTreeWalk",
+	       "(Lorg/gnu/emacs/EmacsSafThread$TreeWalk;)V");
+  FIND_METHOD (add_document_watch, "addDocumentWatch",
+	       "(Ljava/lang/String;Ljava/lang/String;"
+	       "Ljava/lang/String;)I");
+  FIND_METHOD (remove_document_watch, "removeDocumentWatch",
+	       "(I)V");
   FIND_METHOD (open_document, "openDocument",
-	       "(Ljava/lang/String;Ljava/lang/String;ZZZ)"
+	       "(Ljava/lang/String;Ljava/lang/String;ZZZJ"
+	       "Ljava/lang/String;)Landroid/os/ParcelFileDescriptor;");
+  FIND_METHOD (open_document_if_changed, "openDocumentIfChanged",
+	       "(Ljava/lang/String;Ljava/lang/String;JJ[J)"
 	       "Landroid/os/ParcelFileDescriptor;");
+  FIND_METHOD (flush_documents, "flushDocuments",
+	       "(Ljava/lang/String;)Ljava/lang/String;");
+  FIND_METHOD (get_pending_documents, "getPendingDocuments",
+	       "()[Ljava/lang/String;");
   FIND_METHOD (create_document, "createDocument",
 	       "(Ljava/lang/String;Ljava/lang/String;"
 	       "Ljava/lang/String;)Ljava/lang/String;");
@@ -2551,6 +2592,74 @@ NATIVE_NAME (sendDndText) (JNIEnv *env, jobject object,
   return event_serial;
 }
 
+JNIEXPORT jlong JNICALL
+NATIVE_NAME (sendDocumentChanged) (JNIEnv *env, jobject object,
+				   jint descriptor)
+{
+  JNI_STACK_ALIGNMENT_PROLOGUE;
+
+  union android_event event;
+
+  event.document.type = ANDROID_DOCUMENT_CHANGED;
+  event.document.serial = ++event_serial;
+  event.document.window = ANDROID_NONE;
+  event.document.descriptor = descriptor;
+  event.document.name = NULL;
+  event.document.error = NULL;
+
+  android_write_event (&event);
+  return event_serial;
+}
+
+/* Return a copy of the modified UTF-8 contents of STRING allocated
+   with malloc, or NULL if STRING is NULL or memory is exhausted.  */
+
+static char *
+android_copy_utf_string (JNIEnv *env, jstring string)
+{
+  const char *chars;
+  char *copy;
+
+  if (!string)
+    return NULL;
+
+  chars = (*env)->GetStringUTFChars (env, string, NULL);
+
+  if (!chars)
+    return NULL;
+
+  copy = strdup (chars);
+  (*env)->ReleaseStringUTFChars (env, string, chars);
+  return copy;
+}
+
+JNIEXPORT jlong JNICALL
+NATIVE_NAME (sendDocumentSaved) (JNIEnv *env, jobject object,
+				 jstring name, jstring error)
+{
+  JNI_STACK_ALIGNMENT_PROLOGUE;
+
+  union android_event event;
+
+  event.document.type = ANDROID_DOCUMENT_SAVED;
+  event.document.serial = ++event_serial;
+  event.document.window = ANDROID_NONE;
+  event.document.descriptor = -1;
+  event.document.name = android_copy_utf_string (env, name);
+  event.document.error = android_copy_utf_string (env, error);
+
+  if (!event.document.name)
+    {
+      /* The JVM has run out of memory; return and let the out of
+	 memory error take its course.  */
+      free (event.document.error);
+      return 0;
+    }
+
+  android_write_event (&event);
+  return event_serial;
+}
+
 JNIEXPORT jboolean JNICALL
 NATIVE_NAME (shouldForwardMultimediaButtons) (JNIEnv *env,
 					      jobject object)
@@ -147,9 +147,22 @@ extern int android_get_current_api_level (void)
 struct android_vdir;
 
 extern struct android_vdir *android_opendir (const char *);
+extern struct android_vdir *android_opendir_matching (const char *,
+						      const char *,
+						      bool);
 extern int android_dirfd (struct android_vdir *);
 extern struct dirent *android_readdir (struct android_vdir *);
 extern void android_closedir (struct android_vdir *);
+extern int android_walk_document_tree (const char *,
+				       void (*) (void *, const char *,
+						 bool, long long,
+						 long long),
+				       void *);
+extern int android_add_document_watch (const char *);
+extern int android_open_if_changed (const char *, off_t, struct timespec,
+				    struct stat *);
+extern void android_remove_document_watch (int);
+extern int android_flush_documents (const char *, char **);
 
 
 
@@ -286,10 +299,28 @@ struct android_emacs_service
   jmethodID document_id_from_name;
   jmethodID get_tree_uri;
   jmethodID stat_document;
+  jmethodID stat_documents;
   jmethodID access_document;
   jmethodID open_document_directory;
-  jmethodID read_directory_entry;
+  jmethodID open_document_directory_matching;
+  jmethodID read_directory_entries;
+  jmethodID set_cache_lifetime;
+  jmethodID set_document_index_enabled;
+  jmethodID get_cache_authorities;
+  jmethodID get_cache_statistics;
+  jmethodID get_saf_operation_statistics;
+  jmethodID get_saf_cache_trees;
+  jmethodID get_saf_cache_counters;
+  jmethodID reset_saf_statistics;
+  jmethodID walk_document_tree;
+  jmethodID read_tree_walk;
+  jmethodID close_tree_walk;
+  jmethodID add_document_watch;
+  jmethodID remove_document_watch;
   jmethodID open_document;
+  jmethodID open_document_if_changed;
+  jmethodID flush_documents;
+  jmethodID get_pending_documents;
   jmethodID create_document;
   jmethodID create_directory;
   jmethodID delete_document;
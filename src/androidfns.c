@@ -19,6 +19,7 @@ along with GNU Emacs.  If not, see <https://www.gnu.org/licenses/>.  */
 
 #include <config.h>
 #include <math.h>
+#include <stat-time.h>
 
 #include "lisp.h"
 #include "android.h"
@@ -28,6 +29,8 @@ along with GNU Emacs.  If not, see <https://www.gnu.org/licenses/>.  */
 #include "buffer.h"
 #include "androidgui.h"
 #include "pdumper.h"
+#include "coding.h"
+#include "systime.h"
 
 #ifndef ANDROID_STUBIFY
 
@@ -3206,6 +3209,668 @@ whether Emacs has actually received such access permissions.  */)
   return Qnil;
 }
 
+
+
+/* Document cache policies.  */
+
+DEFUN ("android-set-document-cache-lifetime",
+       Fandroid_set_document_cache_lifetime,
+       Sandroid_set_document_cache_lifetime, 2, 2, 0,
+       doc: /* Set the lifetime of cached information on documents.
+AUTHORITY is the authority of a document provider, such as
+"com.android.externalstorage.documents", and SECONDS is the number of
+seconds for which the status of documents it provides is cached by
+the `/content/storage' directory, or nil.
+
+When SECONDS is nil, the lifetime is adjusted automatically: it is
+shortened whenever a request finds expired cache entries to be out of
+date, and lengthened whenever a request finds them to be current.
+Records of the absence of documents are retained for no more than 10
+seconds, unless the provider reports changes to its documents.  */)
+  (Lisp_Object authority, Lisp_Object seconds)
+{
+  jstring string;
+  jdouble value;
+  jmethodID method;
+
+  CHECK_STRING (authority);
+
+  if (NILP (seconds))
+    value = -1;
+  else
+    {
+      CHECK_NUMBER (seconds);
+      value = XFLOATINT (seconds);
+
+      if (value < 0)
+	args_out_of_range (authority, seconds);
+    }
+
+  if (!android_init_gui)
+    return Qnil;
+
+  string = android_build_string (authority, NULL);
+  method = service_class.set_cache_lifetime;
+  (*android_java_env)->CallNonvirtualVoidMethod (android_java_env,
+						 emacs_service,
+						 service_class.class,
+						 method, string, value);
+  android_exception_check_1 (string);
+  ANDROID_DELETE_LOCAL_REF (string);
+  return Qnil;
+}
+
+DEFUN ("android-document-cache-statistics",
+       Fandroid_document_cache_statistics,
+       Sandroid_document_cache_statistics, 0, 0, 0,
+       doc: /* Return statistics on cached information on documents.
+Value is a list of elements of the form:
+
+  (AUTHORITY LIFETIME REVALIDATIONS STALE OVERRIDDEN)
+
+for each document provider whose documents have been accessed, where
+AUTHORITY is the authority of the document provider, LIFETIME is the
+number of seconds for which the status of its documents is presently
+cached, REVALIDATIONS is the number of times expired information has
+been retrieved anew, STALE is the number of those times it was found
+to have changed, and OVERRIDDEN is non-nil if LIFETIME was set by
+`android-set-document-cache-lifetime'.  */)
+  (void)
+{
+  jobjectArray array;
+  jstring string;
+  jlongArray statistics;
+  jlong *longs;
+  jsize i, length;
+  jmethodID method;
+  const char *data;
+  Lisp_Object value, name;
+
+  if (!android_init_gui)
+    return Qnil;
+
+  method = service_class.get_cache_authorities;
+  array = (*android_java_env)->CallNonvirtualObjectMethod (android_java_env,
+							   emacs_service,
+							   service_class.class,
+							   method);
+  android_exception_check ();
+
+  if (!array)
+    return Qnil;
+
+  length = (*android_java_env)->GetArrayLength (android_java_env, array);
+  value = Qnil;
+
+  for (i = 0; i < length; ++i)
+    {
+      string = (*android_java_env)->GetObjectArrayElement (android_java_env,
+							   array, i);
+      android_exception_check_nonnull (string, array);
+
+      data = (*android_java_env)->GetStringUTFChars (android_java_env,
+						     string, NULL);
+      android_exception_check_nonnull_1 ((void *) data, string, array);
+      name = build_string (data);
+      (*android_java_env)->ReleaseStringUTFChars (android_java_env,
+						  string, data);
+
+      method = service_class.get_cache_statistics;
+      statistics
+	= (*android_java_env)->CallNonvirtualObjectMethod (android_java_env,
+							   emacs_service,
+							   service_class.class,
+							   method, string);
+      android_exception_check_2 (string, array);
+      ANDROID_DELETE_LOCAL_REF (string);
+
+      if (!statistics)
+	continue;
+
+      longs = (*android_java_env)->GetLongArrayElements (android_java_env,
+							 statistics, NULL);
+      android_exception_check_nonnull_1 (longs, statistics, array);
+
+      value = Fcons (list5 (name, make_float (longs[0] / 1000.0),
+			    make_int (longs[1]), make_int (longs[2]),
+			    longs[3] ? Qt : Qnil),
+		     value);
+      (*android_java_env)->ReleaseLongArrayElements (android_java_env,
+						     statistics, longs,
+						     JNI_ABORT);
+      ANDROID_DELETE_LOCAL_REF (statistics);
+    }
+
+  ANDROID_DELETE_LOCAL_REF (array);
+  return Fnreverse (value);
+}
+
+/* Names of the operations whose durations are recorded by
+   EmacsSafStatistics, in the order of their indices.  */
+
+static const char *const android_saf_operations[] =
+  {
+    "document-id-from-name",
+    "stat-document",
+    "access-document",
+    "open-document-directory",
+    "open-document",
+    "sync-wait",
+  };
+
+DEFUN ("android-document-statistics", Fandroid_document_statistics,
+       Sandroid_document_statistics, 0, 1, 0,
+       doc: /* Return statistics on requests made to document providers.
+Value is a list (OPERATIONS TREES).
+
+OPERATIONS is a list of elements (OPERATION COUNT TOTAL MAX BUCKETS),
+where OPERATION is a symbol naming the kind of request, COUNT is the
+number of such requests made, TOTAL and MAX are the sum and the
+longest of their durations in seconds, and BUCKETS is a vector
+counting the requests whose durations in microseconds lay between
+each power of two and the next.  The durations of all operations but
+`sync-wait' are measured by the threads that perform them, and
+include the time spent consulting the document cache and the
+provider.  Those of `sync-wait' are the time Emacs spends waiting for
+each request to complete, which also includes the time taken to hand
+requests to those threads.
+
+TREES is a list of elements (TREE HITS MISSES EXPIRED), where TREE is
+the URI of a document tree, and HITS, MISSES and EXPIRED are the
+number of lookups in its document cache that found valid entries,
+found no entries, and found expired entries.
+
+If RESET is non-nil, reset each statistic to zero after it is read.  */)
+  (Lisp_Object reset)
+{
+  jobjectArray array;
+  jstring string;
+  jlongArray statistics;
+  jlong *longs;
+  jsize i, length;
+  jmethodID method;
+  const char *data;
+  Lisp_Object operations, trees, buckets, name;
+  int operation;
+
+  if (!android_init_gui)
+    return Qnil;
+
+  operations = Qnil;
+
+  for (operation = 0; operation < ARRAYELTS (android_saf_operations);
+       ++operation)
+    {
+      method = service_class.get_saf_operation_statistics;
+      statistics
+	= (*android_java_env)->CallNonvirtualObjectMethod (android_java_env,
+							   emacs_service,
+							   service_class.class,
+							   method,
+							   (jint) operation);
+      android_exception_check ();
+
+      if (!statistics)
+	break;
+
+      length = (*android_java_env)->GetArrayLength (android_java_env,
+						    statistics);
+      longs = (*android_java_env)->GetLongArrayElements (android_java_env,
+							 statistics, NULL);
+      android_exception_check_nonnull (longs, statistics);
+
+      buckets = make_nil_vector (length - 3);
+
+      for (i = 3; i < length; ++i)
+	ASET (buckets, i - 3, make_int (longs[i]));
+
+      operations
+	= Fcons (list5 (intern_c_string (android_saf_operations[operation]),
+			make_int (longs[0]),
+			make_float (longs[1] / 1000000.0),
+			make_float (longs[2] / 1000000.0),
+			buckets),
+		 operations);
+      (*android_java_env)->ReleaseLongArrayElements (android_java_env,
+						     statistics, longs,
+						     JNI_ABORT);
+      ANDROID_DELETE_LOCAL_REF (statistics);
+    }
+
+  method = service_class.get_saf_cache_trees;
+  array = (*android_java_env)->CallNonvirtualObjectMethod (android_java_env,
+							   emacs_service,
+							   service_class.class,
+							   method);
+  android_exception_check ();
+  length = (*android_java_env)->GetArrayLength (android_java_env, array);
+  trees = Qnil;
+
+  for (i = 0; i < length; ++i)
+    {
+      string = (*android_java_env)->GetObjectArrayElement (android_java_env,
+							   array, i);
+      android_exception_check_nonnull (string, array);
+
+      data = (*android_java_env)->GetStringUTFChars (android_java_env,
+						     string, NULL);
+      android_exception_check_nonnull_1 ((void *) data, string, array);
+      name = build_string (data);
+      (*android_java_env)->ReleaseStringUTFChars (android_java_env,
+						  string, data);
+
+      method = service_class.get_saf_cache_counters;
+      statistics
+	= (*android_java_env)->CallNonvirtualObjectMethod (android_java_env,
+							   emacs_service,
+							   service_class.class,
+							   method, string);
+      android_exception_check_2 (string, array);
+      ANDROID_DELETE_LOCAL_REF (string);
+
+      longs = (*android_java_env)->GetLongArrayElements (android_java_env,
+							 statistics, NULL);
+      android_exception_check_nonnull_1 (longs, statistics, array);
+
+      trees = Fcons (list4 (name, make_int (longs[0]),
+			    make_int (longs[1]), make_int (longs[2])),
+		     trees);
+      (*android_java_env)->ReleaseLongArrayElements (android_java_env,
+						     statistics, longs,
+						     JNI_ABORT);
+      ANDROID_DELETE_LOCAL_REF (statistics);
+    }
+
+  ANDROID_DELETE_LOCAL_REF (array);
+
+  if (!NILP (reset))
+    {
+      method = service_class.reset_saf_statistics;
+      (*android_java_env)->CallNonvirtualVoidMethod (android_java_env,
+						     emacs_service,
+						     service_class.class,
+						     method);
+      android_exception_check ();
+    }
+
+  return list2 (Fnreverse (operations), Fnreverse (trees));
+}
+
+/* Function called by `android_walk_document_tree' for each file
+   encountered.  DATA is a pointer to the list of files read so
+   far.  */
+
+static void
+android_document_tree_file (void *data, const char *name,
+			    bool directory, long long size,
+			    long long mtime)
+{
+  Lisp_Object *files, file, time;
+
+  files = data;
+  file = DECODE_FILE (build_unibyte_string (name));
+  time = (mtime
+	  ? make_lisp_time (make_timespec (mtime / 1000,
+					   mtime % 1000 * 1000000))
+	  : Qnil);
+  *files = Fcons (list4 (file, directory ? Qt : Qnil,
+			 size >= 0 ? make_int (size) : Qnil, time),
+		  *files);
+}
+
+DEFUN ("android-document-tree-files", Fandroid_document_tree_files,
+       Sandroid_document_tree_files, 1, 1, 0,
+       doc: /* Return every file beneath DIRECTORY within a document tree.
+DIRECTORY must be a directory within `/content/storage' that is
+provided by a document provider, such as one to which access has been
+granted by `android-request-directory-access'.  Value is a list of
+elements of the form:
+
+  (FILE DIRECTORY-P SIZE MTIME)
+
+where FILE is the name of a file relative to DIRECTORY, DIRECTORY-P is
+non-nil if it is a directory, SIZE is its size in bytes or nil if
+unknown, and MTIME is its last modification time or nil if unknown.
+Directories precede the files within them.
+
+Several directories are listed at once, so this is considerably faster
+than listing each directory with `directory-files'.  */)
+  (Lisp_Object directory)
+{
+  Lisp_Object files, encoded;
+  int rc;
+
+  CHECK_STRING (directory);
+  directory = Fexpand_file_name (directory, Qnil);
+  encoded = ENCODE_FILE (directory);
+  files = Qnil;
+
+  rc = android_walk_document_tree (SSDATA (encoded),
+				   android_document_tree_file,
+				   &files);
+
+  if (rc > 0)
+    error ("%s does not lie within a document tree",
+	   SDATA (directory));
+
+  if (rc < 0)
+    {
+      if (errno == EINTR)
+	maybe_quit ();
+
+      report_file_error ("Listing directory tree", directory);
+    }
+
+  return Fnreverse (files);
+}
+
+DEFUN ("android-read-document-if-changed",
+       Fandroid_read_document_if_changed,
+       Sandroid_read_document_if_changed, 3, 3, 0,
+       doc: /* Return the contents of FILE if it has changed.
+FILE must be a file within `/content/storage' that is provided by a
+document provider.  SIZE and MTIME should be the size and last
+modification time of FILE when it was last read, as returned by
+`file-attributes'.
+
+If FILE still has that size and modification time, return nil without
+opening it.  Otherwise, value is a list of the form:
+
+  (CONTENTS SIZE MTIME)
+
+where CONTENTS is a unibyte string holding the contents of FILE, and
+SIZE and MTIME are its current size and last modification time.
+
+Opening a document can entail copying its contents out of the document
+provider, or even downloading them, so this is considerably faster
+than reading FILE afresh when it is seldom modified.  */)
+  (Lisp_Object file, Lisp_Object size, Lisp_Object mtime)
+{
+  Lisp_Object encoded, chunks, contents;
+  struct timespec timespec;
+  struct stat statb;
+  char buffer[16384];
+  ptrdiff_t nread, length;
+  specpdl_ref count;
+  int fd;
+
+  CHECK_STRING (file);
+  CHECK_FIXNAT (size);
+  timespec = lisp_time_argument (mtime);
+  file = Fexpand_file_name (file, Qnil);
+  encoded = ENCODE_FILE (file);
+
+  fd = android_open_if_changed (SSDATA (encoded), XFIXNAT (size),
+				timespec, &statb);
+
+  if (fd == -2)
+    return Qnil;
+
+  if (fd == -3)
+    error ("%s does not lie within a document tree",
+	   SDATA (file));
+
+  if (fd < 0)
+    {
+      if (errno == EINTR)
+	maybe_quit ();
+
+      report_file_error ("Opening input file", file);
+    }
+
+  count = SPECPDL_INDEX ();
+  record_unwind_protect_int (close_file_unwind, fd);
+
+  /* The file descriptor might be a pipe, so read it in chunks until
+     EOF.  */
+
+  chunks = Qnil;
+  length = 0;
+
+  while ((nread = emacs_read_quit (fd, buffer, sizeof buffer)) > 0)
+    {
+      chunks = Fcons (make_unibyte_string (buffer, nread), chunks);
+      length += nread;
+    }
+
+  if (nread < 0)
+    report_file_error ("Read error", file);
+
+  unbind_to (count, Qnil);
+
+  /* Concatenate the chunks read.  */
+
+  contents = make_uninit_string (length);
+
+  for (chunks = Fnreverse (chunks); CONSP (chunks);
+       chunks = XCDR (chunks))
+    {
+      memcpy (SDATA (contents) + SBYTES (contents) - length,
+	      SDATA (XCAR (chunks)), SBYTES (XCAR (chunks)));
+      length -= SBYTES (XCAR (chunks));
+    }
+
+  return list3 (contents, make_int (statb.st_size),
+		make_lisp_time (get_stat_mtime (&statb)));
+}
+
+DEFUN ("android-flush-document-uploads",
+       Fandroid_flush_document_uploads,
+       Sandroid_flush_document_uploads, 0, 1, 0,
+       doc: /* Wait for documents being saved in the background.
+When `android-document-write-behind' is non-nil, documents written to
+by Emacs are saved into their document providers in the background.
+Wait for all such saves to complete, or if FILE is non-nil, only
+those of FILE.  Signal an error if any of these saves failed.  */)
+  (Lisp_Object file)
+{
+  Lisp_Object encoded, message;
+  char *reason;
+  int rc;
+
+  encoded = Qnil;
+
+  if (!NILP (file))
+    {
+      CHECK_STRING (file);
+      file = Fexpand_file_name (file, Qnil);
+      encoded = ENCODE_FILE (file);
+    }
+
+  reason = NULL;
+  rc = android_flush_documents (NILP (encoded) ? NULL
+				: SSDATA (encoded), &reason);
+
+  if (rc < 0)
+    {
+      if (errno == EINTR)
+	maybe_quit ();
+
+      report_file_error ("Waiting for document uploads", file);
+    }
+
+  if (rc > 0)
+    {
+      message = build_string (reason);
+      xfree (reason);
+      error ("Saving document failed: %s", SDATA (message));
+    }
+
+  return Qnil;
+}
+
+DEFUN ("android-pending-document-uploads",
+       Fandroid_pending_document_uploads,
+       Sandroid_pending_document_uploads, 0, 0, 0,
+       doc: /* Return a list of documents being saved in the background.
+Each element is the name of a file within `/content/storage' whose
+contents have been written by Emacs but not yet saved into its
+document provider.  */)
+  (void)
+{
+  jobjectArray array;
+  jobject string;
+  jmethodID method;
+  jsize length, i;
+  const char *data;
+  Lisp_Object value;
+
+  if (!android_init_gui)
+    return Qnil;
+
+  method = service_class.get_pending_documents;
+  array = (*android_java_env)->CallNonvirtualObjectMethod (android_java_env,
+							   emacs_service,
+							   service_class.class,
+							   method);
+  android_exception_check ();
+
+  if (!array)
+    return Qnil;
+
+  length = (*android_java_env)->GetArrayLength (android_java_env, array);
+  value = Qnil;
+
+  for (i = 0; i < length; ++i)
+    {
+      string = (*android_java_env)->GetObjectArrayElement (android_java_env,
+							   array, i);
+      android_exception_check_nonnull (string, array);
+
+      data = (*android_java_env)->GetStringUTFChars (android_java_env,
+						     string, NULL);
+      android_exception_check_nonnull_1 ((void *) data, string, array);
+      value = Fcons (DECODE_FILE (build_unibyte_string (data)), value);
+      (*android_java_env)->ReleaseStringUTFChars (android_java_env,
+						  string, data);
+      ANDROID_DELETE_LOCAL_REF (string);
+    }
+
+  ANDROID_DELETE_LOCAL_REF (array);
+  return Fnreverse (value);
+}
+
+#ifdef USE_FILE_NOTIFY
+
+/* Association list between the descriptors of document watches and
+   conses of the files being watched and their callbacks.  */
+static Lisp_Object android_document_watches;
+
+DEFUN ("android-add-document-watch", Fandroid_add_document_watch,
+       Sandroid_add_document_watch, 2, 2, 0,
+       doc: /* Watch FILE within a document tree for changes.
+FILE must be a file or directory within `/content/storage' that is
+provided by a document provider.  Whenever the provider reports that
+FILE, or the directory holding it, has changed, CALLBACK is called
+with an event of the form:
+
+  (DESCRIPTOR changed FILE)
+
+where DESCRIPTOR is the value returned by this function.  Providers
+do not report the nature of a change, or which file within a directory
+has changed, and some never report changes at all.
+
+Value is a descriptor that can be provided to
+`android-remove-document-watch'.  */)
+  (Lisp_Object file, Lisp_Object callback)
+{
+  Lisp_Object encoded;
+  int descriptor;
+
+  CHECK_STRING (file);
+  file = Fexpand_file_name (file, Qnil);
+  encoded = ENCODE_FILE (file);
+
+  descriptor = android_add_document_watch (SSDATA (encoded));
+
+  if (descriptor == -2)
+    error ("%s does not lie within a document tree",
+	   SDATA (file));
+
+  if (descriptor < 0)
+    {
+      if (errno == EINTR)
+	maybe_quit ();
+
+      report_file_error ("Watching document", file);
+    }
+
+  android_document_watches
+    = Fcons (Fcons (make_fixnum (descriptor),
+		    Fcons (file, callback)),
+	     android_document_watches);
+  return make_fixnum (descriptor);
+}
+
+DEFUN ("android-remove-document-watch", Fandroid_remove_document_watch,
+       Sandroid_remove_document_watch, 1, 1, 0,
+       doc: /* Stop watching a document for changes.
+DESCRIPTOR should be a value returned by `android-add-document-watch'.
+Value is t if DESCRIPTOR was valid, and nil otherwise.  */)
+  (Lisp_Object descriptor)
+{
+  Lisp_Object watch;
+
+  watch = Fassq (descriptor, android_document_watches);
+
+  if (NILP (watch))
+    return Qnil;
+
+  android_document_watches = Fdelq (watch, android_document_watches);
+  android_remove_document_watch (XFIXNUM (descriptor));
+  return Qt;
+}
+
+DEFUN ("android-document-watch-valid-p", Fandroid_document_watch_valid_p,
+       Sandroid_document_watch_valid_p, 1, 1, 0,
+       doc: /* Return non-nil if DESCRIPTOR is a valid document watch.
+DESCRIPTOR should be a value returned by `android-add-document-watch'.  */)
+  (Lisp_Object descriptor)
+{
+  return NILP (Fassq (descriptor, android_document_watches)) ? Qnil : Qt;
+}
+
+/* Convert a report of a change observed by the document watch
+   DESCRIPTOR into a file notification event in IE.  Leave IE
+   untouched if DESCRIPTOR has since been removed.  */
+
+void
+android_document_changed (int descriptor, struct input_event *ie)
+{
+  Lisp_Object watch;
+
+  watch = Fassq (make_fixnum (descriptor), android_document_watches);
+
+  if (NILP (watch))
+    return;
+
+  ie->kind = FILE_NOTIFY_EVENT;
+  ie->arg = list2 (list3 (XCAR (watch), Qchanged, XCAR (XCDR (watch))),
+		   XCDR (XCDR (watch)));
+}
+
+#endif /* USE_FILE_NOTIFY */
+
+/* Arrange for `android-handle-document-upload' to be called with the
+   outcome of saving the document NAME in the background.  ERROR is
+   the error with which the save failed, or NULL.
+
+   The function is called once timers are next run, rather than in
+   response to a file notification event, so that failed saves are
+   reported even when Emacs is built without file notification.  */
+
+void
+android_document_saved (const char *name, const char *error)
+{
+  Lisp_Object file, event;
+
+  file = DECODE_FILE (build_unibyte_string (name));
+  event = list2 (file, error ? build_string (error) : Qnil);
+  pending_funcalls = Fcons (list2 (Qandroid_handle_document_upload,
+				   event),
+			    pending_funcalls);
+}
+
 
 
 /* Miscellaneous input method related stuff.  */
@@ -3609,6 +4274,53 @@ restrictions.
 This option has no effect on Android 9 and earlier.  */);
   android_use_exec_loader = true;
 
+  DEFVAR_BOOL ("android-prefetch-directories",
+	       android_prefetch_directories,
+    doc: /* Whether to read the contents of subdirectories in advance.
+When non-nil, opening a directory provided by a document provider
+causes the contents of its subdirectories to be read in the
+background and cached, until Emacs next accesses a document provider.
+This makes it faster to visit those subdirectories, at the cost of
+additional work performed by the document provider.  */);
+  android_prefetch_directories = false;
+
+  DEFVAR_BOOL ("android-persistent-document-index",
+	       android_persistent_document_index,
+    doc: /* Whether to remember the names of documents across sessions.
+When non-nil, the document IDs of files located within document trees
+are recorded in an index saved for each tree within the application
+data directory, and consulted when Emacs next locates the same files,
+even after it is restarted.  Each directory's records are used only
+while the directory is unchanged since it was last listed, which is
+confirmed with a query to the document provider no more than once
+for each period of time in which its documents are cached.  */);
+  android_persistent_document_index = false;
+
+  DEFVAR_INT ("android-document-spool-size", android_document_spool_size,
+    doc: /* Number of bytes of documents to retain local copies of.
+Some document providers return pipes when documents are opened for
+reading, which must be read from beginning to end and cannot be read
+again without asking the document provider to produce the document
+anew, often by downloading it.  When this is a positive number, the
+contents of such documents are instead copied into local files, which
+are read again in place of the documents until they are modified or
+the total size of such files exceeds this number of bytes.  Documents
+whose size is unknown or greater than this number are not copied.  */);
+  android_document_spool_size = 0;
+
+  DEFVAR_BOOL ("android-document-write-behind",
+	       android_document_write_behind,
+    doc: /* Whether to save documents into their providers in the background.
+When non-nil, documents within `/content/storage' that are replaced
+by Emacs, such as when a buffer visiting one is saved, are first
+written to local files, after which their contents are transferred to
+the document provider in the background, so that Emacs need not wait
+for slow providers to receive them.  The file is read from the local
+copy until the transfer completes, and failed transfers are retried
+before being reported.  See `android-flush-document-uploads' and
+`android-document-upload-functions'.  */);
+  android_document_write_behind = false;
+
   DEFVAR_INT ("android-keyboard-bell-duration",
 	      android_keyboard_bell_duration,
     doc: /* Number of milliseconds to vibrate after ringing the keyboard bell.
@@ -3672,6 +4384,24 @@ language to be US English if LANGUAGE is empty.  */);
   defsubr (&Sandroid_request_directory_access);
   defsubr (&Sandroid_external_storage_available_p);
   defsubr (&Sandroid_request_storage_access);
+  defsubr (&Sandroid_set_document_cache_lifetime);
+  defsubr (&Sandroid_document_cache_statistics);
+  defsubr (&Sandroid_document_statistics);
+  defsubr (&Sandroid_document_tree_files);
+  defsubr (&Sandroid_read_document_if_changed);
+  defsubr (&Sandroid_flush_document_uploads);
+  defsubr (&Sandroid_pending_document_uploads);
+#ifdef USE_FILE_NOTIFY
+  defsubr (&Sandroid_add_document_watch);
+  defsubr (&Sandroid_remove_document_watch);
+  defsubr (&Sandroid_document_watch_valid_p);
+
+  DEFSYM (Qchanged, "changed");
+  android_document_watches = Qnil;
+  staticpro (&android_document_watches);
+#endif /* USE_FILE_NOTIFY */
+  DEFSYM (Qandroid_handle_document_upload,
+	  "android-handle-document-upload");
   defsubr (&Sandroid_recreate_activity);
 
   tip_timer = Qnil;
@@ -251,6 +251,8 @@ enum android_event_type
     ANDROID_DND_DRAG_EVENT,
     ANDROID_DND_URI_EVENT,
     ANDROID_DND_TEXT_EVENT,
+    ANDROID_DOCUMENT_CHANGED,
+    ANDROID_DOCUMENT_SAVED,
   };
 
 struct android_any_event
@@ -535,6 +537,27 @@ struct android_dnd_event
   size_t length;
 };
 
+struct android_document_event
+{
+  /* Type of the event.  */
+  enum android_event_type type;
+
+  /* The event serial.  */
+  unsigned long serial;
+
+  /* The window that gave rise to the event, which is always
+     ANDROID_NONE.  */
+  android_window window;
+
+  /* The descriptor of the document watch that observed a change.  */
+  int descriptor;
+
+  /* The name of a document that was saved in the background, and the
+     error with which the save failed or NULL.  Both are allocated
+     with malloc and must be released by the recipient.  */
+  char *name, *error;
+};
+
 union android_event
 {
   enum android_event_type type;
@@ -571,6 +594,10 @@ union android_event
      protocol, whereas there exist several competing X protocols
      implemented in terms of X client messages.  */
   struct android_dnd_event dnd;
+
+  /* This is used to report changes to documents observed through
+     content observers, which are not tied to any window.  */
+  struct android_document_event document;
 };
 
 enum
@@ -1761,6 +1761,25 @@ handle_one_android_event (struct android_display_info *dpyinfo,
       free (event->dnd.uri_or_string);
       goto OTHER;
 
+    case ANDROID_DOCUMENT_CHANGED:
+
+#ifdef USE_FILE_NOTIFY
+      /* A document provider has reported a change to a document
+	 being watched.  Generate a file notification event.  */
+      android_document_changed (event->document.descriptor, &inev.ie);
+#endif /* USE_FILE_NOTIFY */
+      goto OTHER;
+
+    case ANDROID_DOCUMENT_SAVED:
+
+      /* A document has been saved into its provider in the
+	 background.  Arrange for the outcome to be reported.  */
+      android_document_saved (event->document.name,
+			      event->document.error);
+      free (event->document.name);
+      free (event->document.error);
+      goto OTHER;
+
     default:
       goto OTHER;
     }
@@ -424,6 +424,12 @@ extern void android_implicitly_set_name (struct frame *, Lisp_Object,
 					 Lisp_Object);
 extern void android_explicitly_set_name (struct frame *, Lisp_Object,
 					 Lisp_Object);
+#if !defined ANDROID_STUBIFY && defined USE_FILE_NOTIFY
+extern void android_document_changed (int, struct input_event *);
+#endif /* !ANDROID_STUBIFY && USE_FILE_NOTIFY */
+#ifndef ANDROID_STUBIFY
+extern void android_document_saved (const char *, const char *);
+#endif /* !ANDROID_STUBIFY */
 
 extern void syms_of_androidfns (void);
 
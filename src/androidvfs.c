@@ -271,15 +271,6 @@ struct android_cursor_class
   jmethodID close;
 };
 
-/* Structure describing the EmacsDirectoryEntry class.  */
-
-struct emacs_directory_entry_class
-{
-  jclass class;
-  jfieldID d_type;
-  jfieldID d_name;
-};
-
 /* Structure describing the android.os.ParcelFileDescriptor class used
    to wrap file descriptors sent over IPC.  */
 
@@ -297,10 +288,6 @@ static jclass java_string_class;
 /* Fields and methods associated with the Cursor class.  */
 static struct android_cursor_class cursor_class;
 
-/* Fields and methods associated with the EmacsDirectoryEntry
-   class.  */
-static struct emacs_directory_entry_class entry_class;
-
 /* Fields and methods associated with the ParcelFileDescriptor
    class.  */
 static struct android_parcel_file_descriptor_class fd_class;
@@ -340,35 +327,6 @@ android_init_cursor_class (JNIEnv *env)
 #undef FIND_METHOD
 }
 
-/* Initialize `entry_class' using the given JNI environment ENV.
-   Calling this function is not necessary on Android 4.4 and
-   earlier.  */
-
-static void
-android_init_entry_class (JNIEnv *env)
-{
-  jclass old;
-
-  entry_class.class
-    = (*env)->FindClass (env, "org/gnu/emacs/EmacsDirectoryEntry");
-  eassert (entry_class.class);
-
-  old = entry_class.class;
-  entry_class.class
-    = (jclass) (*env)->NewGlobalRef (env, (jobject) old);
-  (*env)->DeleteLocalRef (env, old);
-
-  if (!entry_class.class)
-    emacs_abort ();
-
-  entry_class.d_type = (*env)->GetFieldID (env, entry_class.class,
-					   "d_type", "I");
-  entry_class.d_name = (*env)->GetFieldID (env, entry_class.class,
-					   "d_name",
-					   "Ljava/lang/String;");
-  assert (entry_class.d_type && entry_class.d_name);
-}
-
 
 /* Initialize `fd_class' using the given JNI environment ENV.  Calling
    this function is not necessary on Android 4.4 and earlier.  */
@@ -4072,6 +4030,8 @@ android_saf_exception_check (int n, ...)
   return 1;
 }
 
+static void android_saf_fill_stat (struct stat *, jlong, jlong, jlong);
+
 /* Return file status for the document designated by ID_NAME within
    the document tree identified by URI_NAME.
 
@@ -4157,7 +4117,17 @@ android_saf_stat (const char *uri_name, const char *id_name,
 						 longs, JNI_ABORT);
   ANDROID_DELETE_LOCAL_REF (status);
 
-  /* Fill in STATB with this information.  */
+  android_saf_fill_stat (statb, mode, size, mtim);
+  return 0;
+}
+
+/* Fill in STATB with the file status MODE, SIZE and MTIM returned by
+   `statDocument'.  */
+
+static void
+android_saf_fill_stat (struct stat *statb, jlong mode, jlong size,
+		       jlong mtim)
+{
   memset (statb, 0, sizeof *statb);
   statb->st_size = MAX (0, MIN (TYPE_MAXIMUM (off_t), size));
   statb->st_mode = mode;
@@ -4173,7 +4143,6 @@ android_saf_stat (const char *uri_name, const char *id_name,
 #endif /* STAT_TIMESPEC */
   statb->st_uid = getuid ();
   statb->st_gid = getgid ();
-  return 0;
 }
 
 /* Detect if Emacs has access to the document designated by the the
@@ -4530,6 +4499,10 @@ struct android_saf_tree_vnode
   char *name;
 };
 
+/* Number of directory entries read from a SAF directory stream at a
+   time.  */
+#define SAF_DIRECTORY_CHUNK 256
+
 struct android_saf_tree_vdir
 {
   /* The virtual directory stream function table.  */
@@ -4545,6 +4518,33 @@ struct android_saf_tree_vdir
      stream.  */
   jobject cursor;
 
+  /* Local references to arrays holding the names of directory
+     entries read from CURSOR, and the indices of the columns in
+     CURSOR from which they are read, or NULL if none have been
+     read.  */
+  jobject names, columns;
+
+  /* Number of entries within NAMES, and the index of the next entry
+     to return.  */
+  int count, position;
+
+  /* Whether each entry within NAMES is a directory.  */
+  jint types[SAF_DIRECTORY_CHUNK];
+
+  /* The URI of the tree holding this directory, and the document ID
+     of the directory, or NULL if it is the root of the tree.  */
+  char *tree_uri, *document_id;
+
+  /* The name of the entry last returned by readdir, or NULL.  */
+  char *current;
+
+  /* Whether the file status of the entries within NAMES has been
+     requested, the mode, size and modification time of each, and
+     whether each was available.  */
+  bool stats_read;
+  jlong stats[SAF_DIRECTORY_CHUNK][3];
+  bool stats_valid[SAF_DIRECTORY_CHUNK];
+
   /* The ``directory'' file descriptor used to identify this directory
      stream, or -1.  */
   int fd;
@@ -4598,6 +4598,33 @@ static struct android_vops saf_new_vfs_ops;
 /* Chain of all open SAF directory streams.  */
 static struct android_saf_tree_vdir *all_saf_tree_vdirs;
 
+/* Whether the SAF thread was last told to maintain persistent
+   indices of document names.  */
+static bool android_saf_index_enabled;
+
+/* Inform the SAF thread of the value of
+   `android-persistent-document-index' if it has changed since it was
+   last examined.  */
+
+static void
+android_saf_update_index (void)
+{
+  jmethodID method;
+
+  if (android_persistent_document_index == android_saf_index_enabled)
+    return;
+
+  android_saf_index_enabled = android_persistent_document_index;
+  method = service_class.set_document_index_enabled;
+  (*android_java_env)->CallNonvirtualVoidMethod (android_java_env,
+						 emacs_service,
+						 service_class.class,
+						 method,
+						 (jboolean)
+						 android_saf_index_enabled);
+  android_exception_check ();
+}
+
 /* Find the document ID of the file within TREE_URI designated by
    NAME.
 
@@ -4650,6 +4677,8 @@ android_document_id_from_name (const char *tree_uri, const char *name,
       return -1;
     }
 
+  android_saf_update_index ();
+
   /* First, create the array that will hold the result.  */
   result = (*android_java_env)->NewObjectArray (android_java_env, 1,
 						java_string_class,
@@ -5290,16 +5319,20 @@ android_saf_tree_readlink (struct android_vnode *vnode, char *buffer,
 }
 
 /* Open a database Cursor containing each directory entry within the
-   supplied SAF tree vnode VP.
+   supplied SAF tree vnode VP.  If PREFIX is non-NULL, the Cursor need
+   only contain those entries whose names begin with PREFIX,
+   disregarding case if IGNORE_CASE.
 
    Value is NULL upon failure with errno set to a suitable value, a
    local reference to the Cursor object otherwise.  */
 
 static jobject
-android_saf_tree_opendir_1 (struct android_saf_tree_vnode *vp)
+android_saf_tree_opendir_1 (struct android_saf_tree_vnode *vp,
+			    const char *prefix, bool ignore_case)
 {
-  jobject uri, id, cursor;
+  jobject uri, id, cursor, string;
   jmethodID method;
+  jboolean prefetch, fold;
 
   if (inside_saf_critical_section)
     {
@@ -5321,15 +5354,45 @@ android_saf_tree_opendir_1 (struct android_saf_tree_vnode *vp)
   else
     id = NULL;
 
-  /* Try to open the cursor.  */
-  method = service_class.open_document_directory;
-  inside_saf_critical_section = true;
-  cursor
-    = (*android_java_env)->CallNonvirtualObjectMethod (android_java_env,
-						       emacs_service,
-						       service_class.class,
-						       method, uri, id);
-  inside_saf_critical_section = false;
+  if (prefix)
+    {
+      /* Open a cursor holding only those entries that match
+	 PREFIX.  */
+
+      string = (*android_java_env)->NewStringUTF (android_java_env,
+						  prefix);
+      android_exception_check_2 (uri, id);
+
+      method = service_class.open_document_directory_matching;
+      fold = ignore_case;
+      inside_saf_critical_section = true;
+      cursor
+	= (*android_java_env)->CallNonvirtualObjectMethod (android_java_env,
+							   emacs_service,
+							   service_class.class,
+							   method, uri, id,
+							   string, fold);
+      inside_saf_critical_section = false;
+
+      /* Release STRING here, leaving any exception to be checked
+	 below.  */
+      ANDROID_DELETE_LOCAL_REF (string);
+    }
+  else
+    {
+      /* Try to open the cursor, and perhaps to read its
+	 subdirectories in advance.  */
+      method = service_class.open_document_directory;
+      prefetch = android_prefetch_directories;
+      inside_saf_critical_section = true;
+      cursor
+	= (*android_java_env)->CallNonvirtualObjectMethod (android_java_env,
+							   emacs_service,
+							   service_class.class,
+							   method, uri, id,
+							   prefetch);
+      inside_saf_critical_section = false;
+    }
 
   if (id)
     {
@@ -5347,57 +5410,113 @@ android_saf_tree_opendir_1 (struct android_saf_tree_vnode *vp)
   return cursor;
 }
 
+/* Read up to SAF_DIRECTORY_CHUNK directory entries from the cursor
+   of DIR into DIR->names and DIR->types.
+
+   Value is the number of entries read, 0 at the end of the directory
+   stream, or -1 with errno set upon failure.  */
+
+static int
+android_saf_tree_fill (struct android_saf_tree_vdir *dir)
+{
+  jint count;
+  jmethodID method;
+  jobject types;
+  jint columns[2];
+
+  /* Allocate the arrays into which entries are read if this is the
+     first chunk.  */
+
+  if (!dir->names)
+    {
+      dir->names
+	= (*android_java_env)->NewObjectArray (android_java_env,
+					       SAF_DIRECTORY_CHUNK,
+					       java_string_class,
+					       NULL);
+      android_exception_check ();
+
+      dir->columns
+	= (*android_java_env)->NewIntArray (android_java_env, 2);
+      android_exception_check ();
+
+      /* -1 means that the columns have not yet been located.  */
+      columns[0] = columns[1] = -1;
+      (*android_java_env)->SetIntArrayRegion (android_java_env,
+					      dir->columns, 0, 2,
+					      columns);
+    }
+
+  types = (*android_java_env)->NewIntArray (android_java_env,
+					    SAF_DIRECTORY_CHUNK);
+  android_exception_check ();
+
+  /* Try to read a chunk of entries from the cursor.  */
+  method = service_class.read_directory_entries;
+  count
+    = (*android_java_env)->CallNonvirtualIntMethod (android_java_env,
+						    emacs_service,
+						    service_class.class,
+						    method, dir->cursor,
+						    dir->columns,
+						    dir->names, types);
+  android_exception_check_1 (types);
+
+  if (count < 0)
+    {
+      ANDROID_DELETE_LOCAL_REF (types);
+
+      /* XXX: what would be a better error indication? */
+      errno = EIO;
+      return -1;
+    }
+
+  /* Copy the type of each entry read.  */
+  (*android_java_env)->GetIntArrayRegion (android_java_env, types,
+					  0, count, dir->types);
+  ANDROID_DELETE_LOCAL_REF (types);
+
+  dir->count = count;
+  dir->position = 0;
+  dir->stats_read = false;
+  return count;
+}
+
 static struct dirent *
 android_saf_tree_readdir (struct android_vdir *vdir)
 {
   struct android_saf_tree_vdir *dir;
   static struct dirent *dirent;
-  jobject entry, d_name;
+  jobject d_name;
   jint d_type;
-  jmethodID method;
   size_t length, size;
   const char *chars;
 
   dir = (struct android_saf_tree_vdir *) vdir;
 
-  /* Try to read one entry from the cursor.  */
-  method = service_class.read_directory_entry;
-  entry
-    = (*android_java_env)->CallNonvirtualObjectMethod (android_java_env,
-						       emacs_service,
-						       service_class.class,
-						       method, dir->cursor);
-  android_exception_check ();
+  /* Read another chunk of entries from the cursor once those already
+     read are exhausted.  If none remain, this is the end of the
+     directory, or errno has been set.  */
 
-  /* If ENTRY is NULL, we're at the end of the directory.  */
+  if (dir->position == dir->count
+      && android_saf_tree_fill (dir) <= 0)
+    return NULL;
 
-  if (!entry)
-    {
-      xfree (entry);
-      entry = NULL;
-      return NULL;
-    }
+  /* Load this entry's name.  d_type is 1 if it is a directory, and
+     0 if it's a regular file.  */
+  d_name
+    = (*android_java_env)->GetObjectArrayElement (android_java_env,
+						  dir->names,
+						  dir->position);
+  android_exception_check ();
+  d_type = dir->types[dir->position++];
 
-  /* Load both fields from ENTRY.  */
-  d_name = (*android_java_env)->GetObjectField (android_java_env, entry,
-						entry_class.d_name);
   if (!d_name)
     {
-      /* If an error transpires, d_name is set to NULL.  */
-      (*android_java_env)->ExceptionClear (android_java_env);
-      ANDROID_DELETE_LOCAL_REF (entry);
-
-      /* XXX: what would be a better error indication? */
       errno = EIO;
       return NULL;
     }
 
-  /* d_type is 1 if this is a directory, and 0 if it's a regular
-     file.  */
-  d_type = (*android_java_env)->GetIntField (android_java_env, entry,
-					     entry_class.d_type);
-  ANDROID_DELETE_LOCAL_REF (entry);
-
   /* Copy the name of the directory over.  */
   chars = (*android_java_env)->GetStringUTFChars (android_java_env,
 						  (jstring) d_name,
@@ -5420,6 +5539,11 @@ android_saf_tree_readdir (struct android_vdir *vdir)
   dirent->d_type = d_type ? DT_DIR : DT_UNKNOWN;
   strcpy (dirent->d_name, chars);
 
+  /* Record this name, so that its file status can be provided from
+     that of the rest of this chunk.  */
+  xfree (dir->current);
+  dir->current = xstrdup (chars);
+
   /* Release the string data and the local reference to STRING.  */
   (*android_java_env)->ReleaseStringUTFChars (android_java_env,
 					      (jstring) d_name,
@@ -5438,10 +5562,21 @@ android_saf_tree_closedir (struct android_vdir *vdir)
   /* dir->name is allocated by asprintf, which uses regular
      malloc.  */
   free (dir->name);
+  xfree (dir->tree_uri);
+  xfree (dir->document_id);
+  xfree (dir->current);
 
   /* Yes, DIR->cursor is a local reference.  */
   ANDROID_DELETE_LOCAL_REF (dir->cursor);
 
+  /* As are the arrays into which entries are read.  */
+
+  if (dir->names)
+    {
+      ANDROID_DELETE_LOCAL_REF (dir->names);
+      ANDROID_DELETE_LOCAL_REF (dir->columns);
+    }
+
   /* If the ``directory file descriptor'' has been opened, close
      it.  */
   if (dir->fd != -1)
@@ -5481,8 +5616,13 @@ android_saf_tree_dirfd (struct android_vdir *vdir)
   return dir->fd;
 }
 
+/* Open a directory stream for the SAF tree vnode VNODE.  If PREFIX
+   is non-NULL, the stream may omit entries whose names don't begin
+   with PREFIX, disregarding case if IGNORE_CASE.  */
+
 static struct android_vdir *
-android_saf_tree_opendir (struct android_vnode *vnode)
+android_saf_tree_opendir_matching (struct android_vnode *vnode,
+				   const char *prefix, bool ignore_case)
 {
   struct android_saf_tree_vnode *vp;
   struct android_saf_tree_vdir *dir;
@@ -5541,7 +5681,7 @@ android_saf_tree_opendir (struct android_vnode *vnode)
   /* Now open a cursor that iterates through each file in this
      directory.  */
 
-  cursor = android_saf_tree_opendir_1 (vp);
+  cursor = android_saf_tree_opendir_1 (vp, prefix, ignore_case);
 
   if (!cursor)
     {
@@ -5551,12 +5691,27 @@ android_saf_tree_opendir (struct android_vnode *vnode)
     }
 
   dir->cursor = cursor;
+  dir->names = NULL;
+  dir->columns = NULL;
+  dir->count = 0;
+  dir->position = 0;
+  dir->tree_uri = xstrdup (vp->tree_uri);
+  dir->document_id = (vp->document_id
+		      ? xstrdup (vp->document_id) : NULL);
+  dir->current = NULL;
+  dir->stats_read = false;
   dir->fd = -1;
   dir->next = all_saf_tree_vdirs;
   all_saf_tree_vdirs = dir;
   return &dir->vdir;
 }
 
+static struct android_vdir *
+android_saf_tree_opendir (struct android_vnode *vnode)
+{
+  return android_saf_tree_opendir_matching (vnode, NULL, false);
+}
+
 /* Create a vnode designating the file NAME within a directory tree
    whose identifier is TREE.  As with all other `name' functions, NAME
    may be modified.
@@ -5661,6 +5816,120 @@ android_saf_tree_get_directory (int dirfd)
   return NULL;
 }
 
+/* Request the file status of each entry within the chunk last read
+   into DIR, within a single request to the SAF thread.  Value is 0
+   upon success, -1 otherwise.  */
+
+static int
+android_saf_tree_read_stats (struct android_saf_tree_vdir *dir)
+{
+  jmethodID method;
+  jstring uri, id;
+  jobjectArray status;
+  jlongArray element;
+  jint i;
+
+  if (inside_saf_critical_section)
+    return -1;
+
+  uri = (*android_java_env)->NewStringUTF (android_java_env,
+					   dir->tree_uri);
+  android_exception_check ();
+
+  if (dir->document_id)
+    {
+      id = (*android_java_env)->NewStringUTF (android_java_env,
+					      dir->document_id);
+      android_exception_check_1 (uri);
+    }
+  else
+    id = NULL;
+
+  method = service_class.stat_documents;
+  inside_saf_critical_section = true;
+  status
+    = (*android_java_env)->CallNonvirtualObjectMethod (android_java_env,
+						       emacs_service,
+						       service_class.class,
+						       method, uri, id,
+						       dir->names,
+						       (jint) dir->count,
+						       (jboolean) true,
+						       (jboolean) false);
+  inside_saf_critical_section = false;
+
+  if (id)
+    {
+      if (android_saf_exception_check (2, uri, id))
+	return -1;
+
+      ANDROID_DELETE_LOCAL_REF (id);
+    }
+  else if (android_saf_exception_check (1, uri))
+    return -1;
+
+  ANDROID_DELETE_LOCAL_REF (uri);
+
+  if (!status)
+    return -1;
+
+  /* Copy the file status of each entry into DIR.  */
+
+  for (i = 0; i < dir->count; ++i)
+    {
+      element
+	= (*android_java_env)->GetObjectArrayElement (android_java_env,
+						      status, i);
+      android_exception_check_1 (status);
+      dir->stats_valid[i] = element != NULL;
+
+      if (element)
+	{
+	  (*android_java_env)->GetLongArrayRegion (android_java_env,
+						   element, 0, 3,
+						   dir->stats[i]);
+	  android_exception_check_2 (element, status);
+	  ANDROID_DELETE_LOCAL_REF (element);
+	}
+    }
+
+  ANDROID_DELETE_LOCAL_REF (status);
+  dir->stats_read = true;
+  return 0;
+}
+
+/* Place the file status of NAME within the directory stream DIR in
+   *STATB, if NAME is the entry last returned from DIR.
+
+   Directory listings such as those made by
+   `directory-files-and-attributes' request the file status of each
+   entry immediately after it is read, so the status of every entry
+   within a chunk is retrieved at once, rather than through a
+   request to the SAF thread for each.
+
+   Value is 0 if the file status is returned, 1 otherwise.  */
+
+static int
+android_saf_tree_stat_entry (struct android_saf_tree_vdir *dir,
+			     const char *name, struct stat *statb)
+{
+  jlong *stat;
+
+  if (!dir->current || dir->position < 1
+      || strcmp (name, dir->current))
+    return 1;
+
+  if (!dir->stats_read && android_saf_tree_read_stats (dir))
+    return 1;
+
+  if (!dir->stats_valid[dir->position - 1])
+    return 1;
+
+  stat = dir->stats[dir->position - 1];
+  android_saf_fill_stat (statb, stat[0], stat[1], stat[2]);
+  return 0;
+}
+
 
 
 /* SAF file vnode.  The information used to uniquely identify a file
@@ -5694,6 +5963,7 @@ static struct android_vnode *android_saf_file_name (struct android_vnode *,
 						    char *, size_t);
 static int android_saf_file_open (struct android_vnode *, int,
 				  mode_t, bool, int *, AAsset **);
+static struct android_parcel_fd *android_saf_adopt_descriptor (jobject);
 static int android_saf_file_unlink (struct android_vnode *);
 static int android_saf_file_rmdir (struct android_vnode *);
 static struct android_vdir *android_saf_file_opendir (struct android_vnode *);
@@ -5748,18 +6018,55 @@ android_saf_file_name (struct android_vnode *vnode, char *name,
   return NULL;
 }
 
+/* Return the full file name of the SAF file or directory VP, such as
+   `/content/storage/AUTHORITY/TREE/NAME', in a string allocated with
+   xmalloc.  */
+
+static char *
+android_saf_canonical_name (struct android_saf_tree_vnode *vp)
+{
+  const char *authority, *end;
+  char *name;
+  size_t length;
+
+  /* The authority segment of the URI is between the content header
+     and the next slash.  */
+
+  authority = vp->tree_uri + sizeof "content://" - 1;
+  end = strchr (authority, '/');
+
+  if (!end)
+    emacs_abort ();
+
+  length = (sizeof "/content/storage/" + (end - authority)
+	    + 1 + strlen (vp->tree_id) + strlen (vp->name));
+  name = xmalloc (length);
+  sprintf (name, "/content/storage/%.*s/%s%s", (int) (end - authority),
+	   authority, vp->tree_id, vp->name);
+
+  /* Remove any trailing directory separator.  */
+
+  length = strlen (name);
+
+  if (name[length - 1] == '/')
+    name[length - 1] = '\0';
+
+  return name;
+}
+
 static int
 android_saf_file_open (struct android_vnode *vnode, int flags,
 		       mode_t mode, bool asset_p, int *fd_return,
 		       AAsset **asset)
 {
   struct android_saf_file_vnode *vp;
-  jobject uri, id, descriptor;
+  jobject uri, id, descriptor, stage;
   jmethodID method;
   jboolean read, trunc, write;
-  jint fd;
+  jlong spool_limit;
   struct android_parcel_fd *info;
   struct stat statb;
+  char *name;
 
   if (inside_saf_critical_section)
     {
@@ -5818,21 +6125,43 @@ android_saf_file_open (struct android_vnode *vnode, int flags,
   if ((flags & O_RDWR) == O_RDWR || !write)
     read = true;
 
+  /* Documents opened for reading alone might be copied into local
+     files.  */
+  spool_limit = MAX (0, android_document_spool_size);
+
+  /* Documents being replaced might be saved in the background, in
+     which case Emacs is notified under the name of the file once
+     the save completes.  */
+  stage = NULL;
+
+  if (android_document_write_behind && write && !read && trunc)
+    {
+      name = android_saf_canonical_name (vp);
+      stage = (*android_java_env)->NewStringUTF (android_java_env,
+						 name);
+      xfree (name);
+      android_exception_check_2 (uri, id);
+    }
+
   inside_saf_critical_section = true;
   descriptor
     = (*android_java_env)->CallNonvirtualObjectMethod (android_java_env,
 						       emacs_service,
 						       service_class.class,
 						       method, uri, id,
-						       read, write, trunc);
+						       read, write, trunc,
+						       spool_limit, stage);
   inside_saf_critical_section = false;
 
-  if (android_saf_exception_check (2, uri, id))
+  if (android_saf_exception_check (3, uri, id, stage))
     return -1;
 
   ANDROID_DELETE_LOCAL_REF (uri);
   ANDROID_DELETE_LOCAL_REF (id);
 
+  if (stage)
+    ANDROID_DELETE_LOCAL_REF (stage);
+
   if (!descriptor)
     {
       /* Assume that permission has been denied if DESCRIPTOR cannot
@@ -5841,6 +6170,39 @@ android_saf_file_open (struct android_vnode *vnode, int flags,
       return -1;
     }
 
+  info = android_saf_adopt_descriptor (descriptor);
+
+  if (!info)
+    return -1;
+
+  /* Try to retrieve the modification time of this file from the
+     content provider.
+
+     Refrain from introducing the file status into the file status
+     cache if FLAGS & O_RDWR or FLAGS & O_WRONLY: the cached file
+     status will contain a size and modification time inconsistent
+     with the result of any modifications that later transpire.  */
+
+  if (!android_saf_stat (vp->tree_uri, vp->document_id,
+			 &statb, write))
+    info->mtime = get_stat_mtime (&statb);
+
+  /* Return the file descriptor.  */
+  *fd_return = info->fd;
+  return 0;
+}
+
+/* Record the parcel file descriptor DESCRIPTOR, a local reference, as
+   open, and delete the local reference.  Value is the record of the
+   file descriptor, whose modification time is initially invalid, or
+   NULL with errno set upon failure.  */
+
+static struct android_parcel_fd *
+android_saf_adopt_descriptor (jobject descriptor)
+{
+  struct android_parcel_fd *info;
+  jint fd;
+
   /* Allocate a record for this file descriptor.  Parcel file
      descriptors should be closed using their own `close' function,
      which takes care of notifying the source that it has been
@@ -5874,34 +6236,125 @@ android_saf_file_open (struct android_vnode *vnode, int flags,
 
       /* Set errno to EMFILE and return.  */
       errno = EMFILE;
-      return -1;
+      return NULL;
     }
 
   /* Delete the local ref to DESCRIPTOR.  */
   ANDROID_DELETE_LOCAL_REF (descriptor);
 
-  /* Try to retrieve the modification time of this file from the
-     content provider.
-
-     Refrain from introducing the file status into the file status
-     cache if FLAGS & O_RDWR or FLAGS & O_WRONLY: the cached file
-     status will contain a size and modification time inconsistent
-     with the result of any modifications that later transpire.  */
-
-  if (!android_saf_stat (vp->tree_uri, vp->document_id,
-			 &statb, write))
-    info->mtime = get_stat_mtime (&statb);
-  else
-    info->mtime = invalid_timespec ();
-
   /* Set info->fd and chain it onto the list.  */
+  info->mtime = invalid_timespec ();
   info->fd = fd;
   info->next = open_parcel_fds;
   open_parcel_fds = info;
+  return info;
+}
 
-  /* Return the file descriptor.  */
-  *fd_return = fd;
-  return 0;
+/* Open the file NAME within a document tree for reading, unless its
+   size and modification time are still SIZE and MTIME, as last
+   reported by `stat'.  Place the current status of the file in
+   *STATB.
+
+   Value is a file descriptor upon success, which must be closed with
+   `android_close'; -2 if the file is unchanged, in which case it is
+   not opened; -3 if NAME is not a file within a document tree; and
+   -1 upon failure with errno set accordingly.  `errno' may be set to
+   EINTR.  */
+
+int
+android_open_if_changed (const char *name, off_t size,
+			 struct timespec mtime, struct stat *statb)
+{
+  struct android_vnode *vnode;
+  struct android_saf_file_vnode *vp;
+  jobject uri, id, descriptor, status;
+  jmethodID method;
+  jlong longs[3];
+  struct android_parcel_fd *info;
+
+  vnode = android_name_file (name);
+
+  if (!vnode)
+    return -1;
+
+  if (vnode->type != ANDROID_VNODE_SAF_FILE)
+    {
+      (*vnode->ops->close) (vnode);
+      return -3;
+    }
+
+  vp = (struct android_saf_file_vnode *) vnode;
+
+  if (inside_saf_critical_section)
+    {
+      (*vnode->ops->close) (vnode);
+      errno = EIO;
+      return -1;
+    }
+
+  /* Build strings for both the URI and ID, and an array into which
+     the file status is returned.  */
+
+  uri = (*android_java_env)->NewStringUTF (android_java_env,
+					   vp->tree_uri);
+  android_exception_check ();
+  id = (*android_java_env)->NewStringUTF (android_java_env,
+					  vp->document_id);
+  android_exception_check_1 (uri);
+  status = (*android_java_env)->NewLongArray (android_java_env, 3);
+  android_exception_check_2 (uri, id);
+  (*vnode->ops->close) (vnode);
+
+  /* Compare the file status and open the file if it has changed.  */
+
+  method = service_class.open_document_if_changed;
+  inside_saf_critical_section = true;
+  descriptor
+    = (*android_java_env)->CallNonvirtualObjectMethod (android_java_env,
+						       emacs_service,
+						       service_class.class,
+						       method, uri, id,
+						       (jlong) size,
+						       ((jlong) mtime.tv_sec
+							* 1000
+							+ (mtime.tv_nsec
+							   / 1000000)),
+						       status);
+  inside_saf_critical_section = false;
+
+  if (android_saf_exception_check (3, uri, id, status))
+    return -1;
+
+  ANDROID_DELETE_LOCAL_REF (uri);
+  ANDROID_DELETE_LOCAL_REF (id);
+
+  (*android_java_env)->GetLongArrayRegion (android_java_env, status,
+					   0, 3, longs);
+  ANDROID_DELETE_LOCAL_REF (status);
+
+  if (!descriptor)
+    {
+      /* The first element of the file status is zero if the file
+	 could not be opened.  */
+
+      if (!longs[0])
+	{
+	  errno = EPERM;
+	  return -1;
+	}
+
+      android_saf_fill_stat (statb, longs[0], longs[1], longs[2]);
+      return -2;
+    }
+
+  android_saf_fill_stat (statb, longs[0], longs[1], longs[2]);
+  info = android_saf_adopt_descriptor (descriptor);
+
+  if (!info)
+    return -1;
+
+  info->mtime = get_stat_mtime (statb);
+  return info->fd;
 }
 
 static int
@@ -6587,7 +7040,6 @@ android_vfs_init (JNIEnv *env, jobject manager)
     return;
 
   android_init_cursor_class (env);
-  android_init_entry_class (env);
   android_init_fd_class (env);
 
   /* Initialize each of the exception classes used by
@@ -7027,6 +7479,7 @@ android_fstatat (int dirfd, const char *restrict pathname,
 {
   char buffer[EMACS_PATH_MAX + 1];
   struct android_vnode *vp;
+  struct android_saf_tree_vdir *vdir;
   int rc;
 
   /* Emacs uses AT_SYMLINK_NOFOLLOW, but fortunately (?) DIRFD is
@@ -7039,6 +7492,14 @@ android_fstatat (int dirfd, const char *restrict pathname,
   /* Now establish whether DIRFD is a file descriptor corresponding to
      an open VFS directory stream.  */
 
+  /* If DIRFD is a SAF directory stream from which PATHNAME was just
+     read, try to provide its status without naming it.  */
+
+  vdir = android_saf_tree_get_directory (dirfd);
+
+  if (vdir && !android_saf_tree_stat_entry (vdir, pathname, statbuf))
+    return 0;
+
   if (!android_fstatat_1 (dirfd, pathname, buffer, EMACS_PATH_MAX + 1))
     {
       pathname = buffer;
@@ -7459,6 +7920,33 @@ android_opendir (const char *name)
   return dir;
 }
 
+/* Like `android_opendir', but the directory stream returned may omit
+   entries whose names don't begin with PREFIX, disregarding case if
+   IGNORE_CASE.  This is much faster than listing every entry within
+   large directories provided by document providers, and is meant for
+   file name completion.  */
+
+struct android_vdir *
+android_opendir_matching (const char *name, const char *prefix,
+			  bool ignore_case)
+{
+  struct android_vnode *vp;
+  struct android_vdir *dir;
+
+  vp = android_name_file (name);
+  if (!vp)
+    return NULL;
+
+  if (vp->type == ANDROID_VNODE_SAF_TREE && *prefix
+      && !android_verify_jni_string (prefix))
+    dir = android_saf_tree_opendir_matching (vp, prefix, ignore_case);
+  else
+    dir = (*vp->ops->opendir) (vp);
+
+  (*vp->ops->close) (vp);
+  return dir;
+}
+
 /* Like dirfd.  However, value is not a real directory file descriptor
    if DIR is an asset directory.  */
 
@@ -7483,3 +7971,446 @@ android_closedir (struct android_vdir *dirp)
 {
   return (*dirp->closedir) (dirp);
 }
+
+/* State of a call to `android_walk_document_tree', released by
+   `android_release_tree_walk'.  */
+
+struct android_tree_walk
+{
+  /* Local reference to the tree walk, or NULL.  */
+  jobject walk;
+
+  /* Local references to the arrays into which entries are read, or
+     NULL.  */
+  jobject names, types, sizes, mtimes;
+
+  /* Local reference to the name of the entry being reported and its
+     characters, or NULL.  */
+  jobject string;
+  const char *chars;
+};
+
+/* Release the local references within the `struct android_tree_walk'
+   DATA, and stop any listings still under way.  Called upon both
+   normal and nonlocal exits from `android_walk_document_tree', so
+   that neither the local references nor the threads listing the
+   tree outlive it.  */
+
+static void
+android_release_tree_walk (void *data)
+{
+  struct android_tree_walk *state;
+  jmethodID method;
+
+  state = data;
+
+  if (state->chars)
+    (*android_java_env)->ReleaseStringUTFChars (android_java_env,
+						state->string,
+						state->chars);
+
+  if (state->string)
+    ANDROID_DELETE_LOCAL_REF (state->string);
+
+  if (state->names)
+    ANDROID_DELETE_LOCAL_REF (state->names);
+
+  if (state->types)
+    ANDROID_DELETE_LOCAL_REF (state->types);
+
+  if (state->sizes)
+    ANDROID_DELETE_LOCAL_REF (state->sizes);
+
+  if (state->mtimes)
+    ANDROID_DELETE_LOCAL_REF (state->mtimes);
+
+  if (!state->walk)
+    return;
+
+  /* Release the tree walk, stopping any listings still under way.
+     This can be run while unwinding, so disregard any exception
+     rather than signal another error.  */
+
+  method = service_class.close_tree_walk;
+  (*android_java_env)->CallNonvirtualVoidMethod (android_java_env,
+						 emacs_service,
+						 service_class.class,
+						 method, state->walk);
+  (*android_java_env)->ExceptionClear (android_java_env);
+  ANDROID_DELETE_LOCAL_REF (state->walk);
+}
+
+/* Call FUNCTION with DATA and information on each file beneath the
+   directory NAME within a document tree: its file name relative to
+   NAME, whether it is a directory, its size (or -1 if unknown), and
+   its modification time in milliseconds (or 0 if unknown).
+
+   The directory tree is listed in breadth-first order, with several
+   directories being listed at once, which is considerably faster than
+   opening each directory in turn.  FUNCTION may exit nonlocally, in
+   which case the listing is stopped.
+
+   Value is 0 upon success, 1 if NAME is not a directory within a
+   document tree, and -1 upon failure with errno set accordingly.
+   `errno' may be set to EINTR.  */
+
+int
+android_walk_document_tree (const char *name,
+			    void (*function) (void *, const char *,
+					      bool, long long,
+					      long long),
+			    void *data)
+{
+  struct android_vnode *vnode;
+  struct android_saf_tree_vnode *vp;
+  struct android_tree_walk state;
+  jobject uri, id, walk;
+  jmethodID method;
+  jint count, i;
+  jint type_data[SAF_DIRECTORY_CHUNK];
+  jlong size_data[SAF_DIRECTORY_CHUNK];
+  jlong mtime_data[SAF_DIRECTORY_CHUNK];
+  int rc, saved_errno;
+  specpdl_ref ref;
+
+  vnode = android_name_file (name);
+
+  if (!vnode)
+    return -1;
+
+  if (vnode->type != ANDROID_VNODE_SAF_TREE)
+    {
+      (*vnode->ops->close) (vnode);
+      return 1;
+    }
+
+  vp = (struct android_saf_tree_vnode *) vnode;
+
+  if (inside_saf_critical_section)
+    {
+      (*vnode->ops->close) (vnode);
+      errno = EIO;
+      return -1;
+    }
+
+  /* Build strings for both URI and ID.  */
+  uri = (*android_java_env)->NewStringUTF (android_java_env,
+					   vp->tree_uri);
+  android_exception_check ();
+
+  if (vp->document_id)
+    {
+      id = (*android_java_env)->NewStringUTF (android_java_env,
+					      vp->document_id);
+      android_exception_check_1 (uri);
+    }
+  else
+    id = NULL;
+
+  (*vnode->ops->close) (vnode);
+
+  /* Begin walking the tree.  */
+  method = service_class.walk_document_tree;
+  walk
+    = (*android_java_env)->CallNonvirtualObjectMethod (android_java_env,
+						       emacs_service,
+						       service_class.class,
+						       method, uri, id);
+  if (android_saf_exception_check (2, uri, id))
+    return -1;
+
+  ANDROID_DELETE_LOCAL_REF (uri);
+  ANDROID_DELETE_LOCAL_REF (id);
+
+  /* From here onwards, release the walk and every local reference
+     upon exit, even if FUNCTION or a JNI check exits nonlocally.  */
+
+  memset (&state, 0, sizeof state);
+  state.walk = walk;
+  ref = SPECPDL_INDEX ();
+  record_unwind_protect_ptr (android_release_tree_walk, &state);
+
+  /* Allocate the arrays into which entries are read.  */
+
+  state.names
+    = (*android_java_env)->NewObjectArray (android_java_env,
+					   SAF_DIRECTORY_CHUNK,
+					   java_string_class, NULL);
+  android_exception_check ();
+  state.types = (*android_java_env)->NewIntArray (android_java_env,
+						  SAF_DIRECTORY_CHUNK);
+  android_exception_check ();
+  state.sizes = (*android_java_env)->NewLongArray (android_java_env,
+						   SAF_DIRECTORY_CHUNK);
+  android_exception_check ();
+  state.mtimes = (*android_java_env)->NewLongArray (android_java_env,
+						    SAF_DIRECTORY_CHUNK);
+  android_exception_check ();
+
+  rc = 0;
+  saved_errno = 0;
+
+  while (true)
+    {
+      /* Read a batch of entries, waiting for them to be listed if
+	 need be.  */
+
+      method = service_class.read_tree_walk;
+      inside_saf_critical_section = true;
+      count
+	= (*android_java_env)->CallNonvirtualIntMethod (android_java_env,
+							emacs_service,
+							service_class.class,
+							method, walk,
+							state.names,
+							state.types,
+							state.sizes,
+							state.mtimes);
+      inside_saf_critical_section = false;
+
+      if (android_saf_exception_check (0))
+	{
+	  saved_errno = errno;
+	  rc = -1;
+	  break;
+	}
+
+      if (!count)
+	break;
+
+      (*android_java_env)->GetIntArrayRegion (android_java_env,
+					      state.types, 0, count,
+					      type_data);
+      (*android_java_env)->GetLongArrayRegion (android_java_env,
+					       state.sizes, 0, count,
+					       size_data);
+      (*android_java_env)->GetLongArrayRegion (android_java_env,
+					       state.mtimes, 0, count,
+					       mtime_data);
+
+      for (i = 0; i < count; ++i)
+	{
+	  state.string
+	    = (*android_java_env)->GetObjectArrayElement (android_java_env,
+							  state.names, i);
+	  android_exception_check_nonnull (state.string, NULL);
+
+	  state.chars
+	    = (*android_java_env)->GetStringUTFChars (android_java_env,
+						      state.string, NULL);
+	  android_exception_check_nonnull ((void *) state.chars, NULL);
+
+	  (*function) (data, state.chars, type_data[i] == 1,
+		       size_data[i], mtime_data[i]);
+	  (*android_java_env)->ReleaseStringUTFChars (android_java_env,
+						      state.string,
+						      state.chars);
+	  state.chars = NULL;
+	  ANDROID_DELETE_LOCAL_REF (state.string);
+	  state.string = NULL;
+	}
+    }
+
+  unbind_to (ref, Qnil);
+
+  if (rc)
+    errno = saved_errno;
+
+  return rc;
+}
+
+/* Begin watching the file NAME within a document tree for changes
+   reported by its document provider, and return a descriptor
+   identifying the watch.  An ANDROID_DOCUMENT_CHANGED event bearing
+   this descriptor is sent whenever the file, or the directory holding
+   it, is reported to have changed.
+
+   Value is -2 if NAME is not a file within a document tree, and -1
+   upon failure with errno set accordingly.  `errno' may be set to
+   EINTR.  */
+
+int
+android_add_document_watch (const char *name)
+{
+  struct android_vnode *vnode;
+  struct android_saf_tree_vnode *vp;
+  jobject uri, id, parent;
+  jmethodID method;
+  char *parent_name, *end;
+  jint descriptor;
+
+  vnode = android_name_file (name);
+
+  if (!vnode)
+    return -1;
+
+  if (vnode->type != ANDROID_VNODE_SAF_TREE
+      && vnode->type != ANDROID_VNODE_SAF_FILE)
+    {
+      (*vnode->ops->close) (vnode);
+      return -2;
+    }
+
+  vp = (struct android_saf_tree_vnode *) vnode;
+
+  if (inside_saf_critical_section)
+    {
+      (*vnode->ops->close) (vnode);
+      errno = EIO;
+      return -1;
+    }
+
+  /* Build strings for the URI, ID and parent name.  */
+  uri = (*android_java_env)->NewStringUTF (android_java_env,
+					   vp->tree_uri);
+  android_exception_check ();
+
+  if (vp->document_id)
+    {
+      id = (*android_java_env)->NewStringUTF (android_java_env,
+					      vp->document_id);
+      android_exception_check_1 (uri);
+
+      /* Derive the name of the directory holding the file from its
+	 own, stripping off any trailing directory separator and its
+	 last component.  The root of the tree has no parent.  */
+
+      parent_name = xstrdup (vp->name);
+      end = parent_name + strlen (parent_name);
+
+      if (end > parent_name && end[-1] == '/')
+	*--end = '\0';
+
+      end = strrchr (parent_name, '/');
+
+      if (end)
+	end[1] = '\0';
+      else
+	strcpy (parent_name, "/");
+
+      parent = (*android_java_env)->NewStringUTF (android_java_env,
+						  parent_name);
+      xfree (parent_name);
+      android_exception_check_2 (uri, id);
+    }
+  else
+    id = parent = NULL;
+
+  (*vnode->ops->close) (vnode);
+
+  /* Register the watch.  The name of the parent directory is
+     resolved by the SAF thread.  */
+
+  method = service_class.add_document_watch;
+  inside_saf_critical_section = true;
+  descriptor
+    = (*android_java_env)->CallNonvirtualIntMethod (android_java_env,
+						    emacs_service,
+						    service_class.class,
+						    method, uri, id,
+						    parent);
+  inside_saf_critical_section = false;
+
+  if (android_saf_exception_check (3, uri, id, parent))
+    return -1;
+
+  ANDROID_DELETE_LOCAL_REF (uri);
+  ANDROID_DELETE_LOCAL_REF (id);
+  ANDROID_DELETE_LOCAL_REF (parent);
+  return descriptor;
+}
+
+/* Wait for documents being saved in the background to be saved.  If
+   NAME is non-NULL, wait only for the document so named.
+
+   Value is 0 if all such saves succeeded, 1 if one failed, in which
+   case *ERROR is set to a description of the failure allocated with
+   xmalloc, and -1 with errno set if the wait could not be completed,
+   such as EINTR if it was interrupted by a quit.  */
+
+int
+android_flush_documents (const char *name, char **error)
+{
+  struct android_vnode *vnode;
+  char *canonical;
+  jobject string, value;
+  jmethodID method;
+  const char *chars;
+
+  if (inside_saf_critical_section)
+    {
+      errno = EIO;
+      return -1;
+    }
+
+  string = NULL;
+
+  if (name)
+    {
+      /* Saves are identified by the full name of the document as
+	 provided by `android_saf_canonical_name', which might differ
+	 from NAME.  */
+
+      vnode = android_name_file (name);
+      canonical = NULL;
+
+      if (vnode && (vnode->type == ANDROID_VNODE_SAF_TREE
+		    || vnode->type == ANDROID_VNODE_SAF_FILE))
+	canonical
+	  = android_saf_canonical_name ((struct android_saf_tree_vnode *)
+					vnode);
+
+      if (vnode)
+	(*vnode->ops->close) (vnode);
+
+      string = (*android_java_env)->NewStringUTF (android_java_env,
+						  (canonical
+						   ? canonical : name));
+      xfree (canonical);
+      android_exception_check ();
+    }
+
+  method = service_class.flush_documents;
+  inside_saf_critical_section = true;
+  value
+    = (*android_java_env)->CallNonvirtualObjectMethod (android_java_env,
+						       emacs_service,
+						       service_class.class,
+						       method, string);
+  inside_saf_critical_section = false;
+
+  if (android_saf_exception_check (1, string))
+    return -1;
+
+  if (string)
+    ANDROID_DELETE_LOCAL_REF (string);
+
+  if (!value)
+    return 0;
+
+  chars = (*android_java_env)->GetStringUTFChars (android_java_env,
+						  (jstring) value, NULL);
+  android_exception_check_nonnull ((void *) chars, value);
+  *error = xstrdup (chars);
+  (*android_java_env)->ReleaseStringUTFChars (android_java_env,
+					      (jstring) value, chars);
+  ANDROID_DELETE_LOCAL_REF (value);
+  return 1;
+}
+
+/* Stop watching for changes with the watch identified by
+   DESCRIPTOR, which should have been returned by
+   `android_add_document_watch'.  */
+
+void
+android_remove_document_watch (int descriptor)
+{
+  jmethodID method;
+
+  method = service_class.remove_document_watch;
+  (*android_java_env)->CallNonvirtualVoidMethod (android_java_env,
+						 emacs_service,
+						 service_class.class,
+						 method, (jint) descriptor);
+  android_exception_check ();
+}
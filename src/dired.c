@@ -152,6 +152,41 @@ open_directory (Lisp_Object dirname, Lisp_Object encoded_dirname, int *fdp)
   return d;
 }
 
+#if defined HAVE_ANDROID && !defined ANDROID_STUBIFY
+
+/* Like `open_directory', but the directory stream returned may omit
+   entries whose names don't begin with the encoded file name
+   ENCODED_PREFIX.  Directories provided by document providers are
+   listed far more quickly if only such entries are read.  */
+
+static emacs_dir *
+open_directory_matching (Lisp_Object dirname, Lisp_Object encoded_dirname,
+			 Lisp_Object encoded_prefix, int *fdp)
+{
+  emacs_dir *d;
+
+ again:
+  d = android_opendir_matching (SSDATA (encoded_dirname),
+				SSDATA (encoded_prefix),
+				completion_ignore_case);
+
+  if (!d)
+    {
+      if (errno == EINTR)
+	{
+	  maybe_quit ();
+	  goto again;
+	}
+
+      report_file_error ("Opening directory", dirname);
+    }
+
+  *fdp = android_dirfd (d);
+  return d;
+}
+
+#endif /* HAVE_ANDROID && !ANDROID_STUBIFY */
+
 #ifdef WINDOWSNT
 static void
 directory_files_internal_w32_unwind (Lisp_Object arg)
@@ -555,7 +590,12 @@ file_name_completion (Lisp_Object file, Lisp_Object dirname, bool all_flag,
 	}
     }
   int fd;
+#if defined HAVE_ANDROID && !defined ANDROID_STUBIFY
+  emacs_dir *d = open_directory_matching (dirname, encoded_dir,
+					  encoded_file, &fd);
+#else
   emacs_dir *d = open_directory (dirname, encoded_dir, &fd);
+#endif
   record_unwind_protect_ptr (directory_files_internal_unwind, d);
 
   /* Loop reading directory entries.  */